@@ -5,16 +5,22 @@ import java.nio.ByteBuffer;
 class AppendableBuffer
 {
     private ByteBuffer b;
+    /* The last buffer handed out by append(), it stays valid until the
+     next call that changes this buffer */
+    private ByteBuffer appended;
+    private IBufferAllocator allocator = HeapBufferAllocator.INSTANCE;
 
     public ByteBuffer append(ByteBuffer data)
     {
-        ByteBuffer nb = ByteBuffer.allocate(calculateSize(data));
+        ByteBuffer nb = allocator.allocate(calculateSize(data));
         if (notNull())
         {
             nb.put(b);
-            clear();
         }
         nb.put(data);
+        //data may be a view of the previously appended buffer
+        clear();
+        appended = nb;
         return nb;
     }
 
@@ -22,25 +28,44 @@ class AppendableBuffer
     {
         if (data.hasRemaining())
         {
-            b = ByteBuffer.allocate(data.remaining());
-            b.put(data);
-            b.rewind();
+            ByteBuffer nb = allocator.allocate(data.remaining());
+            nb.put(data);
+            nb.flip();
+            clear();
+            b = nb;
         }
     }
 
     public void clear()
     {
+        release(b);
+        release(appended);
         b = null;
+        appended = null;
+    }
+
+    void setAllocator(IBufferAllocator allocator)
+    {
+        clear();
+        this.allocator = allocator;
     }
 
     /* private */
 
+    private void release(ByteBuffer buffer)
+    {
+        if (buffer != null)
+        {
+            allocator.release(buffer);
+        }
+    }
+
     private int calculateSize(ByteBuffer data)
     {
         int result = data.limit();
         if (notNull())
         {
-            result += b.capacity();
+            result += b.remaining();
         }
         return result;
     }
@@ -63,4 +88,13 @@ class AppendableBuffer
     {
         return b;
     }
+
+    public int capacity()
+    {
+        if (notNull())
+        {
+            return b.capacity();
+        }
+        return 0;
+    }
 }
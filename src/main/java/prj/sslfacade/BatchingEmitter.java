@@ -0,0 +1,49 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+
+class BatchingEmitter implements IPlainDataEmitter
+{
+  /*
+   Collects the plain data of all records unwrapped by one operation in
+   one buffer, which the Worker hands to ISSLListener.onPlainData once the
+   operation is over. The buffer is handed over for good, a new one is
+   allocated for the next batch.
+   */
+
+  private final ISSLListener _listener;
+  private final int _initialCapacity;
+  private ByteBuffer _batch;
+
+  BatchingEmitter(ISSLListener listener, int initialCapacity)
+  {
+    _listener = listener;
+    _initialCapacity = initialCapacity;
+  }
+
+  @Override
+  public void emit(ByteBuffer internalPlainBuffer)
+  {
+    internalPlainBuffer.flip();
+    int needed = internalPlainBuffer.remaining();
+    if (_batch == null) {
+      _batch = ByteBuffer.allocate(Math.max(_initialCapacity, needed));
+    } else if (_batch.remaining() < needed) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * _batch.capacity(), _batch.position() + needed));
+      _batch.flip();
+      grown.put(_batch);
+      _batch = grown;
+    }
+    _batch.put(internalPlainBuffer);
+  }
+
+  void flush()
+  {
+    if (_batch != null) {
+      ByteBuffer batch = _batch;
+      _batch = null;
+      batch.flip();
+      _listener.onPlainData(batch);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package prj.sslfacade;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferBudget
+{
+  /*
+   A BufferBudget puts a ceiling on the number of bytes a facade may hold in
+   its SSL buffers and unwrap cache. Budgets can be chained: a per-facade
+   budget is usually created with a shared, global parent so that every
+   reservation is charged against both. A server with a very large number
+   of connections can therefore enforce a hard memory ceiling across all of
+   them while still limiting what any single connection may consume.
+
+   Reservations are made by the facade before buffers are grown, if either
+   this budget or one of its parents would go over its limit the
+   reservation fails with a BufferBudgetExceededException and nothing is
+   charged. The host application can use hasHeadroom() to stop reading from
+   its transport before that happens.
+
+   Budgets are thread-safe because a global budget is expected to be
+   shared by facades that live on different threads.
+   */
+
+  private final long _limit;
+  private final BufferBudget _parent;
+  private final AtomicLong _used = new AtomicLong();
+
+  public BufferBudget(long limit)
+  {
+    this(limit, null);
+  }
+
+  public BufferBudget(long limit, BufferBudget parent)
+  {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Budget limit must not be negative: " + limit);
+    }
+    _limit = limit;
+    _parent = parent;
+  }
+
+  public long getLimit()
+  {
+    return _limit;
+  }
+
+  public long getUsed()
+  {
+    return _used.get();
+  }
+
+  public long getAvailable()
+  {
+    return Math.max(0, _limit - _used.get());
+  }
+
+  public BufferBudget getParent()
+  {
+    return _parent;
+  }
+
+  public boolean hasHeadroom(long bytes)
+  {
+    /* True if a reservation of the given size would currently succeed */
+    return getAvailable() >= bytes && (_parent == null || _parent.hasHeadroom(bytes));
+  }
+
+  public void reserve(long bytes) throws BufferBudgetExceededException
+  {
+    if (bytes <= 0) {
+      return;
+    }
+    long used;
+    do {
+      used = _used.get();
+      if (used + bytes > _limit) {
+        throw new BufferBudgetExceededException(this, bytes);
+      }
+    } while (!_used.compareAndSet(used, used + bytes));
+
+    if (_parent != null) {
+      try {
+        _parent.reserve(bytes);
+      } catch (BufferBudgetExceededException e) {
+        _used.addAndGet(-bytes);
+        throw e;
+      }
+    }
+  }
+
+  public void release(long bytes)
+  {
+    if (bytes <= 0) {
+      return;
+    }
+    _used.addAndGet(-bytes);
+    if (_parent != null) {
+      _parent.release(bytes);
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "BufferBudget[used=" + _used.get() + ", limit=" + _limit + "]";
+  }
+}
@@ -0,0 +1,32 @@
+package prj.sslfacade;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Thrown when growing a facade's buffers would exceed its BufferBudget or
+ * one of the budget's parents.
+ */
+public class BufferBudgetExceededException extends SSLException
+{
+  private static final long serialVersionUID = 1L;
+
+  private final BufferBudget _budget;
+  private final long _requested;
+
+  public BufferBudgetExceededException(BufferBudget budget, long requested)
+  {
+    super("Reserving " + requested + " bytes would exceed " + budget);
+    _budget = budget;
+    _requested = requested;
+  }
+
+  public BufferBudget getBudget()
+  {
+    return _budget;
+  }
+
+  public long getRequested()
+  {
+    return _requested;
+  }
+}
@@ -1,6 +1,12 @@
 package prj.sslfacade;
 
+import java.io.IOException;
 import java.nio.BufferOverflowException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import javax.net.ssl.SSLSession;
 import java.nio.ByteBuffer;
 
@@ -36,14 +42,68 @@ class Buffers
    have to be resized during operations and hence it is neither simple nor
    maintainable to allow the host application to inject its own buffers.
    In short, leave these buffers alone!
+
+   Optionally a BufferBudget can be attached. The budget is charged with
+   the capacity of all four buffers plus the unwrap cache and every
+   operation that would grow them reserves the extra bytes first, so that
+   a budget violation fails fast before the memory is allocated. The
+   charge is returned to the budget when the buffers are released.
+
+   When a facade is reset for a new connection its Buffers are reset along
+   with it. Buffers that are already large enough for the new session are
+   kept, only the ones that are too small are allocated again.
+
+   For writing straight to a channel there is a small set of direct
+   record buffers, each large enough for one TLS record. Records are
+   wrapped into them and written with one gathering write, whatever the
+   channel does not take stays in them as pending output. Records wrapped
+   by other operations while output is pending are copied behind it so
+   that the order on the wire is kept. Both count towards the budget.
+
+   Files are sent through a direct file chunk buffer that holds the plain
+   data of as many records as are wrapped per write. It is read with
+   positional reads and what has not been wrapped yet is kept for the
+   next call, as long as that continues where the transfer stopped.
+
+   Plain data that a sink channel did not take is held back in a buffer of
+   its own until the sink can be written to again.
+
+   All buffers other than the queued writes come from an IBufferAllocator,
+   heap buffers by default. With any other allocator, such as a
+   DirectBufferArena, every buffer that is replaced is released to it and
+   release() hands back all of them once the session has ended. The
+   buffers are then empty heap buffers, which grow on demand should the
+   facade still be used, until a reset allocates from the allocator again.
+   The record buffers and the file chunk are direct even with the heap
+   allocator since they are only ever used for channel I/O.
    */
 
+  /* Records wrapped per gathering write */
+  private static final int RECORDS_PER_WRITE = 4;
+  /* Largest amount of plain data in a TLS record */
+  private static final int MAX_RECORD_PLAIN = 16384;
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
   private ByteBuffer _peerApp;
   private ByteBuffer _myApp;
   private ByteBuffer _peerNet;
   private ByteBuffer _myNet;
   private final AppendableBuffer _unwrapCache;
-  private final SSLSession _session;
+  private ByteBuffer _queuedWrites;
+  private ByteBuffer[] _outRecords;
+  private int _pendingFrom;
+  private int _pendingTo;
+  private final ArrayDeque<ByteBuffer> _pendingOverflow = new ArrayDeque<ByteBuffer>();
+  private int _pendingOverflowBytes;
+  private ByteBuffer _heldBack;
+  private ByteBuffer _fileChunk;
+  private FileChannel _chunkFile;
+  private long _chunkPosition;
+  private SSLSession _session;
+  private IBufferAllocator _allocator = HeapBufferAllocator.INSTANCE;
+  private boolean _released;
+  private BufferBudget _budget;
+  private long _charged;
 
   public Buffers(SSLSession session)
   {
@@ -56,6 +116,15 @@ class Buffers
     _unwrapCache = new AppendableBuffer();
   }
 
+  Buffers(SSLSession session, IBufferAllocator allocator)
+  {
+    _session = session;
+    _allocator = allocator;
+    allocate();
+    _unwrapCache = new AppendableBuffer();
+    _unwrapCache.setAllocator(allocator);
+  }
+
   private void debug(final String msg)
   {
     System.out.println("[Buffers]" + msg);
@@ -82,7 +151,7 @@ class Buffers
     return result;
   }
 
-  void grow(BufferType t)
+  void grow(BufferType t) throws BufferBudgetExceededException
   {
     /* Grows buffer to recommended SSL sizes */
     switch (t) {
@@ -103,9 +172,11 @@ class Buffers
   }
 
   ByteBuffer grow(BufferType b, int recommendedBufferSize)
+          throws BufferBudgetExceededException
   {
     ByteBuffer originalBuffer = get(b);
-    ByteBuffer newBuffer = ByteBuffer.allocate(recommendedBufferSize);
+    charge(footprint() - originalBuffer.capacity() + recommendedBufferSize);
+    ByteBuffer newBuffer = allocate(recommendedBufferSize);
 
     try {
       debug("grow buffer " + originalBuffer + " to " + newBuffer);
@@ -113,10 +184,11 @@ class Buffers
     } catch (BufferOverflowException e) {
       throw e;
     }
+    free(originalBuffer);
     return newBuffer;
   }
 
-  void prepareForUnwrap(ByteBuffer data)
+  void prepareForUnwrap(ByteBuffer data) throws BufferBudgetExceededException
   {
     clear(BufferType.IN_CIPHER, BufferType.IN_PLAIN);
     if (data != null) {      
@@ -126,7 +198,7 @@ class Buffers
     }
   }
 
-  void prepareForWrap(ByteBuffer data)
+  void prepareForWrap(ByteBuffer data) throws BufferBudgetExceededException
   {
     //Avoid buffer overflow when loading plain data and clear buffers
     clear(BufferType.OUT_PLAIN, BufferType.OUT_CIPHER);
@@ -134,31 +206,39 @@ class Buffers
       ByteBuffer newBuffer = growIfNecessary(BufferType.OUT_PLAIN, data.limit());
       newBuffer.put(data);
       newBuffer.flip();
+    } else {
+      //Nothing to wrap but handshake or close data
+      get(BufferType.OUT_PLAIN).flip();
     }
   }
 
   /* AppendableBuffer - Unwrap cache ops */
-  ByteBuffer prependCached(ByteBuffer data)
+  ByteBuffer prependCached(ByteBuffer data) throws BufferBudgetExceededException
   {
     if (data == null) {
       return _unwrapCache.get();
     } else {
+      /* The cached bytes move into the appended buffer, so only the new
+       data adds to the footprint */
+      charge(footprint() + data.limit());
       ByteBuffer result = _unwrapCache.append(data);
-      result.rewind();
+      result.flip();
       return result;
     }
   }
 
-  void cache(ByteBuffer data)
+  void cache(ByteBuffer data) throws BufferBudgetExceededException
   {
-    if (data != null) {
+    if (data != null && data.hasRemaining()) {
+      charge(footprint() - _unwrapCache.capacity() + data.remaining());
       _unwrapCache.set(data);
     }
   }
 
-  void clearCache()
+  void clearCache() throws BufferBudgetExceededException
   {
     _unwrapCache.clear();
+    charge(footprint());
   }
 
   boolean isCacheEmpty()
@@ -166,16 +246,424 @@ class Buffers
     return !_unwrapCache.hasRemaining();
   }
 
+  /* Channel ops */
+  int readFrom(ReadableByteChannel channel) throws IOException
+  {
+    /* Reads ciphertext straight into IN_CIPHER, behind the partial record
+     that is still in the unwrap cache. Leaves IN_CIPHER ready for
+     unwrapping and the cache empty, returns what read() returned. */
+    ByteBuffer cached = _unwrapCache.get();
+    int cachedBytes = cached == null ? 0 : cached.remaining();
+    int needed = cachedBytes + _session.getPacketBufferSize();
+    if (_peerNet.capacity() < needed) {
+      charge(footprint() - _peerNet.capacity() + needed);
+      free(_peerNet);
+      _peerNet = allocate(needed);
+    }
+    _peerNet.clear();
+    if (cachedBytes > 0) {
+      _peerNet.put(cached);
+    }
+    clearCache();
+    int read;
+    try {
+      read = channel.read(_peerNet);
+    } finally {
+      _peerNet.flip();
+    }
+    return read;
+  }
+
+  /* Output record ops */
+  ByteBuffer[] outRecords() throws BufferBudgetExceededException
+  {
+    /* The record buffers, to be filled from the first one on and handed
+     back with setPending() */
+    if (_outRecords == null) {
+      int size = _session.getPacketBufferSize();
+      charge(footprint() + (long) RECORDS_PER_WRITE * size);
+      _outRecords = new ByteBuffer[RECORDS_PER_WRITE];
+      for (int i = 0; i < RECORDS_PER_WRITE; i++) {
+        _outRecords[i] = allocateDirect(size);
+      }
+    }
+    return _outRecords;
+  }
+
+  void growOutRecord(int index) throws BufferBudgetExceededException
+  {
+    int size = _session.getPacketBufferSize();
+    charge(footprint() - _outRecords[index].capacity() + size);
+    free(_outRecords[index]);
+    _outRecords[index] = allocateDirect(size);
+  }
+
+  void setPending(int count)
+  {
+    /* The first count record buffers have been flipped and wait to be
+     written */
+    _pendingFrom = 0;
+    _pendingTo = count;
+  }
+
+  void appendPending(ByteBuffer data) throws BufferBudgetExceededException
+  {
+    charge(footprint() + data.remaining());
+    ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+    copy.put(data);
+    copy.flip();
+    _pendingOverflow.add(copy);
+    _pendingOverflowBytes += copy.capacity();
+  }
+
+  boolean hasPendingOutput()
+  {
+    return _pendingFrom < _pendingTo || !_pendingOverflow.isEmpty();
+  }
+
+  boolean writePending(GatheringByteChannel channel) throws IOException
+  {
+    /* Returns true once all pending output has been written */
+    if (_pendingFrom < _pendingTo) {
+      channel.write(_outRecords, _pendingFrom, _pendingTo - _pendingFrom);
+      while (_pendingFrom < _pendingTo && !_outRecords[_pendingFrom].hasRemaining()) {
+        _pendingFrom++;
+      }
+      if (_pendingFrom < _pendingTo) {
+        return false;
+      }
+    }
+    while (!_pendingOverflow.isEmpty()) {
+      ByteBuffer data = _pendingOverflow.peek();
+      channel.write(data);
+      if (data.hasRemaining()) {
+        return false;
+      }
+      _pendingOverflow.poll();
+      _pendingOverflowBytes -= data.capacity();
+      charge(footprint());
+    }
+    return true;
+  }
+
+  /* Sink ops */
+  void holdBack(ByteBuffer data) throws BufferBudgetExceededException
+  {
+    int held = _heldBack == null ? 0 : _heldBack.remaining();
+    int needed = held + data.remaining();
+    if (_heldBack == null || needed > _heldBack.capacity()) {
+      int capacity = Math.max(needed, _session.getApplicationBufferSize());
+      charge(footprint() - heldBackCapacity() + capacity);
+      ByteBuffer grown = allocate(capacity);
+      if (_heldBack != null) {
+        grown.put(_heldBack);
+        free(_heldBack);
+      }
+      _heldBack = grown;
+    } else {
+      _heldBack.compact();
+    }
+    _heldBack.put(data);
+    _heldBack.flip();
+  }
+
+  boolean hasHeldBack()
+  {
+    return _heldBack != null && _heldBack.hasRemaining();
+  }
+
+  boolean writeHeldBack(WritableByteChannel channel) throws IOException
+  {
+    /* Returns true once nothing is held back any more */
+    while (hasHeldBack() && channel.write(_heldBack) > 0) {
+      //Until the channel is done or full
+    }
+    return !hasHeldBack();
+  }
+
+  /* File chunk ops */
+  ByteBuffer fileChunk(FileChannel file, long position, long count) throws IOException
+  {
+    /* At most count bytes of plain data of the file starting at position,
+     ready for wrapping. Empty at the end of the file. */
+    if (_fileChunk == null) {
+      int size = RECORDS_PER_WRITE * MAX_RECORD_PLAIN;
+      charge(footprint() + size);
+      _fileChunk = allocateDirect(size);
+      _fileChunk.limit(0);
+    }
+    if (file != _chunkFile || position != _chunkPosition || !_fileChunk.hasRemaining()) {
+      _chunkFile = null;
+      _fileChunk.clear();
+      _fileChunk.limit((int) Math.min(count, _fileChunk.capacity()));
+      try {
+        while (_fileChunk.hasRemaining()
+                && file.read(_fileChunk, position + _fileChunk.position()) > 0) {
+          //Fill the chunk unless the file ends
+        }
+      } finally {
+        _fileChunk.flip();
+      }
+      _chunkFile = file;
+      _chunkPosition = position;
+    } else if (_fileChunk.remaining() > count) {
+      _fileChunk.limit(_fileChunk.position() + (int) count);
+    }
+    return _fileChunk;
+  }
+
+  void fileChunkConsumed(long bytes)
+  {
+    _chunkPosition += bytes;
+  }
+
+  /* Plain data written before the handshake completed */
+  void queueWrite(ByteBuffer data) throws BufferBudgetExceededException
+  {
+    int queued = _queuedWrites == null ? 0 : _queuedWrites.position();
+    int needed = queued + data.remaining();
+    if (_queuedWrites == null || needed > _queuedWrites.capacity()) {
+      int capacity = Math.max(needed, 2 * Math.max(queued, _session.getApplicationBufferSize() / 2));
+      charge(footprint() - queuedCapacity() + capacity);
+      ByteBuffer grown = ByteBuffer.allocate(capacity);
+      if (_queuedWrites != null) {
+        _queuedWrites.flip();
+        grown.put(_queuedWrites);
+      }
+      _queuedWrites = grown;
+    }
+    _queuedWrites.put(data);
+  }
+
+  int discardQueuedWrites()
+  {
+    /* Drops the queued plain data, returns how many bytes were dropped */
+    int discarded = _queuedWrites == null ? 0 : _queuedWrites.position();
+    _queuedWrites = null;
+    return discarded;
+  }
+
+  ByteBuffer takeQueuedWrites() throws BufferBudgetExceededException
+  {
+    /* Hands over all queued plain data as one buffer ready for reading */
+    ByteBuffer queued = _queuedWrites;
+    _queuedWrites = null;
+    charge(footprint());
+    if (queued == null || queued.position() == 0) {
+      return null;
+    }
+    queued.flip();
+    return queued;
+  }
+
+  void reset(SSLSession session)
+  {
+    releaseBudget();
+    if (_released) {
+      _released = false;
+      _unwrapCache.setAllocator(_allocator);
+    }
+    _session = session;
+    int applicationBufferSize = _session.getApplicationBufferSize();
+    int packetBufferSize = _session.getPacketBufferSize();
+    _peerApp = reuse(_peerApp, applicationBufferSize);
+    _myApp = reuse(_myApp, applicationBufferSize);
+    _peerNet = reuse(_peerNet, packetBufferSize);
+    _myNet = reuse(_myNet, packetBufferSize);
+    _unwrapCache.clear();
+    _queuedWrites = null;
+    if (_outRecords != null && _outRecords[0].capacity() < packetBufferSize) {
+      freeOutRecords();
+    }
+    _pendingFrom = 0;
+    _pendingTo = 0;
+    _pendingOverflow.clear();
+    _pendingOverflowBytes = 0;
+    if (_heldBack != null) {
+      _heldBack.limit(0);
+    }
+    if (_fileChunk != null) {
+      _fileChunk.limit(0);
+    }
+    _chunkFile = null;
+  }
+
+  /* Allocator ops */
+  void setAllocator(IBufferAllocator allocator) throws BufferBudgetExceededException
+  {
+    /* Replaces all buffers, so only to be used before the handshake */
+    if (allocator == _allocator && !_released) {
+      return;
+    }
+    freeAll();
+    _allocator = allocator == null ? HeapBufferAllocator.INSTANCE : allocator;
+    _released = false;
+    _unwrapCache.setAllocator(_allocator);
+    allocate();
+    charge(footprint());
+  }
+
+  void release()
+  {
+    /* Hands all buffers back to the allocator once the session has ended,
+     with the heap allocator they are left as they are */
+    if (_released || _allocator == HeapBufferAllocator.INSTANCE) {
+      return;
+    }
+    freeAll();
+    _released = true;
+    _unwrapCache.setAllocator(HeapBufferAllocator.INSTANCE);
+    _pendingOverflow.clear();
+    _pendingOverflowBytes = 0;
+    try {
+      charge(footprint());
+    } catch (BufferBudgetExceededException e) {
+      //Cannot happen, the footprint only shrinks
+    }
+  }
+
+  /* Budget ops */
+  void setBudget(BufferBudget budget) throws BufferBudgetExceededException
+  {
+    if (budget != null) {
+      budget.reserve(footprint());
+    }
+    releaseBudget();
+    _budget = budget;
+    _charged = budget == null ? 0 : footprint();
+  }
+
+  BufferBudget getBudget()
+  {
+    return _budget;
+  }
+
+  void releaseBudget()
+  {
+    if (_budget != null) {
+      _budget.release(_charged);
+      _budget = null;
+      _charged = 0;
+    }
+  }
+
+  long footprint()
+  {
+    return _peerApp.capacity() + _myApp.capacity() + _peerNet.capacity()
+            + _myNet.capacity() + _unwrapCache.capacity() + queuedCapacity()
+            + outRecordsCapacity() + _pendingOverflowBytes
+            + heldBackCapacity() + (_fileChunk == null ? 0 : _fileChunk.capacity());
+  }
+
+  private int heldBackCapacity()
+  {
+    return _heldBack == null ? 0 : _heldBack.capacity();
+  }
+
+  private long outRecordsCapacity()
+  {
+    long capacity = 0;
+    if (_outRecords != null) {
+      for (ByteBuffer record : _outRecords) {
+        capacity += record.capacity();
+      }
+    }
+    return capacity;
+  }
+
+  private int queuedCapacity()
+  {
+    return _queuedWrites == null ? 0 : _queuedWrites.capacity();
+  }
 
   /* private */
+  private void charge(long projectedFootprint) throws BufferBudgetExceededException
+  {
+    /* Moves the budget charge to the footprint the buffers are about to
+     have. Growth is reserved up front so that an exceeded budget leaves
+     the buffers untouched, shrinkage is handed back. */
+    if (_budget == null) {
+      return;
+    }
+    long delta = projectedFootprint - _charged;
+    if (delta > 0) {
+      _budget.reserve(delta);
+    } else {
+      _budget.release(-delta);
+    }
+    _charged = projectedFootprint;
+  }
+
   private void allocate()
   {
     int applicationBufferSize = _session.getApplicationBufferSize();
     int packetBufferSize = _session.getPacketBufferSize();
-    _peerApp = ByteBuffer.allocate(applicationBufferSize);
-    _myApp = ByteBuffer.allocate(applicationBufferSize);
-    _peerNet = ByteBuffer.allocate(packetBufferSize);
-    _myNet = ByteBuffer.allocate(packetBufferSize);
+    _peerApp = allocate(applicationBufferSize);
+    _myApp = allocate(applicationBufferSize);
+    _peerNet = allocate(packetBufferSize);
+    _myNet = allocate(packetBufferSize);
+  }
+
+  private ByteBuffer allocate(int size)
+  {
+    return (_released ? HeapBufferAllocator.INSTANCE : _allocator).allocate(size);
+  }
+
+  private ByteBuffer allocateDirect(int size)
+  {
+    if (_released || _allocator == HeapBufferAllocator.INSTANCE) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    return _allocator.allocate(size);
+  }
+
+  private void free(ByteBuffer buffer)
+  {
+    if (!_released && buffer != null) {
+      _allocator.release(buffer);
+    }
+  }
+
+  private void freeOutRecords()
+  {
+    for (ByteBuffer record : _outRecords) {
+      free(record);
+    }
+    _outRecords = null;
+  }
+
+  private void freeAll()
+  {
+    /* Hands every buffer back to the allocator and leaves empty ones */
+    free(_peerApp);
+    free(_myApp);
+    free(_peerNet);
+    free(_myNet);
+    _peerApp = EMPTY;
+    _myApp = EMPTY;
+    _peerNet = EMPTY;
+    _myNet = EMPTY;
+    _unwrapCache.clear();
+    free(_heldBack);
+    _heldBack = null;
+    free(_fileChunk);
+    _fileChunk = null;
+    _chunkFile = null;
+    if (_outRecords != null) {
+      freeOutRecords();
+    }
+    _pendingFrom = 0;
+    _pendingTo = 0;
+  }
+
+  private ByteBuffer reuse(ByteBuffer buffer, int size)
+  {
+    if (buffer.capacity() < size) {
+      free(buffer);
+      return allocate(size);
+    }
+    buffer.clear();
+    return buffer;
   }
 
   private void clear(BufferType source, BufferType destination)
@@ -203,18 +691,25 @@ class Buffers
     }
   }
 
-  private void resetSize(BufferType t, int size)
+  private void resetSize(BufferType t, int size) throws BufferBudgetExceededException
   {
-    ByteBuffer newBuffer = ByteBuffer.allocate(size);
+    charge(footprint() - get(t).capacity() + size);
+    ByteBuffer newBuffer = allocate(size);
     try {
-      BufferUtils.copy(get(t), newBuffer);
+      /* Only the bytes written so far are carried over, the new buffer is
+       left open for writing the rest */
+      ByteBuffer oldBuffer = get(t);
+      oldBuffer.flip();
+      newBuffer.put(oldBuffer);
       assign(t, newBuffer);
+      free(oldBuffer);
     } catch (BufferOverflowException e) {
       throw e;
     }
   }
 
   private ByteBuffer growIfNecessary(BufferType t, int size)
+          throws BufferBudgetExceededException
   {
     //grow if not enough space
     ByteBuffer b = get(t);
@@ -0,0 +1,311 @@
+package prj.sslfacade;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmConstraints;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+public class CachingTrustManager extends X509ExtendedTrustManager
+{
+  /*
+   Wraps the X509TrustManager of a SSLContext and remembers which
+   certificate chains it has accepted, so that peers which connect again
+   and again, e.g. the client certificates of other services with mutual
+   TLS, are not validated from scratch on every full handshake.
+
+   A chain is identified by the SHA-256 fingerprint of all of its
+   certificates together with the auth type, whether the client or the
+   server is checked and what else the delegate checks it against during
+   a handshake: the endpoint identification algorithm, the peer host and
+   server names and the supported signature algorithms. An entry is only
+   used for the algorithm constraints it was validated with. The delegate
+   must be a X509ExtendedTrustManager, a plain X509TrustManager would skip
+   endpoint identification. Only successful validations are cached. An entry expires after the
+   configured time to live or when the first certificate of the chain
+   expires, whichever comes first, and the least recently used entry is
+   evicted once maxEntries is reached. A cached chain is trusted without
+   asking the delegate again, so revocations only take effect once the
+   entry has expired or clear() has been called.
+
+   Thread-safe, one instance is shared by all engines of a context.
+   */
+
+  private final X509ExtendedTrustManager _delegate;
+  private final long _ttlMillis;
+  private final int _maxEntries;
+  private final Map<ByteBuffer, Validation> _validated;
+  private long _hits;
+  private long _misses;
+  private long _evictions;
+
+  public CachingTrustManager(X509ExtendedTrustManager delegate, long ttl, TimeUnit unit,
+          int maxEntries)
+  {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("At least one cache entry is required");
+    }
+    _delegate = delegate;
+    _ttlMillis = unit.toMillis(ttl);
+    _maxEntries = maxEntries;
+    _validated = new LinkedHashMap<ByteBuffer, Validation>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Validation> eldest)
+      {
+        if (size() > _maxEntries) {
+          _evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public static CachingTrustManager wrap(TrustManager[] trustManagers, long ttl,
+          TimeUnit unit, int maxEntries)
+  {
+    /* Wraps the X509ExtendedTrustManager a TrustManagerFactory returned */
+    for (TrustManager trustManager : trustManagers) {
+      if (trustManager instanceof X509ExtendedTrustManager) {
+        return new CachingTrustManager((X509ExtendedTrustManager) trustManager, ttl, unit,
+                maxEntries);
+      }
+      if (trustManager instanceof X509TrustManager) {
+        throw new IllegalArgumentException(
+                "The X509TrustManager does not identify endpoints, wrap a X509ExtendedTrustManager");
+      }
+    }
+    throw new IllegalArgumentException("No X509TrustManager to wrap");
+  }
+
+  public synchronized long getHits()
+  {
+    return _hits;
+  }
+
+  public synchronized long getMisses()
+  {
+    return _misses;
+  }
+
+  public synchronized long getEvictions()
+  {
+    return _evictions;
+  }
+
+  public synchronized double getHitRate()
+  {
+    long total = _hits + _misses;
+    return total == 0 ? 0 : (double) _hits / total;
+  }
+
+  public synchronized int size()
+  {
+    return _validated.size();
+  }
+
+  public synchronized void clear()
+  {
+    _validated.clear();
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType)
+          throws CertificateException
+  {
+    ByteBuffer key = key("client", chain, authType, null, null);
+    if (!isCached(key, null)) {
+      _delegate.checkClientTrusted(chain, authType);
+      remember(key, chain, null);
+    }
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+          throws CertificateException
+  {
+    SSLParameters parameters = parameters(socket);
+    ByteBuffer key = key("client", chain, authType, parameters, handshakeSession(socket));
+    if (!isCached(key, parameters)) {
+      _delegate.checkClientTrusted(chain, authType, socket);
+      remember(key, chain, parameters);
+    }
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+          throws CertificateException
+  {
+    SSLParameters parameters = engine == null ? null : engine.getSSLParameters();
+    ByteBuffer key = key("client", chain, authType, parameters,
+            engine == null ? null : engine.getHandshakeSession());
+    if (!isCached(key, parameters)) {
+      _delegate.checkClientTrusted(chain, authType, engine);
+      remember(key, chain, parameters);
+    }
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType)
+          throws CertificateException
+  {
+    ByteBuffer key = key("server", chain, authType, null, null);
+    if (!isCached(key, null)) {
+      _delegate.checkServerTrusted(chain, authType);
+      remember(key, chain, null);
+    }
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+          throws CertificateException
+  {
+    SSLParameters parameters = parameters(socket);
+    ByteBuffer key = key("server", chain, authType, parameters, handshakeSession(socket));
+    if (!isCached(key, parameters)) {
+      _delegate.checkServerTrusted(chain, authType, socket);
+      remember(key, chain, parameters);
+    }
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+          throws CertificateException
+  {
+    SSLParameters parameters = engine == null ? null : engine.getSSLParameters();
+    ByteBuffer key = key("server", chain, authType, parameters,
+            engine == null ? null : engine.getHandshakeSession());
+    if (!isCached(key, parameters)) {
+      _delegate.checkServerTrusted(chain, authType, engine);
+      remember(key, chain, parameters);
+    }
+  }
+
+  @Override
+  public X509Certificate[] getAcceptedIssuers()
+  {
+    return _delegate.getAcceptedIssuers();
+  }
+
+  /* Privates */
+  private synchronized boolean isCached(ByteBuffer key, SSLParameters parameters)
+  {
+    /* Algorithm constraints cannot be compared by value, an entry only
+     counts for the constraints instance it was validated with. Engines
+     without custom constraints all share the provider's default one. */
+    Validation validation = _validated.get(key);
+    if (validation != null && validation.expiry > System.currentTimeMillis()
+            && validation.constraints == constraints(parameters)) {
+      _hits++;
+      return true;
+    }
+    if (validation != null) {
+      _validated.remove(key);
+    }
+    _misses++;
+    return false;
+  }
+
+  private synchronized void remember(ByteBuffer key, X509Certificate[] chain,
+          SSLParameters parameters)
+  {
+    long expiry = System.currentTimeMillis() + _ttlMillis;
+    if (chain.length > 0) {
+      expiry = Math.min(expiry, chain[0].getNotAfter().getTime());
+    }
+    _validated.put(key, new Validation(expiry, constraints(parameters)));
+  }
+
+  private static AlgorithmConstraints constraints(SSLParameters parameters)
+  {
+    return parameters == null ? null : parameters.getAlgorithmConstraints();
+  }
+
+  private static SSLParameters parameters(Socket socket)
+  {
+    /* The delegate only checks more than the chain for connected SSL
+     sockets */
+    if (socket instanceof SSLSocket && socket.isConnected()) {
+      return ((SSLSocket) socket).getSSLParameters();
+    }
+    return null;
+  }
+
+  private static SSLSession handshakeSession(Socket socket)
+  {
+    if (socket instanceof SSLSocket && socket.isConnected()) {
+      return ((SSLSocket) socket).getHandshakeSession();
+    }
+    return null;
+  }
+
+  private static ByteBuffer key(String side, X509Certificate[] chain, String authType,
+          SSLParameters parameters, SSLSession session) throws CertificateException
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new CertificateException(e);
+    }
+    update(digest, side);
+    update(digest, authType);
+    if (parameters != null) {
+      update(digest, parameters.getEndpointIdentificationAlgorithm());
+    }
+    if (session != null) {
+      /* What the delegate checks the chain against during the handshake:
+       the host to identify and the signature algorithms both sides offered */
+      update(digest, session.getPeerHost());
+      if (session instanceof ExtendedSSLSession) {
+        ExtendedSSLSession extended = (ExtendedSSLSession) session;
+        update(digest, String.valueOf(extended.getRequestedServerNames()));
+        update(digest, Arrays.toString(extended.getLocalSupportedSignatureAlgorithms()));
+        update(digest, Arrays.toString(extended.getPeerSupportedSignatureAlgorithms()));
+      }
+    }
+    for (X509Certificate certificate : chain) {
+      try {
+        digest.update(certificate.getEncoded());
+      } catch (CertificateEncodingException e) {
+        throw new CertificateException(e);
+      }
+    }
+    return ByteBuffer.wrap(digest.digest());
+  }
+
+  private static void update(MessageDigest digest, String value)
+  {
+    digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+  }
+
+  private static class Validation
+  {
+    final long expiry;
+    final AlgorithmConstraints constraints;
+
+    Validation(long expiry, AlgorithmConstraints constraints)
+    {
+      this.expiry = expiry;
+      this.constraints = constraints;
+    }
+  }
+}
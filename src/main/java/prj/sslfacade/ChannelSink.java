@@ -0,0 +1,50 @@
+package prj.sslfacade;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import javax.net.ssl.SSLException;
+
+class ChannelSink implements IPlainDataEmitter
+{
+  /*
+   Writes plain data from IN_PLAIN straight to a channel, without the copy
+   that is made for ISSLListener.onPlainData. What a non-blocking channel
+   does not take is held back in Buffers, the Worker stops unwrapping
+   until it has been flushed so that no more than one record's worth of
+   plain data is ever held back.
+   */
+
+  private final WritableByteChannel _channel;
+  private final Buffers _buffers;
+
+  ChannelSink(WritableByteChannel channel, Buffers buffers)
+  {
+    _channel = channel;
+    _buffers = buffers;
+  }
+
+  @Override
+  public void emit(ByteBuffer internalPlainBuffer) throws SSLException
+  {
+    internalPlainBuffer.flip();
+    try {
+      if (_buffers.writeHeldBack(_channel)) {
+        while (internalPlainBuffer.hasRemaining() && _channel.write(internalPlainBuffer) > 0) {
+          //Until the channel is done or full
+        }
+      }
+    } catch (IOException e) {
+      throw new SSLException("Writing plain data to the sink failed", e);
+    }
+    if (internalPlainBuffer.hasRemaining()) {
+      _buffers.holdBack(internalPlainBuffer);
+    }
+  }
+
+  boolean flush() throws IOException
+  {
+    /* Returns true once nothing is held back any more */
+    return _buffers.writeHeldBack(_channel);
+  }
+}
@@ -0,0 +1,249 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+public class CipherSuiteProfiler
+{
+  /*
+   Measures how fast each enabled cipher suite of an SSLContext is on the
+   machine it runs on, so that the fastest suites can be preferred by the
+   server. Meant to be run once at startup.
+
+   Every suite is run over a pair of facades that are connected in memory,
+   a server facade created from the server context and a client facade
+   created from the client context, which must trust the server's
+   certificate. The pair is restricted to the one suite and to TLSv1.3 for
+   TLSv1.3 suites and TLSv1.2 otherwise. A number of full handshakes is
+   timed, then bulk data is encrypted by the client and decrypted by the
+   server. Suites that cannot be negotiated with the available keys are
+   reported as unsupported and left out of the preferred order.
+
+   Results are measured on the calling thread and include the cost of the
+   facade itself, they are meant for comparing suites with each other.
+   */
+
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private final SSLContext _serverContext;
+  private final SSLContext _clientContext;
+  private int _handshakes = 20;
+  private long _payloadBytes = 16L * 1024 * 1024;
+  private int _warmupRounds = 1;
+
+  public CipherSuiteProfiler(SSLContext context)
+  {
+    this(context, context);
+  }
+
+  public CipherSuiteProfiler(SSLContext serverContext, SSLContext clientContext)
+  {
+    _serverContext = serverContext;
+    _clientContext = clientContext;
+  }
+
+  public void setHandshakes(int handshakes)
+  {
+    _handshakes = handshakes;
+  }
+
+  public void setPayloadBytes(long payloadBytes)
+  {
+    _payloadBytes = payloadBytes;
+  }
+
+  public void setWarmupRounds(int warmupRounds)
+  {
+    /* Unmeasured rounds that give the JIT a chance to compile the crypto
+     code before it is measured */
+    _warmupRounds = warmupRounds;
+  }
+
+  public List<Result> profile()
+  {
+    return profile(_serverContext.getDefaultSSLParameters().getCipherSuites());
+  }
+
+  public List<Result> profile(String[] suites)
+  {
+    /* Returns one result per suite, the fastest bulk throughput first and
+     unsupported suites last */
+    List<Result> results = new ArrayList<Result>();
+    for (String suite : suites) {
+      if (suite.endsWith("_SCSV")) {
+        continue;
+      }
+      results.add(profile(suite));
+    }
+    Collections.sort(results, new Comparator<Result>()
+    {
+      @Override
+      public int compare(Result a, Result b)
+      {
+        if (a.isSupported() != b.isSupported()) {
+          return a.isSupported() ? -1 : 1;
+        }
+        return Double.compare(b.getMegabytesPerSecond(), a.getMegabytesPerSecond());
+      }
+    });
+    return results;
+  }
+
+  public static String[] preferredOrder(List<Result> results)
+  {
+    /* The supported suites, fastest first */
+    List<Result> sorted = new ArrayList<Result>(results);
+    Collections.sort(sorted, new Comparator<Result>()
+    {
+      @Override
+      public int compare(Result a, Result b)
+      {
+        return Double.compare(b.getMegabytesPerSecond(), a.getMegabytesPerSecond());
+      }
+    });
+    List<String> order = new ArrayList<String>();
+    for (Result result : sorted) {
+      if (result.isSupported()) {
+        order.add(result.getSuite());
+      }
+    }
+    return order.toArray(new String[order.size()]);
+  }
+
+  /* Privates */
+  private Result profile(String suite)
+  {
+    String protocol = suite.contains("_WITH_") ? "TLSv1.2" : "TLSv1.3";
+    try {
+      for (int i = 0; i < _warmupRounds; i++) {
+        handshakes(suite, protocol, 1);
+        transfer(suite, protocol, Math.min(_payloadBytes, 1024 * 1024));
+      }
+      double handshakesPerSecond = handshakes(suite, protocol, _handshakes);
+      double megabytesPerSecond = transfer(suite, protocol, _payloadBytes);
+      return new Result(suite, protocol, megabytesPerSecond, handshakesPerSecond, null);
+    } catch (SSLException e) {
+      return new Result(suite, protocol, 0, 0, e.getMessage());
+    } catch (IllegalArgumentException e) {
+      /* The suite or protocol is not known to the engine */
+      return new Result(suite, protocol, 0, 0, e.getMessage());
+    }
+  }
+
+  private double handshakes(String suite, String protocol, int count) throws SSLException
+  {
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      pair(suite, protocol).close();
+    }
+    return count / seconds(start);
+  }
+
+  private double transfer(String suite, String protocol, long bytes) throws SSLException
+  {
+    InMemoryPair pair = pair(suite, protocol);
+    ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    long start = System.nanoTime();
+    long sent = 0;
+    while (sent < bytes) {
+      chunk.clear();
+      chunk.limit((int) Math.min(CHUNK_SIZE, bytes - sent));
+      sent += chunk.remaining();
+      pair.send(chunk);
+    }
+    double elapsed = seconds(start);
+    pair.verify();
+    pair.close();
+    return sent / elapsed / (1024 * 1024);
+  }
+
+  private static double seconds(long start)
+  {
+    return Math.max(1, System.nanoTime() - start) / 1e9;
+  }
+
+  private InMemoryPair pair(String suite, String protocol) throws SSLException
+  {
+    return new InMemoryPair(createEngine(_clientContext, true, suite, protocol),
+            createEngine(_serverContext, false, suite, protocol));
+  }
+
+  private static SSLEngine createEngine(SSLContext context, boolean client, String suite,
+          String protocol)
+  {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(client);
+    SSLParameters parameters = context.getDefaultSSLParameters();
+    parameters.setCipherSuites(new String[]{suite});
+    parameters.setProtocols(new String[]{protocol});
+    engine.setSSLParameters(parameters);
+    return engine;
+  }
+
+  public static class Result
+  {
+    private final String _suite;
+    private final String _protocol;
+    private final double _megabytesPerSecond;
+    private final double _handshakesPerSecond;
+    private final String _failure;
+
+    Result(String suite, String protocol, double megabytesPerSecond,
+            double handshakesPerSecond, String failure)
+    {
+      _suite = suite;
+      _protocol = protocol;
+      _megabytesPerSecond = megabytesPerSecond;
+      _handshakesPerSecond = handshakesPerSecond;
+      _failure = failure;
+    }
+
+    public String getSuite()
+    {
+      return _suite;
+    }
+
+    public String getProtocol()
+    {
+      return _protocol;
+    }
+
+    public double getMegabytesPerSecond()
+    {
+      return _megabytesPerSecond;
+    }
+
+    public double getHandshakesPerSecond()
+    {
+      return _handshakesPerSecond;
+    }
+
+    public boolean isSupported()
+    {
+      return _failure == null;
+    }
+
+    public String getFailure()
+    {
+      /* Why the suite could not be measured, null if it was */
+      return _failure;
+    }
+
+    @Override
+    public String toString()
+    {
+      if (!isSupported()) {
+        return _suite + " (" + _protocol + "): unsupported, " + _failure;
+      }
+      return String.format("%s (%s): %.1f MB/s, %.1f handshakes/s",
+              _suite, _protocol, _megabytesPerSecond, _handshakesPerSecond);
+    }
+  }
+}
@@ -0,0 +1,481 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import prj.sslfacade.timer.HashedTimerWheel;
+import prj.sslfacade.timer.Timeout;
+
+public class DTLSFacade
+{
+  /*
+   A facade for DTLS over datagram transports such as UDP. It offers the
+   same listeners as SSLFacade but works on datagrams instead of a byte
+   stream: every decrypt() takes exactly one received datagram and every
+   ISSLListener.onWrappedData call is exactly one datagram to send. There
+   is no unwrap cache, a datagram is never continued by the next one and
+   whatever cannot be unwrapped of it is dropped, which DTLS tolerates.
+
+   Records are written into a datagram buffer of the maximum packet size,
+   the MTU the host application passes in, and as many records as fit are
+   sent in one datagram. This holds for the records of a handshake flight
+   as well as for the messages passed to one encrypt() call.
+
+   Datagrams get lost, so a handshake flight has to be sent again when
+   the peer's answer does not arrive in time. retransmit() does that and
+   can be driven by a HashedTimerWheel set with setRetransmission(), the
+   timeout doubles with every retransmission up to its maximum and starts
+   over with the next flight.
+
+   close() sends a close_notify and then tells the close listener that the
+   session is over. terminate() ends the session without sending anything
+   and without telling the close listener, like SSLFacade.terminate() the
+   host application calls it when it already knows the session is gone.
+
+   Like SSLFacade this is not thread-safe and is meant to be used from the
+   thread that owns the transport and ticks the wheel.
+   */
+
+  private static final String TAG = "DTLSFacade";
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SSLEngine _engine;
+  private final Buffers _buffers;
+  private final ByteBuffer _datagram;
+  private final ITaskHandler _taskHandler;
+  private ISSLListener _listener;
+  private IHandshakeCompletedListener _hcl;
+  private ISessionClosedListener _scl;
+  private final List<ByteBuffer> _queuedWrites = new ArrayList<ByteBuffer>();
+  private final CompletableFuture<SSLSession> _handshakeFuture = new CompletableFuture<SSLSession>();
+  private boolean _finished;
+  private boolean _tasksPending;
+  private boolean _closed;
+  /* Retransmission */
+  private HashedTimerWheel _wheel;
+  private long _initialTimeoutNanos;
+  private long _maxTimeoutNanos;
+  private long _timeoutNanos;
+  private Timeout _retransmitTimeout;
+  private long _retransmits;
+
+  public DTLSFacade(SSLContext context, boolean client, int maximumPacketSize,
+          ITaskHandler taskHandler)
+  {
+    this(makeEngine(context, client), maximumPacketSize, taskHandler);
+  }
+
+  public DTLSFacade(SSLEngine engine, int maximumPacketSize, ITaskHandler taskHandler)
+  {
+    /* The engine has to come from a DTLS SSLContext */
+    SSLParameters parameters = engine.getSSLParameters();
+    parameters.setMaximumPacketSize(maximumPacketSize);
+    engine.setSSLParameters(parameters);
+    _engine = engine;
+    _buffers = new Buffers(engine.getSession());
+    _datagram = ByteBuffer.allocate(maximumPacketSize);
+    _taskHandler = taskHandler;
+  }
+
+  private void debug(final String message, final String... args)
+  {
+    SSLLog.debug(TAG, message, args);
+  }
+
+  public boolean isClientMode()
+  {
+    return _engine.getUseClientMode();
+  }
+
+  public void setHandshakeCompletedListener(IHandshakeCompletedListener hcl)
+  {
+    _hcl = hcl;
+  }
+
+  public void setSSLListener(ISSLListener l)
+  {
+    _listener = l;
+  }
+
+  public void setCloseListener(ISessionClosedListener l)
+  {
+    _scl = l;
+  }
+
+  public void setBufferBudget(BufferBudget budget) throws SSLException
+  {
+    _buffers.setBudget(budget);
+  }
+
+  public void setRetransmission(HashedTimerWheel wheel, long initialTimeout, long maxTimeout,
+          TimeUnit unit)
+  {
+    /* Retransmits handshake flights from the wheel, RFC 6347 suggests an
+     initial timeout of one second and a maximum of 60 */
+    _wheel = wheel;
+    _initialTimeoutNanos = unit.toNanos(initialTimeout);
+    _maxTimeoutNanos = unit.toNanos(maxTimeout);
+    _timeoutNanos = _initialTimeoutNanos;
+  }
+
+  public void beginHandshake() throws SSLException
+  {
+    try {
+      _engine.beginHandshake();
+      shakehands();
+      flushDatagram();
+    } catch (SSLException e) {
+      failHandshake(e);
+      throw e;
+    }
+  }
+
+  public CompletableFuture<SSLSession> getHandshakeFuture()
+  {
+    return _handshakeFuture;
+  }
+
+  public boolean isHandshakeCompleted()
+  {
+    return _finished;
+  }
+
+  public void encrypt(ByteBuffer... messages) throws SSLException
+  {
+    /* Every message goes into a record of its own, a message larger than
+     a record can hold is split over several. The records are sent in as
+     few datagrams as possible. Messages encrypted before the handshake
+     has completed are queued and sent right after it. */
+    if (_closed) {
+      throw new SSLException("Session closed");
+    }
+    if (!_finished) {
+      for (ByteBuffer message : messages) {
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+        copy.put(message);
+        copy.flip();
+        _queuedWrites.add(copy);
+      }
+      return;
+    }
+    for (ByteBuffer message : messages) {
+      while (message.hasRemaining()) {
+        SSLEngineResult result = wrap(message);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+          throw new SSLException("Session closed");
+        }
+      }
+    }
+    flushDatagram();
+  }
+
+  public void decrypt(ByteBuffer datagram) throws SSLException
+  {
+    /* Unwraps the records of one received datagram */
+    try {
+      while (datagram.hasRemaining() && !_tasksPending) {
+        ByteBuffer plainText = _buffers.get(BufferType.IN_PLAIN);
+        plainText.clear();
+        SSLEngineResult result = _engine.unwrap(datagram, plainText);
+        debug("decrypt: unwrap result=" + result);
+        boolean more = handleUnwrapResult(result);
+        if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+          shakehands();
+        }
+        if (!more) {
+          break;
+        }
+      }
+      flushDatagram();
+    } catch (SSLException e) {
+      failHandshake(e);
+      throw e;
+    }
+  }
+
+  public void retransmit() throws SSLException
+  {
+    /* Sends the last handshake flight again, for when the peer's answer
+     has not arrived in time. Does nothing once the handshake is no longer
+     waiting for the peer. */
+    cancelRetransmission();
+    if (_closed || _engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+      return;
+    }
+    _retransmits++;
+    _timeoutNanos = Math.min(2 * _timeoutNanos, _maxTimeoutNanos);
+    SSLEngineResult result;
+    do {
+      result = wrap(EMPTY);
+    } while (result.bytesProduced() > 0
+            && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+    flushDatagram();
+    scheduleRetransmission();
+  }
+
+  public long getRetransmitCount()
+  {
+    return _retransmits;
+  }
+
+  public void close()
+  {
+    /* Sends a close_notify alert */
+    cancelRetransmission();
+    _engine.closeOutbound();
+    try {
+      SSLEngineResult result;
+      do {
+        result = wrap(EMPTY);
+      } while (result.bytesProduced() > 0 && !_engine.isOutboundDone());
+      flushDatagram();
+    } catch (SSLException ignore) {
+    }
+    failHandshake(new SSLException("Session closed before the handshake completed"));
+    notifyClosed();
+  }
+
+  public void terminate()
+  {
+    /* Ends the session without sending anything, the close listener is
+     not called */
+    _closed = true;
+    _queuedWrites.clear();
+    cancelRetransmission();
+    _engine.closeOutbound();
+    try {
+      _engine.closeInbound();
+    } catch (SSLException ignore) {
+    }
+    _buffers.releaseBudget();
+    failHandshake(new SSLException("Session terminated"));
+  }
+
+  public boolean isCloseCompleted()
+  {
+    return _engine.isOutboundDone();
+  }
+
+  /* Privates */
+  private void shakehands() throws SSLException
+  {
+    while (true) {
+      debug("shakehands : " + _engine.getHandshakeStatus());
+      switch (_engine.getHandshakeStatus()) {
+        case NEED_TASK:
+          runTasks();
+          return;
+        case NEED_WRAP:
+          //A new flight, the peer's answer to it gets the initial timeout
+          cancelRetransmission();
+          _timeoutNanos = _initialTimeoutNanos;
+          SSLEngineResult wrapped = wrap(EMPTY);
+          if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+            notifyClosed();
+            return;
+          }
+          if (wrapped.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeFinished();
+          }
+          break;
+        case NEED_UNWRAP_AGAIN:
+          //Records the engine has buffered from earlier datagrams
+          ByteBuffer plainText = _buffers.get(BufferType.IN_PLAIN);
+          plainText.clear();
+          handleUnwrapResult(_engine.unwrap(EMPTY, plainText));
+          break;
+        case NEED_UNWRAP:
+          scheduleRetransmission();
+          return;
+        default:
+          return;
+      }
+    }
+  }
+
+  private void runTasks() throws SSLException
+  {
+    if (_tasksPending) {
+      return;
+    }
+    _tasksPending = true;
+    _taskHandler.process(new ITasks()
+    {
+      @Override
+      public Runnable next()
+      {
+        return _engine.getDelegatedTask();
+      }
+
+      @Override
+      public void done() throws SSLException
+      {
+        _tasksPending = false;
+        shakehands();
+        flushDatagram();
+      }
+    });
+  }
+
+  private boolean handleUnwrapResult(SSLEngineResult result) throws SSLException
+  {
+    /* Returns true if the rest of the datagram is worth unwrapping */
+    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+      handshakeFinished();
+    }
+    switch (result.getStatus()) {
+      case OK:
+        if (result.bytesProduced() > 0) {
+          emitPlainData();
+        }
+        return result.bytesConsumed() > 0;
+      case BUFFER_OVERFLOW:
+        _buffers.grow(BufferType.IN_PLAIN);
+        return true;
+      case CLOSED:
+        notifyClosed();
+        return false;
+      default:
+        //A truncated record, the rest of the datagram is dropped
+        return false;
+    }
+  }
+
+  private SSLEngineResult wrap(ByteBuffer plainData) throws SSLException
+  {
+    /* Wraps one record and adds it to the datagram */
+    SSLEngineResult result;
+    ByteBuffer cipherText;
+    do {
+      cipherText = _buffers.get(BufferType.OUT_CIPHER);
+      cipherText.clear();
+      result = _engine.wrap(plainData, cipherText);
+      debug("wrap: result=" + result);
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+        _buffers.grow(BufferType.OUT_CIPHER);
+      }
+    } while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
+    cipherText.flip();
+    if (cipherText.hasRemaining()) {
+      addRecord(cipherText);
+    }
+    return result;
+  }
+
+  private void addRecord(ByteBuffer record)
+  {
+    if (record.remaining() > _datagram.remaining()) {
+      flushDatagram();
+    }
+    if (record.remaining() > _datagram.remaining()) {
+      //Larger than the maximum packet size, can only go out on its own
+      _listener.onWrappedData(copy(record));
+    } else {
+      _datagram.put(record);
+    }
+  }
+
+  private void flushDatagram()
+  {
+    if (_datagram.position() > 0) {
+      _datagram.flip();
+      ByteBuffer datagram = copy(_datagram);
+      _datagram.clear();
+      _listener.onWrappedData(datagram);
+    }
+  }
+
+  private void emitPlainData()
+  {
+    ByteBuffer plainText = _buffers.get(BufferType.IN_PLAIN);
+    plainText.flip();
+    _listener.onPlainData(copy(plainText));
+  }
+
+  private void handshakeFinished() throws SSLException
+  {
+    if (_finished) {
+      return;
+    }
+    _finished = true;
+    cancelRetransmission();
+    for (ByteBuffer write : _queuedWrites) {
+      while (write.hasRemaining()) {
+        wrap(write);
+      }
+    }
+    _queuedWrites.clear();
+    if (_hcl != null) {
+      _hcl.onComplete();
+    }
+    _handshakeFuture.complete(_engine.getSession());
+  }
+
+  private void scheduleRetransmission()
+  {
+    if (_wheel == null || _retransmitTimeout != null || _finished) {
+      return;
+    }
+    _retransmitTimeout = _wheel.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _retransmitTimeout = null;
+        try {
+          retransmit();
+        } catch (SSLException e) {
+          failHandshake(e);
+        }
+      }
+    }, _timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void cancelRetransmission()
+  {
+    if (_retransmitTimeout != null) {
+      _retransmitTimeout.cancel();
+      _retransmitTimeout = null;
+    }
+  }
+
+  private void notifyClosed()
+  {
+    if (!_closed) {
+      _closed = true;
+      cancelRetransmission();
+      _buffers.releaseBudget();
+      if (_scl != null) {
+        _scl.onSessionClosed();
+      }
+    }
+  }
+
+  private void failHandshake(SSLException e)
+  {
+    _handshakeFuture.completeExceptionally(e);
+  }
+
+  private static ByteBuffer copy(ByteBuffer data)
+  {
+    ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+    copy.put(data);
+    copy.flip();
+    return copy;
+  }
+
+  private static SSLEngine makeEngine(SSLContext context, boolean client)
+  {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(client);
+    return engine;
+  }
+}
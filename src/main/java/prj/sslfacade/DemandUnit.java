@@ -0,0 +1,19 @@
+package prj.sslfacade;
+
+public enum DemandUnit
+{
+    /* Defines what the demand requested via SSLFacade.request() counts. */
+
+    /*
+    Every onPlainData callback, i.e. every decrypted TLS record, uses up one
+    unit of demand.
+    */
+    RECORDS,
+
+    /*
+    Every plain byte delivered uses up one unit of demand. A record is never
+    split, so the last record delivered may overshoot the demand; the
+    overshoot is deducted from the next request.
+    */
+    BYTES
+}
@@ -0,0 +1,147 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+public class DirectBufferArena implements IBufferAllocator
+{
+  /*
+   An IBufferAllocator that hands out direct buffers, so that socket reads
+   and writes from and into them do not go through the temporary direct
+   buffers the JDK uses for heap buffers. An arena can be owned by one
+   facade or shared by many of them.
+
+   The arena never allocates more than its capacity of native memory.
+   Buffers come in power of two size classes and a released buffer goes
+   back to the free list of its class to be handed out again, facades
+   return their buffers as soon as their session has ended or they are
+   terminated instead of leaving them to the garbage collector. Once the
+   capacity is in use further requests are served from the heap, they are
+   counted as fallbacks. trim() drops the free buffers, their native memory
+   is then reclaimed along with them.
+
+   The arena keeps track of the direct buffers it has handed out. Releasing
+   one twice, or one that another arena handed out, would put it on a free
+   list while it is still used elsewhere and is refused with an
+   IllegalStateException.
+
+   Arenas are thread-safe since a shared arena is expected to be used by
+   facades that live on different threads.
+   */
+
+  private static final int MIN_CLASS_SHIFT = 12;
+  private static final int MAX_CLASS_SHIFT = 30;
+
+  private final long _capacity;
+  private final ArrayDeque<ByteBuffer>[] _free;
+  private final Set<ByteBuffer> _outstanding
+          = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+  private long _allocated;
+  private long _inUse;
+  private long _fallbacks;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public DirectBufferArena(long capacity)
+  {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Arena capacity must be positive: " + capacity);
+    }
+    _capacity = capacity;
+    _free = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    for (int i = 0; i < _free.length; i++) {
+      _free[i] = new ArrayDeque<ByteBuffer>();
+    }
+  }
+
+  @Override
+  public synchronized ByteBuffer allocate(int capacity)
+  {
+    int sizeClass = sizeClass(capacity);
+    ByteBuffer buffer = sizeClass < 0 ? null : _free[sizeClass].poll();
+    if (buffer == null) {
+      int size = sizeClass < 0 ? 0 : 1 << (sizeClass + MIN_CLASS_SHIFT);
+      if (sizeClass < 0 || _allocated + size > _capacity) {
+        _fallbacks++;
+        return ByteBuffer.allocate(capacity);
+      }
+      _allocated += size;
+      buffer = ByteBuffer.allocateDirect(size);
+    }
+    _inUse += buffer.capacity();
+    _outstanding.add(buffer);
+    buffer.clear();
+    return buffer;
+  }
+
+  @Override
+  public synchronized void release(ByteBuffer buffer)
+  {
+    /* Heap buffers are fallbacks and left to the garbage collector */
+    if (buffer != null && buffer.isDirect() && isClassSize(buffer.capacity())) {
+      if (!_outstanding.remove(buffer)) {
+        throw new IllegalStateException("Buffer released twice or not handed out by this arena");
+      }
+      _inUse -= buffer.capacity();
+      _free[sizeClass(buffer.capacity())].add(buffer);
+    }
+  }
+
+  public synchronized long trim()
+  {
+    /* Drops all free buffers and returns the number of bytes dropped */
+    long trimmed = 0;
+    for (ArrayDeque<ByteBuffer> free : _free) {
+      for (ByteBuffer buffer : free) {
+        trimmed += buffer.capacity();
+      }
+      free.clear();
+    }
+    _allocated -= trimmed;
+    return trimmed;
+  }
+
+  public long getCapacity()
+  {
+    return _capacity;
+  }
+
+  public synchronized long getAllocated()
+  {
+    /* Native memory held by the arena, in use or free */
+    return _allocated;
+  }
+
+  public synchronized long getInUse()
+  {
+    return _inUse;
+  }
+
+  public synchronized long getFallbacks()
+  {
+    return _fallbacks;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "DirectBufferArena[inUse=" + _inUse + ", allocated=" + _allocated
+            + ", capacity=" + _capacity + "]";
+  }
+
+  /* Privates */
+  private static boolean isClassSize(int capacity)
+  {
+    return Integer.bitCount(capacity) == 1 && capacity >= 1 << MIN_CLASS_SHIFT
+            && capacity <= 1 << MAX_CLASS_SHIFT;
+  }
+
+  private static int sizeClass(int capacity)
+  {
+    /* -1 for sizes beyond the largest class */
+    int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+    return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+  }
+}
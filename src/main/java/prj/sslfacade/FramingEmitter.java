@@ -0,0 +1,128 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLException;
+
+class FramingEmitter implements IPlainDataEmitter
+{
+  /*
+   Splits plain data into length prefixed frames before it reaches
+   ISSLListener.onPlainData, one call per complete frame. A frame that
+   lies within the plain data of one record is handed out as a view of
+   IN_PLAIN, without a copy, which makes it only valid for the duration
+   of the call. Only a frame that spans records is assembled in a buffer
+   of its own, which is reused for the next such frame.
+   */
+
+  private final LengthFieldFraming _framing;
+  private final ISSLListener _listener;
+  private ByteBuffer _partial;
+  private int _frameLength;
+
+  FramingEmitter(LengthFieldFraming framing, ISSLListener listener)
+  {
+    _framing = framing;
+    _listener = listener;
+  }
+
+  @Override
+  public void emit(ByteBuffer internalPlainBuffer) throws SSLException
+  {
+    internalPlainBuffer.flip();
+    if (_frameLength > 0 && !assemble(internalPlainBuffer)) {
+      return;
+    }
+    int headerLength = _framing.getHeaderLength();
+    while (internalPlainBuffer.hasRemaining()) {
+      int start = internalPlainBuffer.position();
+      if (internalPlainBuffer.remaining() < headerLength) {
+        begin(internalPlainBuffer, headerLength);
+        return;
+      }
+      int frameLength = frameLength(internalPlainBuffer, start);
+      if (internalPlainBuffer.remaining() < frameLength) {
+        begin(internalPlainBuffer, frameLength);
+        return;
+      }
+      ByteBuffer frame = internalPlainBuffer.duplicate();
+      frame.limit(start + frameLength);
+      internalPlainBuffer.position(start + frameLength);
+      _listener.onPlainData(frame.slice());
+    }
+  }
+
+  /* Privates */
+  private void begin(ByteBuffer data, int needed)
+  {
+    /* Starts assembling a frame, needed is the header length while the
+     frame length is not known yet */
+    if (_partial == null || _partial.capacity() < needed) {
+      _partial = ByteBuffer.allocate(Math.max(needed, _framing.getHeaderLength()));
+    }
+    _partial.clear();
+    _partial.limit(needed);
+    _partial.put(data);
+    _frameLength = needed;
+  }
+
+  private boolean assemble(ByteBuffer data) throws SSLException
+  {
+    /* Continues the frame that spans records, returns true once it has
+     been delivered */
+    copy(data);
+    if (_partial.hasRemaining()) {
+      return false;
+    }
+    if (_partial.position() == _framing.getHeaderLength() && _frameLength == _partial.position()) {
+      //The header is complete, now the length of the frame is known
+      int frameLength = frameLength(_partial, 0);
+      if (frameLength > _partial.position()) {
+        grow(frameLength);
+        copy(data);
+        if (_partial.hasRemaining()) {
+          return false;
+        }
+      }
+    }
+    _partial.flip();
+    _frameLength = 0;
+    _listener.onPlainData(_partial);
+    return true;
+  }
+
+  private void copy(ByteBuffer data)
+  {
+    int n = Math.min(_partial.remaining(), data.remaining());
+    ByteBuffer part = data.duplicate();
+    part.limit(part.position() + n);
+    _partial.put(part);
+    data.position(data.position() + n);
+  }
+
+  private void grow(int frameLength)
+  {
+    if (_partial.capacity() < frameLength) {
+      ByteBuffer grown = ByteBuffer.allocate(frameLength);
+      _partial.flip();
+      grown.put(_partial);
+      _partial = grown;
+    }
+    _partial.limit(frameLength);
+    _frameLength = frameLength;
+  }
+
+  private int frameLength(ByteBuffer data, int start) throws SSLException
+  {
+    int headerLength = _framing.getHeaderLength();
+    long length = 0;
+    for (int i = _framing.getLengthFieldOffset(); i < headerLength; i++) {
+      length = (length << 8) | (data.get(start + i) & 0xff);
+    }
+    long frameLength = headerLength + length;
+    if (frameLength > _framing.getMaxFrameLength()) {
+      throw new SSLException("Frame of " + frameLength + " bytes exceeds the maximum of "
+              + _framing.getMaxFrameLength());
+    }
+    return (int) frameLength;
+  }
+}
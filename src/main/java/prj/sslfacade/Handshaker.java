@@ -16,7 +16,7 @@ class Handshaker
    */
 
   private final static String TAG  = "Handshaker";
-  private final ITaskHandler _taskHandler;
+  private ITaskHandler _taskHandler;
   private final Worker _worker;
   private boolean _finished;
   private IHandshakeCompletedListener _hscl;
@@ -36,28 +36,63 @@ class Handshaker
     SSLLog.debug(TAG, msg, args);
   }
 
+  /*
+   Output produced while handshaking is corked by the worker so that each
+   flight is emitted as one buffer. The cork is flushed when returning to
+   the caller, which is also where the handshake ends up when it has to
+   wait for the peer or for tasks the host application runs elsewhere.
+   */
   void begin() throws SSLException
   {
     _worker.beginHandshake();
-    shakehands();
+    _worker.cork();
+    try {
+      shakehands();
+    } finally {
+      _worker.uncork();
+    }
   }
 
   void carryOn() throws SSLException
   {
     debug("carryOn");
-    shakehands();
+    _worker.cork();
+    try {
+      shakehands();
+    } finally {
+      _worker.uncork();
+    }
   }
 
   void handleUnwrapResult(SSLEngineResult result) throws SSLException
   {
     debug("handleUnwrapResult");
-    if (result.getHandshakeStatus().equals(SSLEngineResult.HandshakeStatus.FINISHED)) {
-      handshakeFinished();
-    } else {
-      shakehands();
+    _worker.cork();
+    try {
+      if (result.getHandshakeStatus().equals(SSLEngineResult.HandshakeStatus.FINISHED)) {
+        handshakeFinished();
+      } else {
+        shakehands();
+      }
+    } finally {
+      _worker.uncork();
     }
   }
 
+  void reset(boolean client, ITaskHandler taskHandler)
+  {
+    /* Tasks handed out for the previous engine must not be completed
+     after this */
+    _client = client;
+    _taskHandler = taskHandler;
+    _finished = false;
+  }
+
+  ITaskHandler getTaskHandler()
+  {
+    return _taskHandler;
+  }
+
   void addCompletedListener(IHandshakeCompletedListener hscl)
   {
     _hscl = hscl;
@@ -107,7 +142,8 @@ class Handshaker
           if (u_result.getHandshakeStatus().equals(SSLEngineResult.HandshakeStatus.FINISHED)) {
             handshakeFinished();
           }
-          if (u_result.getStatus().equals(SSLEngineResult.Status.OK)) {
+          if (u_result.getStatus().equals(SSLEngineResult.Status.OK)
+                  && !Worker.isDeferred(u_result)) {
             shakehands();
           }
         } else {
@@ -117,9 +153,10 @@ class Handshaker
     }
   }
 
-  private void handshakeFinished()
+  private void handshakeFinished() throws SSLException
   {
     _finished = true;
+    _worker.flushQueuedWrites();
     _hscl.onComplete();
   }
 
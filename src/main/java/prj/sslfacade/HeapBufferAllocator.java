@@ -0,0 +1,24 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+
+class HeapBufferAllocator implements IBufferAllocator
+{
+  /* The default, heap buffers that are left to the garbage collector */
+  static final HeapBufferAllocator INSTANCE = new HeapBufferAllocator();
+
+  private HeapBufferAllocator()
+  {
+  }
+
+  @Override
+  public ByteBuffer allocate(int capacity)
+  {
+    return ByteBuffer.allocate(capacity);
+  }
+
+  @Override
+  public void release(ByteBuffer buffer)
+  {
+  }
+}
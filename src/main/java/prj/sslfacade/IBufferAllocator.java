@@ -0,0 +1,17 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Supplies the buffers a facade works with. Buffers are handed back with
+ * release() once the facade no longer uses them, which happens when its
+ * session has ended, when it is terminated and when a buffer is replaced
+ * by a larger one. An allocator may hand out buffers with a larger
+ * capacity than was asked for.
+ */
+public interface IBufferAllocator
+{
+    ByteBuffer allocate(int capacity);
+
+    void release(ByteBuffer buffer);
+}
@@ -0,0 +1,13 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides where the plain data of an unwrap goes. Called with IN_PLAIN in
+ * write mode, the bytes up to its position are the plain data.
+ */
+interface IPlainDataEmitter
+{
+    void emit(ByteBuffer internalPlainBuffer) throws SSLException;
+}
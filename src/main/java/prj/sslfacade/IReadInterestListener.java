@@ -0,0 +1,13 @@
+package prj.sslfacade;
+
+/**
+ * Informs the host application when it should stop and resume reading from
+ * its transport because the consumer of plain data has no outstanding
+ * demand.
+ */
+public interface IReadInterestListener
+{
+    void onPauseReads();
+
+    void onResumeReads();
+}
@@ -3,6 +3,8 @@ package prj.sslfacade;
 import javax.net.ssl.SSLException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import javax.net.ssl.SSLSession;
 
 public interface ISSLFacade
 {
@@ -14,6 +16,8 @@ public interface ISSLFacade
 
     void beginHandshake() throws IOException;
 
+    CompletableFuture<SSLSession> getHandshakeFuture();
+
     boolean isHandshakeCompleted();
 
     void encrypt(ByteBuffer plainData) throws SSLException;
@@ -22,6 +26,10 @@ public interface ISSLFacade
 
     void close();
 
+    CompletableFuture<Void> closeAsync();
+
+    CompletableFuture<Void> getPeerCloseFuture();
+
     boolean isCloseCompleted();
     
     boolean isClientMode();
@@ -0,0 +1,121 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+class InMemoryPair
+{
+  /*
+   A client and a server facade connected in memory, shared by the
+   profiler and the load generator. Wrapped data is queued and forwarded
+   by pump() instead of from within the callbacks, so that neither facade
+   is re-entered. Plain data is only counted, the caller checks that all
+   of it arrived.
+   */
+
+  final SSLFacade client;
+  final SSLFacade server;
+  private final ArrayDeque<ByteBuffer> _toServer = new ArrayDeque<ByteBuffer>();
+  private final ArrayDeque<ByteBuffer> _toClient = new ArrayDeque<ByteBuffer>();
+  long clientSent;
+  long clientReceived;
+  long serverReceived;
+
+  InMemoryPair(SSLContext clientContext, SSLContext serverContext) throws SSLException
+  {
+    this(new SSLFacade(clientContext, true, false, new DefaultTaskHandler()),
+            new SSLFacade(serverContext, false, false, new DefaultTaskHandler()));
+  }
+
+  InMemoryPair(SSLEngine clientEngine, SSLEngine serverEngine) throws SSLException
+  {
+    this(new SSLFacade(clientEngine, new DefaultTaskHandler()),
+            new SSLFacade(serverEngine, new DefaultTaskHandler()));
+  }
+
+  private InMemoryPair(SSLFacade client, SSLFacade server) throws SSLException
+  {
+    /* Returns with the handshake completed */
+    this.client = client;
+    this.server = server;
+    client.setSSLListener(new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(ByteBuffer wrappedBytes)
+      {
+        _toServer.add(wrappedBytes);
+      }
+
+      @Override
+      public void onPlainData(ByteBuffer plainBytes)
+      {
+        clientReceived += plainBytes.remaining();
+      }
+    });
+    server.setSSLListener(new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(ByteBuffer wrappedBytes)
+      {
+        _toClient.add(wrappedBytes);
+      }
+
+      @Override
+      public void onPlainData(ByteBuffer plainBytes)
+      {
+        serverReceived += plainBytes.remaining();
+      }
+    });
+    server.beginHandshake();
+    client.beginHandshake();
+    pump();
+    if (!client.isHandshakeCompleted() || !server.isHandshakeCompleted()) {
+      throw new SSLException("Handshake did not complete");
+    }
+  }
+
+  void pump() throws SSLException
+  {
+    while (!_toServer.isEmpty() || !_toClient.isEmpty()) {
+      while (!_toServer.isEmpty()) {
+        server.decrypt(_toServer.poll());
+      }
+      while (!_toClient.isEmpty()) {
+        client.decrypt(_toClient.poll());
+      }
+    }
+  }
+
+  void send(ByteBuffer plainData) throws SSLException
+  {
+    /* Encrypts on the client and decrypts on the server */
+    clientSent += plainData.remaining();
+    client.encrypt(plainData);
+    pump();
+  }
+
+  void verify() throws SSLException
+  {
+    if (serverReceived != clientSent) {
+      throw new SSLException("Only " + serverReceived + " of " + clientSent + " bytes arrived");
+    }
+  }
+
+  void close() throws SSLException
+  {
+    /* Closes both sides with close_notify */
+    client.close();
+    pump();
+    server.close();
+    pump();
+  }
+
+  void terminate()
+  {
+    client.terminate();
+    server.terminate();
+  }
+}
@@ -0,0 +1,55 @@
+package prj.sslfacade;
+
+public class LengthFieldFraming
+{
+  /*
+   Describes a length prefixed framing of the plain data, for
+   SSLFacade.setLengthFieldFraming(). A frame starts with a header of
+   lengthFieldOffset bytes followed by the length field, an unsigned big
+   endian integer of lengthFieldLength bytes that holds the number of
+   bytes following it. Frames are delivered whole, header included, and
+   a frame longer than maxFrameLength fails the decrypt with an
+   SSLException.
+   */
+
+  private final int _lengthFieldOffset;
+  private final int _lengthFieldLength;
+  private final int _maxFrameLength;
+
+  public LengthFieldFraming(int lengthFieldOffset, int lengthFieldLength, int maxFrameLength)
+  {
+    if (lengthFieldOffset < 0) {
+      throw new IllegalArgumentException("Negative length field offset: " + lengthFieldOffset);
+    }
+    if (lengthFieldLength < 1 || lengthFieldLength > 4) {
+      throw new IllegalArgumentException("Length fields of 1 to 4 bytes are supported: " + lengthFieldLength);
+    }
+    if (maxFrameLength < lengthFieldOffset + lengthFieldLength) {
+      throw new IllegalArgumentException("Frames of at most " + maxFrameLength
+              + " bytes cannot hold the header");
+    }
+    _lengthFieldOffset = lengthFieldOffset;
+    _lengthFieldLength = lengthFieldLength;
+    _maxFrameLength = maxFrameLength;
+  }
+
+  public int getLengthFieldOffset()
+  {
+    return _lengthFieldOffset;
+  }
+
+  public int getLengthFieldLength()
+  {
+    return _lengthFieldLength;
+  }
+
+  public int getMaxFrameLength()
+  {
+    return _maxFrameLength;
+  }
+
+  int getHeaderLength()
+  {
+    return _lengthFieldOffset + _lengthFieldLength;
+  }
+}
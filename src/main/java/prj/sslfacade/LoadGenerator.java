@@ -0,0 +1,445 @@
+package prj.sslfacade;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+public class LoadGenerator
+{
+  /*
+   Runs many client and server facade pairs that are connected in memory
+   on a number of threads, to see how handshakes and bulk throughput scale
+   with connections and cores and to size hardware. No network is
+   involved, what is measured is the facade and the JSSE engine.
+
+   The connections are spread evenly over the threads and every thread
+   drives only its own pairs, the way an event loop per core would. A run
+   has two phases that all threads start together:
+
+   - Handshakes: every thread creates its pairs and completes their
+     handshakes one after the other. All pairs stay open afterwards.
+   - Transfer: every thread goes round its pairs, the client encrypts a
+     chunk and the server decrypts it, until the transfer time is over.
+
+   Per phase the result has the rate, the p50/p99/p999 latency of a single
+   operation, a handshake or a chunk, and the bytes allocated per second.
+   After the handshakes the live heap per connection is taken from the
+   heap in use after a GC, so run with a heap large enough for the number
+   of connections and with nothing else in the JVM.
+
+   After the transfer every server has to have received all the bytes its
+   client encrypted, and a failure on any thread ends the run with that
+   failure, otherwise run() throws.
+   */
+
+  private final SSLContext _serverContext;
+  private final SSLContext _clientContext;
+  private int _connections = 1000;
+  private int _threads = Runtime.getRuntime().availableProcessors();
+  private int _chunkSize = 16 * 1024;
+  private long _transferNanos = TimeUnit.SECONDS.toNanos(10);
+
+  public LoadGenerator(SSLContext context)
+  {
+    this(context, context);
+  }
+
+  public LoadGenerator(SSLContext serverContext, SSLContext clientContext)
+  {
+    _serverContext = serverContext;
+    _clientContext = clientContext;
+  }
+
+  public void setConnections(int connections)
+  {
+    _connections = connections;
+  }
+
+  public void setThreads(int threads)
+  {
+    _threads = threads;
+  }
+
+  public void setChunkSize(int chunkSize)
+  {
+    _chunkSize = chunkSize;
+  }
+
+  public void setTransferTime(long time, TimeUnit unit)
+  {
+    _transferNanos = unit.toNanos(time);
+  }
+
+  public Result run() throws SSLException, InterruptedException
+  {
+    int threads = Math.max(1, Math.min(_threads, _connections));
+    CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+    List<Driver> drivers = new ArrayList<Driver>();
+    for (int i = 0; i < threads; i++) {
+      int connections = _connections / threads + (i < _connections % threads ? 1 : 0);
+      Driver driver = new Driver(connections, barrier);
+      driver.setName("load-generator-" + i);
+      driver.setDaemon(true);
+      drivers.add(driver);
+    }
+    long heapBefore = liveHeap();
+    for (Driver driver : drivers) {
+      driver.start();
+    }
+    Phase handshakes = phase(drivers, barrier);
+    long heapPerConnection = (liveHeap() - heapBefore) / Math.max(1, _connections);
+    Phase transfer = phase(drivers, barrier);
+    await(barrier, drivers);
+    for (Driver driver : drivers) {
+      driver.join();
+    }
+    return new Result(_connections, threads, handshakes, transfer, heapPerConnection);
+  }
+
+  /* Privates */
+  private Phase phase(List<Driver> drivers, CyclicBarrier barrier)
+          throws SSLException, InterruptedException
+  {
+    /* Starts the next phase on all drivers and waits for it to end */
+    await(barrier, drivers);
+    long start = System.nanoTime();
+    await(barrier, drivers);
+    double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+    Histogram latencies = new Histogram();
+    long operations = 0;
+    long bytes = 0;
+    long allocated = 0;
+    SSLException failure = failure(drivers, null);
+    if (failure != null) {
+      barrier.reset();
+      throw failure;
+    }
+    for (Driver driver : drivers) {
+      latencies.add(driver.latencies);
+      operations += driver.operations;
+      bytes += driver.bytes;
+      allocated += driver.allocated;
+    }
+    return new Phase(operations / seconds, bytes / seconds, allocated / seconds,
+            latencies.percentile(0.5), latencies.percentile(0.99), latencies.percentile(0.999));
+  }
+
+  private static void await(CyclicBarrier barrier, List<Driver> drivers)
+          throws SSLException, InterruptedException
+  {
+    try {
+      barrier.await();
+    } catch (BrokenBarrierException e) {
+      //The barrier is broken by a failing driver, report what it failed with
+      throw failure(drivers, e);
+    }
+  }
+
+  private static SSLException failure(List<Driver> drivers, BrokenBarrierException broken)
+  {
+    for (Driver driver : drivers) {
+      Throwable failure = driver.failure;
+      if (failure instanceof SSLException) {
+        return (SSLException) failure;
+      }
+      if (failure != null) {
+        return new SSLException("A load generator thread failed", failure);
+      }
+    }
+    return broken == null ? null : new SSLException("A load generator thread failed", broken);
+  }
+
+  private static long liveHeap()
+  {
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long allocatedBytes()
+  {
+    /* Bytes the calling thread has allocated so far, where the JVM keeps
+     count of that, -1 otherwise */
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+      if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+        return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  private class Driver extends Thread
+  {
+    /* Drives the pairs of one thread through both phases. The counters
+     of a phase are read by run() after the barrier at its end. */
+    private final int _count;
+    private final CyclicBarrier _barrier;
+    private final List<InMemoryPair> _pairs = new ArrayList<InMemoryPair>();
+    Histogram latencies;
+    long operations;
+    long bytes;
+    long allocated;
+    volatile Throwable failure;
+
+    Driver(int count, CyclicBarrier barrier)
+    {
+      _count = count;
+      _barrier = barrier;
+    }
+
+    @Override
+    public void run()
+    {
+      try {
+        _barrier.await();
+        measure(true);
+        _barrier.await();
+        _barrier.await();
+        measure(false);
+        _barrier.await();
+        _barrier.await();
+      } catch (Throwable t) {
+        //Lets the other threads and run() out of the barrier
+        if (failure == null && !(t instanceof BrokenBarrierException)) {
+          failure = t;
+        }
+        _barrier.reset();
+      } finally {
+        for (InMemoryPair pair : _pairs) {
+          pair.terminate();
+        }
+        _pairs.clear();
+      }
+    }
+
+    private void measure(boolean handshakes)
+    {
+      latencies = new Histogram();
+      operations = 0;
+      bytes = 0;
+      long allocatedBefore = allocatedBytes();
+      try {
+        if (handshakes) {
+          handshakes();
+        } else {
+          transfer();
+        }
+      } catch (Throwable t) {
+        failure = t;
+      }
+      allocated = allocatedBefore < 0 ? 0 : allocatedBytes() - allocatedBefore;
+    }
+
+    private void handshakes() throws SSLException
+    {
+      for (int i = 0; i < _count; i++) {
+        long start = System.nanoTime();
+        _pairs.add(new InMemoryPair(_clientContext, _serverContext));
+        latencies.record(System.nanoTime() - start);
+        operations++;
+      }
+    }
+
+    private void transfer() throws SSLException
+    {
+      ByteBuffer chunk = ByteBuffer.allocate(_chunkSize);
+      long end = System.nanoTime() + _transferNanos;
+      long now = System.nanoTime();
+      while (now < end && !_pairs.isEmpty()) {
+        for (InMemoryPair pair : _pairs) {
+          chunk.clear();
+          long start = now;
+          pair.send(chunk);
+          now = System.nanoTime();
+          latencies.record(now - start);
+          operations++;
+          bytes += _chunkSize;
+          if (now >= end) {
+            break;
+          }
+        }
+      }
+      for (InMemoryPair pair : _pairs) {
+        pair.verify();
+      }
+    }
+  }
+
+  private static class Histogram
+  {
+    /* Counts nanosecond latencies in buckets that are exact below 64 and
+     32 per power of two above, which keeps percentiles within about 3% of
+     the real value in a fixed 15 KB per thread */
+    private static final int SUB_BUCKETS = 32;
+    private final long[] _counts = new long[2 * SUB_BUCKETS + 58 * SUB_BUCKETS];
+    private long _total;
+
+    void record(long nanos)
+    {
+      _counts[index(Math.max(0, nanos))]++;
+      _total++;
+    }
+
+    void add(Histogram other)
+    {
+      for (int i = 0; i < _counts.length; i++) {
+        _counts[i] += other._counts[i];
+      }
+      _total += other._total;
+    }
+
+    long percentile(double fraction)
+    {
+      /* The upper bound of the bucket the percentile falls into */
+      long rank = (long) Math.ceil(fraction * _total);
+      long seen = 0;
+      for (int i = 0; i < _counts.length; i++) {
+        seen += _counts[i];
+        if (seen >= rank && seen > 0) {
+          return upperBound(i);
+        }
+      }
+      return 0;
+    }
+
+    private static int index(long value)
+    {
+      if (value < 2 * SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+      return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(int index)
+    {
+      if (index < 2 * SUB_BUCKETS) {
+        return index;
+      }
+      int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+      long mantissa = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+      return (mantissa << shift) + (1L << shift) - 1;
+    }
+  }
+
+  public static class Phase
+  {
+    private final double _operationsPerSecond;
+    private final double _bytesPerSecond;
+    private final double _allocatedBytesPerSecond;
+    private final long _p50Nanos;
+    private final long _p99Nanos;
+    private final long _p999Nanos;
+
+    Phase(double operationsPerSecond, double bytesPerSecond, double allocatedBytesPerSecond,
+            long p50Nanos, long p99Nanos, long p999Nanos)
+    {
+      _operationsPerSecond = operationsPerSecond;
+      _bytesPerSecond = bytesPerSecond;
+      _allocatedBytesPerSecond = allocatedBytesPerSecond;
+      _p50Nanos = p50Nanos;
+      _p99Nanos = p99Nanos;
+      _p999Nanos = p999Nanos;
+    }
+
+    public double getOperationsPerSecond()
+    {
+      return _operationsPerSecond;
+    }
+
+    public double getBytesPerSecond()
+    {
+      /* Plain data bytes, 0 for handshakes */
+      return _bytesPerSecond;
+    }
+
+    public double getAllocatedBytesPerSecond()
+    {
+      /* 0 where the JVM does not count allocations per thread */
+      return _allocatedBytesPerSecond;
+    }
+
+    public long getP50Nanos()
+    {
+      return _p50Nanos;
+    }
+
+    public long getP99Nanos()
+    {
+      return _p99Nanos;
+    }
+
+    public long getP999Nanos()
+    {
+      return _p999Nanos;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%.1f ops/s, %.3f GB/s, p50 %.1f us, p99 %.1f us, p999 %.1f us, %.1f MB/s allocated",
+              _operationsPerSecond, _bytesPerSecond / 1e9, _p50Nanos / 1e3, _p99Nanos / 1e3,
+              _p999Nanos / 1e3, _allocatedBytesPerSecond / 1e6);
+    }
+  }
+
+  public static class Result
+  {
+    private final int _connections;
+    private final int _threads;
+    private final Phase _handshakes;
+    private final Phase _transfer;
+    private final long _heapPerConnection;
+
+    Result(int connections, int threads, Phase handshakes, Phase transfer,
+            long heapPerConnection)
+    {
+      _connections = connections;
+      _threads = threads;
+      _handshakes = handshakes;
+      _transfer = transfer;
+      _heapPerConnection = heapPerConnection;
+    }
+
+    public int getConnections()
+    {
+      return _connections;
+    }
+
+    public int getThreads()
+    {
+      return _threads;
+    }
+
+    public Phase getHandshakes()
+    {
+      return _handshakes;
+    }
+
+    public Phase getTransfer()
+    {
+      return _transfer;
+    }
+
+    public long getHeapPerConnection()
+    {
+      /* Live heap bytes of one connection, both facades of a pair */
+      return _heapPerConnection;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%d connections on %d threads%n  handshakes: %s%n  transfer:   %s%n  heap per connection: %d bytes",
+              _connections, _threads, _handshakes, _transfer, _heapPerConnection);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package prj.sslfacade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+
+public class SSLContextHolder
+{
+  /*
+   Holds the SSLContext that new connections are created with and allows
+   it to be replaced at any time, e.g. when certificates are rotated.
+   Every context that has been set is a generation. Facades keep the
+   engine of the generation they were created with until they are closed,
+   new facades use the latest generation as soon as swap() has returned.
+
+   Each generation counts the facades that have been created from it and
+   are not closed yet, so that the host application can see when the
+   connections of a retired generation have drained. A retired generation
+   is forgotten once its last connection has been closed.
+
+   Thread-safe.
+   */
+
+  private volatile Generation _current;
+  private final List<Generation> _generations = new ArrayList<Generation>();
+
+  public SSLContextHolder(SSLContext context)
+  {
+    _current = new Generation(1, context);
+    _generations.add(_current);
+  }
+
+  public Generation getCurrent()
+  {
+    return _current;
+  }
+
+  public SSLContext getContext()
+  {
+    return _current.getContext();
+  }
+
+  public synchronized Generation swap(SSLContext context)
+  {
+    /* Makes context the one new connections are created with. The list
+     of generations changes together with the current one, so it stays
+     in order and a drained generation is always forgotten. */
+    Generation previous = _current;
+    Generation next = new Generation(previous.getNumber() + 1, context);
+    _current = next;
+    _generations.add(next);
+    forgetIfDrained(previous);
+    return next;
+  }
+
+  public synchronized List<Generation> getGenerations()
+  {
+    /* The current generation and all retired ones that still have live
+     connections, oldest first */
+    return new ArrayList<Generation>(_generations);
+  }
+
+  /* Package private, used by SSLFacadeFactory */
+  Generation acquire()
+  {
+    /* Retries if a swap retired the generation before it was counted, so
+     that a forgotten generation never gets live connections again */
+    while (true) {
+      Generation generation = _current;
+      generation._live.incrementAndGet();
+      if (generation == _current) {
+        return generation;
+      }
+      release(generation);
+    }
+  }
+
+  void release(Generation generation)
+  {
+    if (generation._live.decrementAndGet() == 0) {
+      forgetIfDrained(generation);
+    }
+  }
+
+  /* Privates */
+  private synchronized void forgetIfDrained(Generation generation)
+  {
+    if (generation != _current && generation._live.get() == 0) {
+      _generations.remove(generation);
+    }
+  }
+
+  public static class Generation
+  {
+    private final long _number;
+    private final SSLContext _context;
+    private final AtomicInteger _live = new AtomicInteger();
+
+    Generation(long number, SSLContext context)
+    {
+      _number = number;
+      _context = context;
+    }
+
+    public long getNumber()
+    {
+      return _number;
+    }
+
+    public SSLContext getContext()
+    {
+      return _context;
+    }
+
+    public int getLiveConnections()
+    {
+      return _live.get();
+    }
+
+    @Override
+    public String toString()
+    {
+      return "generation " + _number + ": " + _live.get() + " live connections";
+    }
+  }
+}
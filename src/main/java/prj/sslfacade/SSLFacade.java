@@ -3,8 +3,15 @@ package prj.sslfacade;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
 
 public class SSLFacade implements ISSLFacade
 {
@@ -12,20 +19,39 @@ public class SSLFacade implements ISSLFacade
   
   private Handshaker _handshaker;
   private IHandshakeCompletedListener _hcl;
+  private ISessionClosedListener _scl;
   private final Worker _worker;
   private boolean _clientMode;
+  private SSLFacadeFactory _factory;
+  private CompletableFuture<SSLSession> _handshakeFuture = new CompletableFuture<SSLSession>();
+  private CompletableFuture<Void> _closeFuture = new CompletableFuture<Void>();
+  private CompletableFuture<Void> _peerCloseFuture = new CompletableFuture<Void>();
 
   public SSLFacade(SSLContext context, boolean client,
           boolean clientAuthRequired, ITaskHandler taskHandler)
   {
     //Currently there is no support for SSL session reuse,
     // so no need to take a peerHost or port from the host application
+    this(makeSSLEngine(context, client, clientAuthRequired), taskHandler);
+  }
+
+  public SSLFacade(SSLEngine engine, ITaskHandler taskHandler)
+  {
+    /* For engines the host application has already configured, the
+     client mode is taken from the engine */
+    this(engine, new Buffers(engine.getSession()), taskHandler);
+  }
+
+  SSLFacade(SSLEngine engine, Buffers buffers, ITaskHandler taskHandler)
+  {
+    boolean client = engine.getUseClientMode();
     final String who = client ? "client" : "server";
-    SSLEngine engine = makeSSLEngine(context, client, clientAuthRequired);
-    Buffers buffers = new Buffers(engine.getSession());
     _worker = new Worker(who, engine, buffers);
     _handshaker = new Handshaker(client, _worker, taskHandler);
     _clientMode = client;
+    attachCompletionListener();
+    attachSessionClosedListener();
+    attachPeerClosedListener();
   }
 
   private void debug(final String message, final String... args)
@@ -43,7 +69,6 @@ public class SSLFacade implements ISSLFacade
   public void setHandshakeCompletedListener(IHandshakeCompletedListener hcl)
   {
     _hcl = hcl;
-    attachCompletionListener();
   }
 
   @Override
@@ -55,13 +80,123 @@ public class SSLFacade implements ISSLFacade
   @Override
   public void setCloseListener(ISessionClosedListener l)
   {
-    _worker.setSessionClosedListener(l);
+    _scl = l;
+  }
+
+  public void setBufferBudget(BufferBudget budget) throws SSLException
+  {
+    _worker.setBufferBudget(budget);
+  }
+
+  public void setBufferAllocator(IBufferAllocator allocator) throws SSLException
+  {
+    /* Must be set before the handshake begins, the buffers are handed
+     back to the allocator once the session has ended or the facade has
+     been terminated */
+    _worker.setBufferAllocator(allocator);
+  }
+
+  public boolean hasBufferHeadroom(int bytes)
+  {
+    /* Host applications should stop reading from their transport while
+     this is false, otherwise the next decrypt may fail fast with a
+     BufferBudgetExceededException */
+    return _worker.hasBufferHeadroom(bytes);
+  }
+
+  public void setDemandDelivery(DemandUnit unit)
+  {
+    /* Once the handshake is over, ciphertext passed to decrypt() is only
+     unwrapped while there is outstanding demand, the rest is kept in the
+     unwrap cache. A close_notify queued behind application data is not
+     looked at while the demand is exhausted either, so the peer close is
+     only reported once enough demand has been requested to get past that
+     data. Passing null switches back to delivering all plain data
+     immediately. */
+    _worker.setDemandUnit(unit);
+  }
+
+  public void setPlainDataSink(WritableByteChannel sink)
+  {
+    /* Plain data is written straight to the sink instead of being copied
+     for onPlainData. If the sink does not take all of it the rest is held
+     back, reads are paused and no more is decrypted until
+     flushPlainDataSink() has written it. Replaces framing or batch
+     delivery, passing null switches back to the listener. */
+    _worker.setPlainDataSink(sink);
+  }
+
+  public void setLengthFieldFraming(LengthFieldFraming framing)
+  {
+    /* onPlainData is then called once per complete frame. Frames within
+     one record are views of the facade's plain text buffer and frames
+     that span records are assembled in a reused buffer, either way they
+     are only valid for the duration of the call. Replaces a plain data
+     sink or batch delivery, passing null switches back to delivering
+     plain data as it is decrypted. */
+    _worker.setLengthFieldFraming(framing);
+  }
+
+  public void setBatchDelivery(boolean enabled)
+  {
+    /* onPlainData is then called at most once per decrypt(), with the
+     plain data of all records it unwrapped in one buffer, before any close
+     notification. Enabling it replaces a plain data sink or framing,
+     disabling it switches back to one call per record. */
+    _worker.setBatchDelivery(enabled);
+  }
+
+  public boolean flushPlainDataSink() throws IOException
+  {
+    /* Returns true once nothing is held back, ciphertext that waited for
+     the sink is decrypted then */
+    if (!_worker.flushPlainDataSink()) {
+      return false;
+    }
+    if (isHandshakeCompleted() && _worker.pendingUnwrap()) {
+      decrypt(null);
+    }
+    return true;
+  }
+
+  public void setReadInterestListener(IReadInterestListener l)
+  {
+    /* Told when decrypt() stops taking ciphertext for lack of demand or
+     because the plain data sink is full, and when it takes ciphertext
+     again, so that the host can stop and restart reading the transport */
+    _worker.setReadInterestListener(l);
+  }
+
+  public void request(long n) throws SSLException
+  {
+    /* Ciphertext that was held back for lack of demand is unwrapped now,
+     as much as the demand allows and continuing where the previous
+     delivery stopped. Records still cached after that, and a close_notify
+     behind them, wait for the next request. */
+    if (_worker.addDemand(n) && _worker.pendingUnwrap()) {
+      decrypt(null);
+    }
   }
 
   @Override
   public void beginHandshake() throws SSLException
   {
-    _handshaker.begin();
+    try {
+      _handshaker.begin();
+    } catch (SSLException e) {
+      failHandshake(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletableFuture<SSLSession> getHandshakeFuture()
+  {
+    /* Completes with the negotiated session, or exceptionally if the
+     handshake fails or the session ends first. It is completed on the
+     thread driving the facade, a handshake deadline belongs on that
+     thread too, see SSLDeadlines. */
+    return _handshakeFuture;
   }
 
   @Override
@@ -73,15 +208,98 @@ public class SSLFacade implements ISSLFacade
   @Override
   public void encrypt(ByteBuffer plainData) throws SSLException
   {
-    _worker.wrap(plainData);
+    /* Writes made before the handshake has completed are queued and
+     wrapped right after it, along with the final handshake flight */
+    checkOpen();
+    if (!isHandshakeCompleted()) {
+      _worker.queueWrite(plainData);
+    } else {
+      _worker.wrap(plainData);
+    }
+  }
+
+  public long encryptTo(GatheringByteChannel channel, ByteBuffer... srcs) throws IOException
+  {
+    /* Wraps the sources and writes the records to the channel, without
+     going through onWrappedData. Records the channel does not take are
+     kept as pending output and no more data is consumed until they have
+     been flushed, so the sources may be left with bytes remaining.
+     Returns the number of plain bytes consumed. Before the handshake has
+     completed the data is queued like encrypt() does. */
+    checkOpen();
+    if (!isHandshakeCompleted()) {
+      long queued = 0;
+      for (ByteBuffer src : srcs) {
+        queued += src.remaining();
+        _worker.queueWrite(src);
+      }
+      return queued;
+    }
+    return _worker.wrapTo(channel, srcs);
+  }
+
+  public long encryptFrom(FileChannel file, long position, long count,
+          GatheringByteChannel channel) throws IOException
+  {
+    /* Sends up to count bytes of the file starting at position, like
+     encryptTo() does but reading the file in chunks of a few records.
+     Returns the number of file bytes consumed, which stops short of count
+     once the channel is full or the file ends. Call again with the
+     position advanced when the channel is writable, the memory used stays
+     the same whatever the size of the file. */
+    checkOpen();
+    if (!isHandshakeCompleted()) {
+      throw new SSLException("Files can only be sent after the handshake");
+    }
+    return _worker.wrapFileTo(file, position, count, channel);
+  }
+
+  public boolean hasPendingOutput()
+  {
+    /* Records that encryptTo() could not write yet, along with anything
+     wrapped after them, such as a close_notify */
+    return _worker.hasPendingOutput();
+  }
+
+  public boolean flushPending(GatheringByteChannel channel) throws IOException
+  {
+    /* Returns true once all pending output has been written */
+    return _worker.flushPending(channel);
   }
 
   @Override
   public void decrypt(ByteBuffer encryptedData) throws SSLException
   {
-    SSLEngineResult result = _worker.unwrap(encryptedData);
-    debug("decrypt: unwrap result=" + result);
-    _handshaker.handleUnwrapResult(result);
+    try {
+      SSLEngineResult result = _worker.unwrap(encryptedData);
+      debug("decrypt: unwrap result=" + result);
+      _handshaker.handleUnwrapResult(result);
+    } catch (SSLException e) {
+      failHandshake(e);
+      throw e;
+    }
+  }
+
+  public int decryptFrom(ReadableByteChannel channel) throws IOException
+  {
+    /* Reads once from the channel straight into the inbound ciphertext
+     buffer and processes what was read like decrypt() does. Returns the
+     result of the read, -1 once the channel has reached end of stream. */
+    int[] read = new int[1];
+    try {
+      SSLEngineResult result = _worker.unwrapFrom(channel, read);
+      debug("decryptFrom: unwrap result=" + result);
+      _handshaker.handleUnwrapResult(result);
+      if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED
+              && _worker.pendingUnwrap()) {
+        //Application data that arrived along with the end of the handshake
+        decrypt(null);
+      }
+    } catch (SSLException e) {
+      failHandshake(e);
+      throw e;
+    }
+    return read[0];
   }
 
   @Override
@@ -89,6 +307,27 @@ public class SSLFacade implements ISSLFacade
   {
     /* Called if we want to properly close SSL */
     _worker.close(true);
+    failHandshake(new SSLException("Session closed before the handshake completed"));
+    completeCloseIfDone();
+  }
+
+  @Override
+  public CompletableFuture<Void> closeAsync()
+  {
+    /* The returned future completes once the close_notify alert has been
+     emitted via onWrappedData, the transport may be closed after it has
+     been sent */
+    close();
+    return _closeFuture;
+  }
+
+  @Override
+  public CompletableFuture<Void> getPeerCloseFuture()
+  {
+    /* Completes when the peer's close_notify has been received, or
+     exceptionally if the session is terminated first. After close() the
+     transport can be kept open until then to allow the peer to answer. */
+    return _peerCloseFuture;
   }
 
   @Override
@@ -106,6 +345,59 @@ public class SSLFacade implements ISSLFacade
   {
     /* Called if peer closed connection unexpectedly */
     _worker.close(false);
+    SSLException terminated = new SSLException("Session terminated");
+    failHandshake(terminated);
+    _closeFuture.completeExceptionally(terminated);
+    _peerCloseFuture.completeExceptionally(terminated);
+  }
+
+  public void reset(SSLEngine engine)
+  {
+    reset(engine, _handshaker.getTaskHandler());
+  }
+
+  void reset(SSLEngine engine, ITaskHandler taskHandler)
+  {
+    /* Reuses this facade, its worker, handshaker and already sized
+     buffers for a new connection on the given engine. All listeners,
+     queued data, demand and budget of the previous connection are
+     dropped, if that connection is still open it is terminated without
+     notifying anyone. Must not be called while delegated tasks of the
+     previous handshake are still running. */
+    if (!_worker.isCloseCompleted()) {
+      _worker.close(false);
+    }
+    SSLException reset = new SSLException("Facade reset for a new connection");
+    failHandshake(reset);
+    _closeFuture.completeExceptionally(reset);
+    _peerCloseFuture.completeExceptionally(reset);
+    boolean client = engine.getUseClientMode();
+    _worker.reset(client ? "client" : "server", engine);
+    _handshaker.reset(client, taskHandler);
+    _clientMode = client;
+    _hcl = null;
+    _scl = null;
+    _handshakeFuture = new CompletableFuture<SSLSession>();
+    _closeFuture = new CompletableFuture<Void>();
+    _peerCloseFuture = new CompletableFuture<Void>();
+  }
+
+  void setFactory(SSLFacadeFactory factory)
+  {
+    /* The factory that created this facade, the only one it may be
+     recycled to. Kept across reset(). */
+    _factory = factory;
+  }
+
+  SSLFacadeFactory getFactory()
+  {
+    return _factory;
+  }
+
+  CompletableFuture<Void> getCloseFuture()
+  {
+    /* Completes when this connection is over, without closing it */
+    return _closeFuture;
   }
 
   /* Privates */
@@ -117,15 +409,71 @@ public class SSLFacade implements ISSLFacade
       public void onComplete()
       {
         //_handshaker = null;
+        _worker.handshakeCompleted();
         if (_hcl != null) {
           _hcl.onComplete();
           _hcl = null;
         }
+        _handshakeFuture.complete(_worker.getSession());
+      }
+    });
+  }
+
+  private void attachSessionClosedListener()
+  {
+    _worker.setSessionClosedListener(new ISessionClosedListener()
+    {
+      @Override
+      public void onSessionClosed()
+      {
+        failHandshake(new SSLException("Session closed before the handshake completed"));
+        completeCloseIfDone();
+        if (_scl != null) {
+          _scl.onSessionClosed();
+        }
       }
     });
   }
 
-  private SSLEngine makeSSLEngine(SSLContext context, boolean client, boolean clientAuthRequired)
+  private void attachPeerClosedListener()
+  {
+    _worker.setPeerClosedListener(new ISessionClosedListener()
+    {
+      @Override
+      public void onSessionClosed()
+      {
+        _peerCloseFuture.complete(null);
+      }
+    });
+  }
+
+  private void checkOpen() throws SSLException
+  {
+    if (_worker.isClosed() || _handshakeFuture.isCompletedExceptionally()) {
+      throw new SSLException("Session closed");
+    }
+  }
+
+  private void failHandshake(SSLException e)
+  {
+    /* No-op once the handshake future is done. Writes queued for after
+     the handshake are dropped with it, and the failure says so. */
+    int discarded = _worker.discardQueuedWrites();
+    if (discarded > 0 && !_handshakeFuture.isDone()) {
+      e = new SSLException(e.getMessage() + ", " + discarded
+              + " bytes of queued writes were discarded", e);
+    }
+    _handshakeFuture.completeExceptionally(e);
+  }
+
+  private void completeCloseIfDone()
+  {
+    if (_worker.isCloseCompleted()) {
+      _closeFuture.complete(null);
+    }
+  }
+
+  private static SSLEngine makeSSLEngine(SSLContext context, boolean client, boolean clientAuthRequired)
   {
     SSLEngine engine = context.createSSLEngine();
     engine.setUseClientMode(client);
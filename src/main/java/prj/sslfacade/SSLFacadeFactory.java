@@ -0,0 +1,470 @@
+package prj.sslfacade;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.security.GeneralSecurityException;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+
+public class SSLFacadeFactory
+{
+  /*
+   Creates facades that share one SSLContext and one SSLParameters
+   template. The template is computed once from the context's defaults,
+   the client mode and the client authentication setting and is applied
+   to every engine with a single setSSLParameters call, this is also where
+   protocols and cipher suites can be restricted.
+
+   Optionally the factory keeps a pool of ready made engines and their
+   Buffers which is refilled in the background, so that creating a facade
+   on accept does not pay for engine construction. Whenever the pool is
+   empty create() falls back to building the engine itself, the hit rate
+   of the pool is reported by getPoolHitRate().
+
+   Closed facades can be handed back with recycle(). They are kept on a
+   bounded free list and create() resets one of them for the new
+   connection instead of building a new facade, so that short-lived
+   connections reuse the whole object graph and its buffers.
+
+   The SSLContext can be kept in a SSLContextHolder and replaced while the
+   factory is in use. Facades created after the swap use the new context,
+   pooled engines of the old one are thrown away, and every facade is
+   counted as a live connection of its generation until it is closed.
+
+   With setBufferAllocator() the buffers of all facades, pooled engines
+   included, come from the given allocator, e.g. a DirectBufferArena
+   shared by all of them.
+
+   close() stops the pool, releases the refill thread and drops all pooled
+   and recycled facades, the factory can still create facades afterwards.
+
+   A factory is thread-safe, facades it creates are not.
+   */
+
+  private final SSLContextHolder _contexts;
+  private final boolean _client;
+  private volatile SSLParameters _template;
+  private volatile long _facadeBudgetLimit = -1;
+  private volatile BufferBudget _globalBudget;
+  private volatile IBufferAllocator _allocator;
+
+  private final ConcurrentLinkedQueue<Prepared> _pool = new ConcurrentLinkedQueue<Prepared>();
+  private final AtomicInteger _pooled = new AtomicInteger();
+  private final AtomicBoolean _refilling = new AtomicBoolean();
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicInteger _poolGeneration = new AtomicInteger();
+  private volatile int _poolSize;
+  private final ConcurrentLinkedQueue<SSLFacade> _recycled = new ConcurrentLinkedQueue<SSLFacade>();
+  private final AtomicInteger _recycledCount = new AtomicInteger();
+  private final AtomicLong _reused = new AtomicLong();
+  private volatile int _recycleLimit;
+  private volatile Executor _refillExecutor;
+  private ExecutorService _ownExecutor;
+
+  public SSLFacadeFactory(SSLContext context, boolean client, boolean clientAuthRequired)
+  {
+    this(new SSLContextHolder(context), client, clientAuthRequired);
+  }
+
+  public SSLFacadeFactory(SSLContext context, boolean client, SSLParameters parameters)
+  {
+    this(new SSLContextHolder(context), client, parameters);
+  }
+
+  public SSLFacadeFactory(SSLContextHolder contexts, boolean client, boolean clientAuthRequired)
+  {
+    _contexts = contexts;
+    _client = client;
+    SSLParameters parameters = contexts.getContext().getDefaultSSLParameters();
+    parameters.setNeedClientAuth(clientAuthRequired);
+    _template = copy(parameters);
+  }
+
+  public SSLFacadeFactory(SSLContextHolder contexts, boolean client, SSLParameters parameters)
+  {
+    _contexts = contexts;
+    _client = client;
+    _template = copy(parameters);
+  }
+
+  public static SSLContext createContext(String protocol, KeyManager[] keyManagers,
+          CachingTrustManager trustManager) throws GeneralSecurityException
+  {
+    /* A context whose certificate chain validations are cached, e.g. for
+     servers that require client authentication from a known set of peers */
+    SSLContext context = SSLContext.getInstance(protocol);
+    context.init(keyManagers, new TrustManager[]{trustManager}, null);
+    return context;
+  }
+
+  public SSLContext getContext()
+  {
+    return _contexts.getContext();
+  }
+
+  public SSLContextHolder getContextHolder()
+  {
+    return _contexts;
+  }
+
+  public boolean isClientMode()
+  {
+    return _client;
+  }
+
+  public SSLParameters getParameters()
+  {
+    return copy(_template);
+  }
+
+  public void setParameters(SSLParameters parameters)
+  {
+    /* Applies to engines created from now on, pooled engines are
+     discarded since they were configured with the old template */
+    _template = copy(parameters);
+    _poolGeneration.incrementAndGet();
+    drainPool();
+    refill();
+  }
+
+  public void setCipherSuitePreference(String[] suites)
+  {
+    /* Enables exactly the given suites and makes the server pick the
+     first one the client supports, e.g. with the order measured by a
+     CipherSuiteProfiler */
+    SSLParameters parameters = getParameters();
+    parameters.setCipherSuites(suites);
+    parameters.setUseCipherSuitesOrder(true);
+    setParameters(parameters);
+  }
+
+  public void setBufferBudget(long facadeLimit, BufferBudget globalBudget)
+  {
+    /* Every facade gets its own budget of facadeLimit bytes, chained to
+     the optional global budget */
+    _facadeBudgetLimit = facadeLimit;
+    _globalBudget = globalBudget;
+  }
+
+  public void setBufferAllocator(IBufferAllocator allocator)
+  {
+    /* Pooled engines with buffers from the previous allocator are
+     dropped */
+    _allocator = allocator;
+    _poolGeneration.incrementAndGet();
+    drainPool();
+    refill();
+  }
+
+  public synchronized void enablePool(int size, Executor refillExecutor)
+  {
+    /* Keeps up to size prepared engines. Refills run on the given
+     executor, or on a daemon thread owned by the factory if it is null.
+     Calling it again changes the size, the factory's thread is reused. */
+    if (refillExecutor != null) {
+      shutdownOwnExecutor();
+      _refillExecutor = refillExecutor;
+    } else {
+      if (_ownExecutor == null) {
+        _ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(Runnable r)
+          {
+            Thread thread = new Thread(r, "sslfacade-factory-refill");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      _refillExecutor = _ownExecutor;
+    }
+    _poolSize = size;
+    refill();
+  }
+
+  public synchronized void disablePool()
+  {
+    /* Pooled engines are released, a refill still running stops after
+     the engine it is preparing and releases it too */
+    _poolSize = 0;
+    _poolGeneration.incrementAndGet();
+    drainPool();
+    shutdownOwnExecutor();
+    _refillExecutor = null;
+  }
+
+  public void close()
+  {
+    disablePool();
+    enableRecycling(0);
+  }
+
+  public void enableRecycling(int maxIdle)
+  {
+    /* Keeps up to maxIdle recycled facades, 0 disables recycling */
+    _recycleLimit = maxIdle;
+    while (_recycledCount.get() > maxIdle && _recycled.poll() != null) {
+      _recycledCount.decrementAndGet();
+    }
+  }
+
+  public boolean recycle(SSLFacade facade)
+  {
+    /* Hands a facade back once its connection is over. The caller must
+     not use the facade afterwards, returns false if it was not kept.
+     Facades this factory did not create are never kept. */
+    if (facade.getFactory() != this || facade.isClientMode() != _client) {
+      return false;
+    }
+    if (_recycledCount.incrementAndGet() > _recycleLimit) {
+      _recycledCount.decrementAndGet();
+      return false;
+    }
+    _recycled.add(facade);
+    return true;
+  }
+
+  public SSLFacade create(ITaskHandler taskHandler) throws SSLException
+  {
+    SSLContextHolder.Generation generation = _contexts.acquire();
+    SSLFacade facade;
+    try {
+      facade = create(generation.getContext(), taskHandler);
+    } catch (SSLException e) {
+      _contexts.release(generation);
+      throw e;
+    } catch (RuntimeException e) {
+      _contexts.release(generation);
+      throw e;
+    }
+    track(facade, generation);
+    return facade;
+  }
+
+  public long getPoolHits()
+  {
+    return _hits.get();
+  }
+
+  public long getPoolMisses()
+  {
+    return _misses.get();
+  }
+
+  public double getPoolHitRate()
+  {
+    long hits = _hits.get();
+    long total = hits + _misses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  public int getPooledCount()
+  {
+    return _pooled.get();
+  }
+
+  public long getReusedCount()
+  {
+    return _reused.get();
+  }
+
+  public int getRecycledCount()
+  {
+    return _recycledCount.get();
+  }
+
+  /* Package private */
+  SSLEngine createEngine(SSLContext context)
+  {
+    SSLParameters template = _template;
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(_client);
+    engine.setSSLParameters(template);
+    return engine;
+  }
+
+  /* Privates */
+  private SSLFacade create(SSLContext context, ITaskHandler taskHandler) throws SSLException
+  {
+    SSLFacade recycled = _recycled.poll();
+    if (recycled != null) {
+      _recycledCount.decrementAndGet();
+      _reused.incrementAndGet();
+      recycled.reset(createEngine(context), taskHandler);
+      if (_allocator != null) {
+        recycled.setBufferAllocator(_allocator);
+      }
+      applyBudget(recycled);
+      return recycled;
+    }
+    Prepared prepared = takePrepared(context);
+    if (prepared != null) {
+      _hits.incrementAndGet();
+      refill();
+    } else {
+      if (_poolSize > 0) {
+        _misses.incrementAndGet();
+        refill();
+      }
+      prepared = prepare(context);
+    }
+    SSLFacade facade = new SSLFacade(prepared.engine, prepared.buffers, taskHandler);
+    facade.setFactory(this);
+    applyBudget(facade);
+    return facade;
+  }
+
+  private Prepared takePrepared(SSLContext context)
+  {
+    /* Engines prepared from a context that has since been swapped out
+     are dropped, as are those a refill was still preparing with the old
+     template or allocator while the pool was drained */
+    Prepared prepared;
+    while ((prepared = _pool.poll()) != null) {
+      _pooled.decrementAndGet();
+      if (prepared.context == context && prepared.generation == _poolGeneration.get()) {
+        return prepared;
+      }
+      prepared.buffers.release();
+    }
+    return null;
+  }
+
+  private void track(SSLFacade facade, final SSLContextHolder.Generation generation)
+  {
+    facade.getCloseFuture().whenComplete(new BiConsumer<Void, Throwable>()
+    {
+      @Override
+      public void accept(Void ignored, Throwable failure)
+      {
+        _contexts.release(generation);
+      }
+    });
+  }
+
+  private void applyBudget(SSLFacade facade) throws SSLException
+  {
+    if (_facadeBudgetLimit >= 0) {
+      facade.setBufferBudget(new BufferBudget(_facadeBudgetLimit, _globalBudget));
+    }
+  }
+
+  private Prepared prepare(SSLContext context)
+  {
+    //Taken first, so that anything changed after it makes the engine stale
+    int generation = _poolGeneration.get();
+    SSLEngine engine = createEngine(context);
+    IBufferAllocator allocator = _allocator;
+    Buffers buffers = allocator == null ? new Buffers(engine.getSession())
+            : new Buffers(engine.getSession(), allocator);
+    return new Prepared(generation, context, engine, buffers);
+  }
+
+  private void refill()
+  {
+    Executor executor = _refillExecutor;
+    if (executor == null || _poolSize <= 0 || _pooled.get() >= _poolSize
+            || !_refilling.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try {
+            while (_pooled.get() < _poolSize) {
+              _pool.add(prepare(_contexts.getContext()));
+              _pooled.incrementAndGet();
+            }
+          } finally {
+            _refilling.set(false);
+          }
+          if (_poolSize <= 0) {
+            //Disabled while preparing, the last engine was added after the drain
+            drainPool();
+          } else {
+            //Facades may have been taken while the flag was still set
+            refill();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      //The pool was disabled meanwhile
+      _refilling.set(false);
+    }
+  }
+
+  private void shutdownOwnExecutor()
+  {
+    if (_ownExecutor != null) {
+      _ownExecutor.shutdown();
+      _ownExecutor = null;
+    }
+  }
+
+  private void drainPool()
+  {
+    Prepared prepared;
+    while ((prepared = _pool.poll()) != null) {
+      _pooled.decrementAndGet();
+      prepared.buffers.release();
+    }
+  }
+
+  static SSLParameters copy(SSLParameters source)
+  {
+    SSLParameters copy = new SSLParameters();
+    copy.setCipherSuites(source.getCipherSuites());
+    copy.setProtocols(source.getProtocols());
+    if (source.getNeedClientAuth()) {
+      copy.setNeedClientAuth(true);
+    } else {
+      copy.setWantClientAuth(source.getWantClientAuth());
+    }
+    copy.setAlgorithmConstraints(source.getAlgorithmConstraints());
+    copy.setEndpointIdentificationAlgorithm(source.getEndpointIdentificationAlgorithm());
+    if (source.getServerNames() != null) {
+      copy.setServerNames(source.getServerNames());
+    }
+    if (source.getSNIMatchers() != null) {
+      copy.setSNIMatchers(source.getSNIMatchers());
+    }
+    copy.setUseCipherSuitesOrder(source.getUseCipherSuitesOrder());
+    copy.setApplicationProtocols(source.getApplicationProtocols());
+    copy.setEnableRetransmissions(source.getEnableRetransmissions());
+    copy.setMaximumPacketSize(source.getMaximumPacketSize());
+    return copy;
+  }
+
+  private static class Prepared
+  {
+    final int generation;
+    final SSLContext context;
+    final SSLEngine engine;
+    final Buffers buffers;
+
+    Prepared(int generation, SSLContext context, SSLEngine engine, Buffers buffers)
+    {
+      this.generation = generation;
+      this.context = context;
+      this.engine = engine;
+      this.buffers = buffers;
+    }
+  }
+}
@@ -3,7 +3,13 @@ package prj.sslfacade;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import prj.sslfacade.defaulthandlers.DefaultOnCloseListener;
 
 class Worker
@@ -12,11 +18,59 @@ class Worker
    Also, provides access to SSLEngine ops for handshake
    */
   private final static String TAG = "Worker";
-  private final SSLEngine _engine;
+  /* Returned instead of an engine result when an unwrap is deferred for
+   lack of demand */
+  private final static SSLEngineResult DEFERRED = new SSLEngineResult(
+          SSLEngineResult.Status.OK,
+          SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, 0, 0);
+  private SSLEngine _engine;
   private final Buffers _buffers;
   private ISSLListener _sslListener;
   private ISessionClosedListener _sessionClosedListener = new DefaultOnCloseListener();
   private String who;
+  /* Demand based delivery, see SSLFacade.setDemandDelivery */
+  private DemandUnit _demandUnit;
+  private long _demand;
+  private boolean _applicationPhase;
+  private boolean _readsPaused;
+  private boolean _sessionClosed;
+  private boolean _peerClosed;
+  private ISessionClosedListener _peerClosedListener;
+  private int _corked;
+  private ByteBuffer _corkedData;
+  private boolean _closeWhenUncorked;
+  private IReadInterestListener _readInterestListener;
+  /* Where plain data goes, the listener unless a sink has been set */
+  private final IPlainDataEmitter _listenerEmitter = new IPlainDataEmitter()
+  {
+    @Override
+    public void emit(ByteBuffer internalPlainBuffer)
+    {
+      _sslListener.onPlainData(makeExternalBuffer(internalPlainBuffer));
+    }
+  };
+  /* For emitters that deliver to whichever listener is set at the time */
+  private final ISSLListener _listenerForwarder = new ISSLListener()
+  {
+    @Override
+    public void onWrappedData(ByteBuffer wrappedBytes)
+    {
+      _sslListener.onWrappedData(wrappedBytes);
+    }
+
+    @Override
+    public void onPlainData(ByteBuffer plainBytes)
+    {
+      _sslListener.onPlainData(plainBytes);
+    }
+  };
+  private IPlainDataEmitter _plainDataEmitter = _listenerEmitter;
+  private ChannelSink _sink;
+  private BatchingEmitter _batch;
+  /* Operations in progress, buffers are only released when there are none */
+  private int _busy;
+  private boolean _terminated;
+  private boolean _closed;
 
   Worker(final String debugTag, SSLEngine engine, Buffers buffers)
   {
@@ -25,6 +79,32 @@ class Worker
     this.who = "[Worker:" + debugTag + "]";
   }
   
+  void reset(final String debugTag, SSLEngine engine)
+  {
+    /* Drops all per-connection state, the session closed listener is
+     owned by the facade and stays */
+    _engine = engine;
+    _buffers.reset(engine.getSession());
+    this.who = "[Worker:" + debugTag + "]";
+    _sslListener = null;
+    _readInterestListener = null;
+    _demandUnit = null;
+    _demand = 0;
+    _applicationPhase = false;
+    _readsPaused = false;
+    _sessionClosed = false;
+    _peerClosed = false;
+    _corked = 0;
+    _corkedData = null;
+    _closeWhenUncorked = false;
+    _plainDataEmitter = _listenerEmitter;
+    _sink = null;
+    _batch = null;
+    _busy = 0;
+    _terminated = false;
+    _closed = false;
+  }
+
    private void debug(final String msg, final String... args) {
     SSLLog.debug(TAG, msg, args);
   }
@@ -34,11 +114,119 @@ class Worker
     _sessionClosedListener = scl;
   }
 
+  void setPeerClosedListener(final ISessionClosedListener l)
+  {
+    /* Told when the peer's close_notify has been received, which may be
+     after the session closed event if we closed first */
+    _peerClosedListener = l;
+  }
+
+  void setBufferBudget(BufferBudget budget) throws SSLException
+  {
+    _buffers.setBudget(budget);
+  }
+
+  void setBufferAllocator(IBufferAllocator allocator) throws SSLException
+  {
+    _buffers.setAllocator(allocator);
+  }
+
+  boolean hasBufferHeadroom(long bytes)
+  {
+    BufferBudget budget = _buffers.getBudget();
+    return budget == null || budget.hasHeadroom(bytes);
+  }
+
+  void setDemandUnit(DemandUnit unit)
+  {
+    _demandUnit = unit;
+    _demand = 0;
+    if (isDemandExhausted()) {
+      pauseReadsIfExhausted();
+    } else {
+      resumeReads();
+    }
+  }
+
+  void setPlainDataSink(WritableByteChannel channel)
+  {
+    _sink = channel == null ? null : new ChannelSink(channel, _buffers);
+    _batch = null;
+    _plainDataEmitter = channel == null ? _listenerEmitter : _sink;
+  }
+
+  void setLengthFieldFraming(LengthFieldFraming framing)
+  {
+    _sink = null;
+    _batch = null;
+    _plainDataEmitter = framing == null ? _listenerEmitter
+            : new FramingEmitter(framing, _listenerForwarder);
+  }
+
+  void setBatchDelivery(boolean enabled)
+  {
+    _sink = null;
+    _batch = enabled ? new BatchingEmitter(_listenerForwarder,
+            _buffers.get(BufferType.IN_PLAIN).capacity()) : null;
+    _plainDataEmitter = enabled ? _batch : _listenerEmitter;
+  }
+
+  boolean flushPlainDataSink() throws IOException
+  {
+    /* Returns true once nothing is held back, reads may then resume */
+    if (_sink != null && !_sink.flush()) {
+      return false;
+    }
+    if (!isDemandExhausted()) {
+      resumeReads();
+    }
+    releaseIfDone();
+    return true;
+  }
+
+  void setReadInterestListener(IReadInterestListener l)
+  {
+    _readInterestListener = l;
+  }
+
+  boolean addDemand(long n)
+  {
+    /* Returns true if there is demand left after adding n */
+    if (n <= 0) {
+      throw new IllegalArgumentException("Demand must be positive: " + n);
+    }
+    if (_demandUnit == null) {
+      return true;
+    }
+    _demand = (Long.MAX_VALUE - _demand < n) ? Long.MAX_VALUE : _demand + n;
+    if (!isDemandExhausted()) {
+      resumeReads();
+      return true;
+    }
+    return false;
+  }
+
+  static boolean isDeferred(SSLEngineResult result)
+  {
+    return result == DEFERRED;
+  }
+
+  void handshakeCompleted()
+  {
+    _applicationPhase = true;
+    pauseReadsIfExhausted();
+  }
+
   void beginHandshake() throws SSLException
   {
     _engine.beginHandshake();
   }
 
+  SSLSession getSession()
+  {
+    return _engine.getSession();
+  }
+
   SSLEngineResult.HandshakeStatus getHandshakeStatus()
   {
     return _engine.getHandshakeStatus();
@@ -51,37 +239,243 @@ class Worker
 
   SSLEngineResult wrap(ByteBuffer plainData) throws SSLException
   {
+    enter();
+    try {
+      return wrapRecords(plainData);
+    } finally {
+      leave();
+    }
+  }
+
+  long wrapTo(GatheringByteChannel channel, ByteBuffer[] srcs) throws IOException
+  {
+    enter();
+    try {
+      return wrapRecordsTo(channel, srcs);
+    } finally {
+      leave();
+    }
+  }
+
+  long wrapFileTo(FileChannel file, long position, long count,
+          GatheringByteChannel channel) throws IOException
+  {
+    enter();
+    try {
+      return wrapChunksTo(file, position, count, channel);
+    } finally {
+      leave();
+    }
+  }
+
+  SSLEngineResult unwrap(ByteBuffer encryptedData) throws SSLException
+  {
+    enter();
+    try {
+      return unwrapRecords(encryptedData);
+    } finally {
+      leave();
+    }
+  }
+
+  SSLEngineResult unwrapFrom(ReadableByteChannel channel, int[] read) throws IOException
+  {
+    enter();
+    try {
+      return unwrapRecordsFrom(channel, read);
+    } finally {
+      leave();
+    }
+  }
+
+  private SSLEngineResult wrapRecords(ByteBuffer plainData) throws SSLException
+  {
+    /* The engine wraps at most one record per call, so keep wrapping
+     until all of the plain data has been turned into records */
     _buffers.prepareForWrap(plainData);
-    SSLEngineResult result = doWrap();
+    ByteBuffer plainText = _buffers.get(BufferType.OUT_PLAIN);
+    SSLEngineResult result;
+    boolean more;
+    do {
+      _buffers.get(BufferType.OUT_CIPHER).clear();
+      result = doWrap();
+      noteHandshakeStatus(result);
 
-    emitWrappedData(result);
+      emitWrappedData(result);
 
-    switch (result.getStatus()) {
-      case BUFFER_UNDERFLOW:
-        throw new RuntimeException("BUFFER_UNDERFLOW while wrapping!");
-      case BUFFER_OVERFLOW:
-        _buffers.grow(BufferType.OUT_CIPHER);
-        if (plainData != null && plainData.hasRemaining()) {
-          plainData.position(result.bytesConsumed());
-          ByteBuffer remainingData = BufferUtils.slice(plainData);
-          wrap(remainingData);
+      more = false;
+      switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+          throw new RuntimeException("BUFFER_UNDERFLOW while wrapping!");
+        case BUFFER_OVERFLOW:
+          _buffers.grow(BufferType.OUT_CIPHER);
+          more = plainText.hasRemaining();
+          break;
+        case OK:
+          more = plainText.hasRemaining() && result.bytesConsumed() > 0;
+          break;
+        case CLOSED:
+          notifySessionClosed();
+          break;
+      }
+    } while (more);
+    return result;
+  }
+
+  private long wrapRecordsTo(GatheringByteChannel channel, ByteBuffer[] srcs)
+          throws IOException
+  {
+    /* Wraps a few records at a time straight from the sources into the
+     direct record buffers and writes them with one gathering write.
+     Nothing more is wrapped while the channel has not taken all of it,
+     so fewer plain bytes than offered may be consumed. Returns the number
+     of plain bytes consumed. */
+    long consumed = 0;
+    if (!_buffers.writePending(channel)) {
+      return 0;
+    }
+    boolean more = hasRemaining(srcs);
+    while (more) {
+      ByteBuffer[] records = _buffers.outRecords();
+      int count = 0;
+      boolean filling = true;
+      while (filling && count < records.length) {
+        ByteBuffer record = records[count];
+        record.clear();
+        debug("wrapTo: into buffer: " + record);
+        SSLEngineResult result = _engine.wrap(srcs, record);
+        noteHandshakeStatus(result);
+        record.flip();
+        consumed += result.bytesConsumed();
+        switch (result.getStatus()) {
+          case BUFFER_UNDERFLOW:
+            throw new RuntimeException("BUFFER_UNDERFLOW while wrapping!");
+          case BUFFER_OVERFLOW:
+            _buffers.growOutRecord(count);
+            break;
+          case OK:
+            if (record.hasRemaining()) {
+              count++;
+            }
+            more = hasRemaining(srcs) && result.bytesConsumed() > 0;
+            filling = more;
+            break;
+          case CLOSED:
+            if (record.hasRemaining()) {
+              count++;
+            }
+            notifySessionClosed();
+            more = false;
+            filling = false;
+            break;
         }
+      }
+      _buffers.setPending(count);
+      if (!_buffers.writePending(channel)) {
         break;
-      case OK:
+      }
+    }
+    return consumed;
+  }
+
+  private long wrapChunksTo(FileChannel file, long position, long count,
+          GatheringByteChannel channel) throws IOException
+  {
+    /* Wraps the file chunk by chunk for as long as the channel takes the
+     records, so that no more than a chunk and the records of one write
+     are held. Returns the number of file bytes consumed. */
+    if (!_buffers.writePending(channel)) {
+      return 0;
+    }
+    long sent = 0;
+    while (sent < count) {
+      ByteBuffer chunk = _buffers.fileChunk(file, position + sent, count - sent);
+      if (!chunk.hasRemaining()) {
         break;
-      case CLOSED:
-        _sessionClosedListener.onSessionClosed();
+      }
+      long consumed = wrapRecordsTo(channel, new ByteBuffer[]{chunk});
+      _buffers.fileChunkConsumed(consumed);
+      sent += consumed;
+      if (consumed == 0 || _buffers.hasPendingOutput()) {
         break;
+      }
     }
-    return result;
+    return sent;
   }
 
-  SSLEngineResult unwrap(ByteBuffer encryptedData) throws SSLException
+  boolean hasPendingOutput()
   {
+    return _buffers.hasPendingOutput();
+  }
+
+  boolean flushPending(GatheringByteChannel channel) throws IOException
+  {
+    if (!_buffers.writePending(channel)) {
+      return false;
+    }
+    releaseIfDone();
+    return true;
+  }
+
+  void queueWrite(ByteBuffer plainData) throws SSLException
+  {
+    _buffers.queueWrite(plainData);
+  }
+
+  int discardQueuedWrites()
+  {
+    return _buffers.discardQueuedWrites();
+  }
+
+  void flushQueuedWrites() throws SSLException
+  {
+    ByteBuffer queued = _buffers.takeQueuedWrites();
+    if (queued != null) {
+      wrap(queued);
+    }
+  }
+
+  void cork()
+  {
+    /* While corked, wrapped data is collected and emitted as a single
+     buffer once the outermost uncork() is reached, so that a handshake
+     flight and anything wrapped along with it reach the transport in
+     one write */
+    _corked++;
+  }
+
+  void uncork()
+  {
+    if (--_corked == 0) {
+      flushCorked();
+      if (_closeWhenUncorked) {
+        _closeWhenUncorked = false;
+        notifySessionClosed();
+      }
+    }
+  }
+
+  void flushCorked()
+  {
+    if (_corkedData != null && _corkedData.position() > 0) {
+      ByteBuffer data = _corkedData;
+      _corkedData = null;
+      data.flip();
+      _sslListener.onWrappedData(data);
+    }
+  }
+
+  private SSLEngineResult unwrapRecords(ByteBuffer encryptedData) throws SSLException
+  {
+    if (isDemandExhausted()) {
+      deferUnwrap(encryptedData);
+      return DEFERRED;
+    }
     ByteBuffer allEncryptedData = _buffers.prependCached(encryptedData);
     _buffers.prepareForUnwrap(allEncryptedData);
     SSLEngineResult result = doUnwrap();
     debug("unwrap: doUnwrap result: " + result);
+    noteHandshakeStatus(result);
     allEncryptedData.position(result.bytesConsumed());
     ByteBuffer unprocessedEncryptedData = BufferUtils.slice(allEncryptedData);
 
@@ -108,18 +502,73 @@ class Worker
         }
         break;
       case CLOSED:
-
+        /* The peer's close_notify. Before TLSv1.3 it has to be answered and
+         the wrap of the answer reports the end of the session, TLSv1.3
+         needs no answer so there may be no such wrap */
+        if (result.bytesConsumed() > 0) {
+          notifyPeerClosed();
+        }
+        handleEnOfSession(result);
         break;
     }
     if (_buffers.isCacheEmpty() == false 
             && result.getStatus() == SSLEngineResult.Status.OK
-            && result.bytesConsumed() > 0) {
+            && result.bytesConsumed() > 0
+            && !isDemandExhausted()) {
       debug("Still data in cahce");
       result = unwrap(ByteBuffer.allocate(0));
     }
     return result;
   }
 
+  private SSLEngineResult unwrapRecordsFrom(ReadableByteChannel channel, int[] read)
+          throws IOException
+  {
+    /* Reads into IN_CIPHER and unwraps there, without copying the
+     ciphertext. Stops at the end of the handshake so that the handshake
+     is reported before any application data that follows it. The number
+     of bytes read is returned in read[0]. */
+    if (isDemandExhausted()) {
+      read[0] = 0;
+      return DEFERRED;
+    }
+    read[0] = _buffers.readFrom(channel);
+    ByteBuffer cipherText = _buffers.get(BufferType.IN_CIPHER);
+    SSLEngineResult result = null;
+    boolean more;
+    do {
+      _buffers.get(BufferType.IN_PLAIN).clear();
+      result = doUnwrap();
+      debug("unwrapFrom: doUnwrap result: " + result);
+      noteHandshakeStatus(result);
+      emitPlainData(result);
+
+      more = false;
+      switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+          break;
+        case BUFFER_OVERFLOW:
+          _buffers.grow(BufferType.IN_PLAIN);
+          more = true;
+          break;
+        case OK:
+          more = cipherText.hasRemaining() && result.bytesConsumed() > 0
+                  && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED
+                  && !isDemandExhausted();
+          break;
+        case CLOSED:
+          if (result.bytesConsumed() > 0) {
+            notifyPeerClosed();
+          }
+          handleEnOfSession(result);
+          break;
+      }
+    } while (more);
+    //Whatever is left over is a partial record or waits for demand
+    _buffers.cache(cipherText);
+    return result;
+  }
+
   void setSSLListener(ISSLListener SSLListener)
   {
     _sslListener = SSLListener;
@@ -128,20 +577,27 @@ class Worker
   void handleEnOfSession(final SSLEngineResult result)
   {
     if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-      _sessionClosedListener.onSessionClosed();
+      notifySessionClosed();
     }
   }
 
   void close(boolean properly)
   {
+    /* A proper close leaves the inbound side open so that the peer's
+     close_notify can still be received */
+    _closed = true;
     _engine.closeOutbound();
     try {
       if (properly) {
         wrap(null); //sends a TLS close_notify alert
+      } else {
+        _terminated = true;
+        _engine.closeInbound();
       }
-      _engine.closeInbound();
     } catch (SSLException ignore) {
     }
+    _buffers.releaseBudget();
+    releaseIfDone();
 
   }
 
@@ -150,27 +606,171 @@ class Worker
     return _engine.isOutboundDone();
   }
 
+  boolean isClosed()
+  {
+    /* No more plain data can be sent, after close() or terminate() or
+     once the engine has closed the outbound side itself */
+    return _closed || _engine.isOutboundDone();
+  }
+
   boolean pendingUnwrap()
   {
     return !_buffers.isCacheEmpty();
   }
   /* Private */
+  private void enter()
+  {
+    _busy++;
+  }
+
+  private void leave()
+  {
+    if (--_busy == 0) {
+      flushBatch();
+      releaseIfDone();
+    }
+  }
+
+  private void flushBatch()
+  {
+    if (_batch != null) {
+      _batch.flush();
+    }
+  }
 
-  private void emitWrappedData(SSLEngineResult result)
+  private void releaseIfDone()
+  {
+    /* Buffers go back to the allocator once the session has ended in both
+     directions and nothing waits to be written, or when terminated. Not
+     while an operation is in progress, since a listener it calls may
+     close or terminate the session. */
+    if (_busy > 0) {
+      return;
+    }
+    boolean done = _engine.isOutboundDone() && _engine.isInboundDone()
+            && !_buffers.hasPendingOutput() && !_buffers.hasHeldBack();
+    if (_terminated || done) {
+      _buffers.release();
+    }
+  }
+
+
+  private void emitWrappedData(SSLEngineResult result) throws SSLException
   {
     if (result.bytesProduced() > 0) {
       ByteBuffer internalCipherBuffer = _buffers.get(BufferType.OUT_CIPHER);
-      _sslListener.onWrappedData(makeExternalBuffer(internalCipherBuffer));
+      if (_corked > 0) {
+        appendCorked(internalCipherBuffer);
+      } else if (_buffers.hasPendingOutput()) {
+        //Must not overtake the records that still wait for the channel
+        internalCipherBuffer.flip();
+        _buffers.appendPending(internalCipherBuffer);
+      } else {
+        _sslListener.onWrappedData(makeExternalBuffer(internalCipherBuffer));
+      }
     }
   }
 
-  private void emitPlainData(SSLEngineResult result)
+  private void appendCorked(ByteBuffer internalBuffer)
+  {
+    internalBuffer.flip();
+    if (_corkedData == null || _corkedData.remaining() < internalBuffer.remaining()) {
+      int used = _corkedData == null ? 0 : _corkedData.position();
+      int capacity = Math.max(used + internalBuffer.remaining(), 2 * Math.max(used, internalBuffer.capacity()));
+      ByteBuffer grown = ByteBuffer.allocate(capacity);
+      if (_corkedData != null) {
+        _corkedData.flip();
+        grown.put(_corkedData);
+      }
+      _corkedData = grown;
+    }
+    _corkedData.put(internalBuffer);
+  }
+
+  private void emitPlainData(SSLEngineResult result) throws SSLException
   {
     if (result.bytesProduced() > 0) {
-      ByteBuffer internalPlainBuffer = _buffers.get(BufferType.IN_PLAIN);
-      _sslListener.onPlainData(makeExternalBuffer(internalPlainBuffer));
+      _plainDataEmitter.emit(_buffers.get(BufferType.IN_PLAIN));
+      consumeDemand(result.bytesProduced());
+    }
+
+  }
+
+  private void notifyPeerClosed()
+  {
+    if (!_peerClosed) {
+      //Plain data that came before the close_notify is delivered first
+      flushBatch();
+      _peerClosed = true;
+      if (_peerClosedListener != null) {
+        _peerClosedListener.onSessionClosed();
+      }
+    }
+  }
+
+  private void notifySessionClosed()
+  {
+    /* While corked the last records are not emitted yet, the listener is
+     told once they are */
+    if (_corked > 0) {
+      _closeWhenUncorked = true;
+    } else if (!_sessionClosed) {
+      flushBatch();
+      _sessionClosed = true;
+      _sessionClosedListener.onSessionClosed();
+    }
+  }
+
+  private boolean isDemandExhausted()
+  {
+    /* Demand only applies to application data, handshake records are
+     always unwrapped. Plain data held back for a full sink counts as no
+     demand as well. */
+    return _applicationPhase
+            && ((_demandUnit != null && _demand <= 0) || _buffers.hasHeldBack());
+  }
+
+  private void consumeDemand(int plainBytes)
+  {
+    if (_demandUnit != null) {
+      _demand -= (_demandUnit == DemandUnit.RECORDS) ? 1 : plainBytes;
+    }
+    pauseReadsIfExhausted();
+  }
+
+  private void deferUnwrap(ByteBuffer encryptedData) throws SSLException
+  {
+    /* Keeps the ciphertext in the unwrap cache until there is demand */
+    if (encryptedData != null && encryptedData.hasRemaining()) {
+      _buffers.cache(_buffers.prependCached(encryptedData));
     }
+  }
 
+  private void noteHandshakeStatus(SSLEngineResult result)
+  {
+    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+      _applicationPhase = true;
+    }
+  }
+
+  private void pauseReadsIfExhausted()
+  {
+    if (isDemandExhausted() && !_readsPaused) {
+      _readsPaused = true;
+      if (_readInterestListener != null) {
+        _readInterestListener.onPauseReads();
+      }
+    }
+  }
+
+  private void resumeReads()
+  {
+    if (_readsPaused) {
+      _readsPaused = false;
+      if (_readInterestListener != null) {
+        _readInterestListener.onResumeReads();
+      }
+    }
   }
 
   private SSLEngineResult doWrap() throws SSLException
@@ -189,6 +789,16 @@ class Worker
     return _engine.unwrap(cipherText, plainText);
   }
 
+  private static boolean hasRemaining(ByteBuffer[] buffers)
+  {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private static ByteBuffer makeExternalBuffer(ByteBuffer internalBuffer)
   {
     ByteBuffer newBuffer = ByteBuffer.allocate(internalBuffer.position());
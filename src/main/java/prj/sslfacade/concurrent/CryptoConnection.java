@@ -0,0 +1,216 @@
+package prj.sslfacade.concurrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.IHandshakeCompletedListener;
+import prj.sslfacade.ISSLFacade;
+import prj.sslfacade.ISSLListener;
+import prj.sslfacade.ISessionClosedListener;
+
+public class CryptoConnection
+{
+  /*
+   The I/O thread's handle on a facade that has been registered with a
+   CryptoWorkerPool. Every call is queued to the facade's crypto thread and
+   returns immediately, false means the shard's queue is full and the I/O
+   thread should stop reading from this connection for now. Ownership of
+   the buffers passed in moves to the crypto thread, they must not be
+   touched again by the caller.
+
+   The facade's listeners are taken over and everything they report is
+   passed back to the ICryptoListener on the I/O thread by
+   CryptoWorkerPool.poll(). That includes failures: an SSLException thrown
+   by the facade is reported as it is, anything else the work threw is
+   wrapped in one and the facade is terminated.
+   */
+
+  private final CryptoWorkerPool _pool;
+  private final CryptoWorkerPool.Shard _shard;
+  private final ISSLFacade _ssl;
+  private final ICryptoListener _listener;
+
+  CryptoConnection(CryptoWorkerPool pool, CryptoWorkerPool.Shard shard,
+          ISSLFacade ssl, ICryptoListener listener)
+  {
+    _pool = pool;
+    _shard = shard;
+    _ssl = ssl;
+    _listener = listener;
+    attachListeners();
+  }
+
+  public ISSLFacade getFacade()
+  {
+    /* Must only be used from the crypto thread */
+    return _ssl;
+  }
+
+  public boolean beginHandshake()
+  {
+    return submit(new Operation()
+    {
+      @Override
+      public void run() throws IOException
+      {
+        _ssl.beginHandshake();
+      }
+    });
+  }
+
+  public boolean encrypt(final ByteBuffer plainData)
+  {
+    return submit(new Operation()
+    {
+      @Override
+      public void run() throws IOException
+      {
+        _ssl.encrypt(plainData);
+      }
+    });
+  }
+
+  public boolean decrypt(final ByteBuffer encryptedData)
+  {
+    return submit(new Operation()
+    {
+      @Override
+      public void run() throws IOException
+      {
+        _ssl.decrypt(encryptedData);
+      }
+    });
+  }
+
+  public boolean close()
+  {
+    return submit(new Operation()
+    {
+      @Override
+      public void run()
+      {
+        _ssl.close();
+      }
+    });
+  }
+
+  public boolean terminate()
+  {
+    return submit(new Operation()
+    {
+      @Override
+      public void run()
+      {
+        _ssl.terminate();
+      }
+    });
+  }
+
+  /* Privates */
+  private interface Operation
+  {
+    void run() throws IOException;
+  }
+
+  private boolean submit(final Operation operation)
+  {
+    return _pool.submit(_shard, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        /* Nothing may escape into the shard's thread, which runs the
+         work of other connections too. A facade that failed with anything
+         but an SSLException is in an unknown state and is terminated. */
+        try {
+          operation.run();
+        } catch (SSLException e) {
+          fail(e);
+        } catch (IOException e) {
+          fail(new SSLException(e));
+        } catch (Throwable t) {
+          try {
+            _ssl.terminate();
+          } catch (Throwable ignored) {
+            //Already reporting the original failure
+          }
+          fail(new SSLException("Crypto work failed", t));
+        }
+      }
+    });
+  }
+
+  private void fail(final SSLException e)
+  {
+    _pool.complete(_shard, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _listener.onFailure(e);
+      }
+    });
+  }
+
+  private void attachListeners()
+  {
+    _ssl.setSSLListener(new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(final ByteBuffer wrappedBytes)
+      {
+        _pool.complete(_shard, new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            _listener.onWrappedData(wrappedBytes);
+          }
+        });
+      }
+
+      @Override
+      public void onPlainData(final ByteBuffer plainBytes)
+      {
+        _pool.complete(_shard, new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            _listener.onPlainData(plainBytes);
+          }
+        });
+      }
+    });
+    _ssl.setHandshakeCompletedListener(new IHandshakeCompletedListener()
+    {
+      @Override
+      public void onComplete()
+      {
+        _pool.complete(_shard, new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            _listener.onComplete();
+          }
+        });
+      }
+    });
+    _ssl.setCloseListener(new ISessionClosedListener()
+    {
+      @Override
+      public void onSessionClosed()
+      {
+        _pool.complete(_shard, new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            _listener.onSessionClosed();
+          }
+        });
+      }
+    });
+  }
+}
@@ -0,0 +1,159 @@
+package prj.sslfacade.concurrent;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import prj.sslfacade.ISSLFacade;
+
+public class CryptoWorkerPool
+{
+  /*
+   Runs the encrypt/decrypt work of many facades on a fixed set of crypto
+   threads so that TLS throughput scales with cores while every facade is
+   still only ever used by a single thread at a time.
+
+   Each registered facade is pinned to one shard. A shard owns one crypto
+   thread, a queue of work submitted by the I/O thread and a queue of
+   results going back to it. Both are single-producer/single-consumer
+   queues: the pool is meant to be owned by one I/O thread, which submits
+   work through CryptoConnection and collects results with poll(). An
+   application with several event loops should give each loop its own
+   pool. Because a facade never leaves its shard and both queues are FIFO,
+   results are handed back in the order the facade produced them.
+
+   When results become available the optional wakeup callback is run on the
+   crypto thread, e.g. to wake up a Selector the I/O thread is blocked in.
+
+   The single thread guarantee only holds if the facades run their
+   delegated tasks synchronously, like DefaultTaskHandler does. An
+   ITaskHandler that runs them on an executor resumes the handshake on
+   that executor's thread, concurrently with the crypto thread.
+   */
+
+  private static final long IDLE_PARK_NANOS = 1000000L;
+
+  private final Shard[] _shards;
+  private final Runnable _wakeup;
+  private int _next;
+
+  public CryptoWorkerPool(int threads, int queueCapacity)
+  {
+    this(threads, queueCapacity, null);
+  }
+
+  public CryptoWorkerPool(int threads, int queueCapacity, Runnable wakeup)
+  {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one crypto thread is required");
+    }
+    _wakeup = wakeup;
+    _shards = new Shard[threads];
+    for (int i = 0; i < threads; i++) {
+      _shards[i] = new Shard(i, queueCapacity);
+    }
+    for (Shard shard : _shards) {
+      shard._thread.start();
+    }
+  }
+
+  public CryptoConnection register(ISSLFacade ssl, ICryptoListener listener)
+  {
+    /* Facades are spread over the shards round robin */
+    Shard shard = _shards[_next];
+    _next = (_next + 1) % _shards.length;
+    return new CryptoConnection(this, shard, ssl, listener);
+  }
+
+  public int poll()
+  {
+    /* Runs all results that are ready on the calling I/O thread and
+     returns how many there were */
+    int count = 0;
+    for (Shard shard : _shards) {
+      shard._wakeupPending.set(false);
+      Runnable completion;
+      while ((completion = shard._completions.poll()) != null) {
+        completion.run();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public void shutdown()
+  {
+    for (Shard shard : _shards) {
+      shard._running = false;
+      LockSupport.unpark(shard._thread);
+    }
+  }
+
+  /* Package private, used by CryptoConnection */
+  boolean submit(Shard shard, Runnable work)
+  {
+    if (!shard._running || !shard._work.offer(work)) {
+      return false;
+    }
+    /* Pairs with the crypto thread announcing that it is idle before it
+     looks at the queue for the last time */
+    VarHandle.fullFence();
+    if (shard._idle) {
+      LockSupport.unpark(shard._thread);
+    }
+    return true;
+  }
+
+  void complete(Shard shard, Runnable completion)
+  {
+    /* Called on the crypto thread. Results are never dropped, if the I/O
+     thread falls behind the crypto thread waits for it */
+    while (!shard._completions.offer(completion)) {
+      LockSupport.parkNanos(IDLE_PARK_NANOS);
+    }
+    if (_wakeup != null && shard._wakeupPending.compareAndSet(false, true)) {
+      _wakeup.run();
+    }
+  }
+
+  static class Shard implements Runnable
+  {
+    private final SpscQueue<Runnable> _work;
+    private final SpscQueue<Runnable> _completions;
+    private final AtomicBoolean _wakeupPending = new AtomicBoolean();
+    private final Thread _thread;
+    private volatile boolean _running = true;
+    private volatile boolean _idle;
+
+    Shard(int index, int queueCapacity)
+    {
+      _work = new SpscQueue<Runnable>(queueCapacity);
+      _completions = new SpscQueue<Runnable>(queueCapacity);
+      _thread = new Thread(this, "sslfacade-crypto-" + index);
+      _thread.setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      while (_running) {
+        Runnable work = _work.poll();
+        if (work != null) {
+          try {
+            work.run();
+          } catch (Throwable t) {
+            /* CryptoConnection reports failures to its listener, this only
+             keeps the shard alive for the other connections */
+            _thread.getUncaughtExceptionHandler().uncaughtException(_thread, t);
+          }
+          continue;
+        }
+        _idle = true;
+        VarHandle.fullFence();
+        if (_work.isEmpty() && _running) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        _idle = false;
+      }
+    }
+  }
+}
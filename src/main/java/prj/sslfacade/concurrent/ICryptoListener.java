@@ -0,0 +1,16 @@
+package prj.sslfacade.concurrent;
+
+import javax.net.ssl.SSLException;
+import prj.sslfacade.IHandshakeCompletedListener;
+import prj.sslfacade.ISSLListener;
+import prj.sslfacade.ISessionClosedListener;
+
+/**
+ * Receives the results of a CryptoConnection on the I/O thread, in the
+ * order in which the facade produced them.
+ */
+public interface ICryptoListener extends ISSLListener, IHandshakeCompletedListener,
+        ISessionClosedListener
+{
+    void onFailure(SSLException e);
+}
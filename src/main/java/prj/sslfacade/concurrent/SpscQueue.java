@@ -0,0 +1,88 @@
+package prj.sslfacade.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpscQueue<E>
+{
+  /*
+   A bounded, lock-free queue for exactly one producer thread and exactly
+   one consumer thread. Elements are stored in a power of two sized ring,
+   the producer publishes a slot by advancing the tail with an ordered
+   write and the consumer frees it by advancing the head the same way.
+   Each side keeps a cached copy of the other side's index so that the
+   shared counters are only read when the queue looks full or empty.
+
+   Using it from more than one producer or consumer thread corrupts it.
+   */
+
+  private final Object[] _ring;
+  private final int _mask;
+  private final AtomicLong _head = new AtomicLong();
+  private final AtomicLong _tail = new AtomicLong();
+  private long _cachedHead;
+  private long _cachedTail;
+
+  public SpscQueue(int capacity)
+  {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("Unsupported queue capacity: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    _ring = new Object[size];
+    _mask = size - 1;
+  }
+
+  public int capacity()
+  {
+    return _ring.length;
+  }
+
+  public boolean offer(E e)
+  {
+    /* Producer side, returns false if the queue is full */
+    if (e == null) {
+      throw new NullPointerException();
+    }
+    long tail = _tail.get();
+    if (tail - _cachedHead >= _ring.length) {
+      _cachedHead = _head.get();
+      if (tail - _cachedHead >= _ring.length) {
+        return false;
+      }
+    }
+    _ring[(int) tail & _mask] = e;
+    _tail.lazySet(tail + 1);
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  public E poll()
+  {
+    /* Consumer side, returns null if the queue is empty */
+    long head = _head.get();
+    if (head >= _cachedTail) {
+      _cachedTail = _tail.get();
+      if (head >= _cachedTail) {
+        return null;
+      }
+    }
+    int index = (int) head & _mask;
+    E e = (E) _ring[index];
+    _ring[index] = null;
+    _head.lazySet(head + 1);
+    return e;
+  }
+
+  public boolean isEmpty()
+  {
+    return _head.get() >= _tail.get();
+  }
+
+  public int size()
+  {
+    return (int) Math.max(0, _tail.get() - _head.get());
+  }
+}
@@ -0,0 +1,440 @@
+package prj.sslfacade.flow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.IHandshakeCompletedListener;
+import prj.sslfacade.ISSLFacade;
+import prj.sslfacade.ISSLListener;
+import prj.sslfacade.ISessionClosedListener;
+
+public class SSLFlowAdapter
+{
+  /*
+   Exposes an ISSLFacade as two java.util.concurrent.Flow processors. The
+   decryptor takes ciphertext from the transport and publishes plaintext,
+   the encryptor takes plaintext from the application and publishes
+   ciphertext, including the handshake and close_notify records the
+   facade generates on its own.
+
+   Everything a facade produces for one upstream item is published as a
+   single batch, i.e. one onNext carries all the records that a single
+   encrypt or decrypt call produced. Each processor requests one upstream
+   item at a time and only while its own subscriber has outstanding demand
+   and no batches are waiting, so a slow subscriber stops the upstream
+   instead of letting batches pile up. Plaintext is only requested from
+   upstream after the handshake has completed.
+
+   The facade's session closed event completes both processors and cancels
+   their upstreams, an error from either side terminates the facade and is
+   propagated to both subscribers. Completion of the plaintext upstream
+   closes the facade properly, completion of the ciphertext upstream before
+   the session was closed is reported as an error since the peer never
+   sent close_notify.
+
+   The adapter takes over the facade's listeners and serializes all calls
+   into the facade on its own monitor, so the two processors may be driven
+   from different threads. Subscribers, subscriptions and the handshake
+   listener are never called while that monitor is held: signals are
+   queued under it and delivered afterwards by whichever thread gets to
+   drain the stage, so a subscriber that blocks or calls back in from
+   another thread cannot deadlock the adapter.
+   */
+
+  private final ISSLFacade _ssl;
+  private final Stage _decryptor;
+  private final Stage _encryptor;
+  private IHandshakeCompletedListener _hcl;
+  private boolean _sessionClosed;
+  private boolean _handshakeCompleted;
+
+  public SSLFlowAdapter(ISSLFacade ssl)
+  {
+    _ssl = ssl;
+    _decryptor = new Stage()
+    {
+      @Override
+      void process(ByteBuffer cipherText) throws SSLException
+      {
+        _ssl.decrypt(cipherText);
+      }
+
+      @Override
+      void upstreamCompleted()
+      {
+        if (!_sessionClosed) {
+          fail(new SSLException("Transport closed before close_notify was received"));
+        }
+      }
+
+      @Override
+      boolean readyForInput()
+      {
+        return true;
+      }
+    };
+    _encryptor = new Stage()
+    {
+      @Override
+      void process(ByteBuffer plainText) throws SSLException
+      {
+        _ssl.encrypt(plainText);
+      }
+
+      @Override
+      void upstreamCompleted()
+      {
+        _ssl.close();
+      }
+
+      @Override
+      boolean readyForInput()
+      {
+        return _ssl.isHandshakeCompleted();
+      }
+    };
+    _ssl.setSSLListener(new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(ByteBuffer wrappedBytes)
+      {
+        _encryptor.collect(wrappedBytes);
+      }
+
+      @Override
+      public void onPlainData(ByteBuffer plainBytes)
+      {
+        _decryptor.collect(plainBytes);
+      }
+    });
+    _ssl.setCloseListener(new ISessionClosedListener()
+    {
+      @Override
+      public void onSessionClosed()
+      {
+        _sessionClosed = true;
+        _decryptor.complete();
+        _encryptor.complete();
+      }
+    });
+    _ssl.setHandshakeCompletedListener(new IHandshakeCompletedListener()
+    {
+      @Override
+      public void onComplete()
+      {
+        //Called back once the monitor has been released
+        _handshakeCompleted = true;
+      }
+    });
+  }
+
+  public Flow.Processor<ByteBuffer, List<ByteBuffer>> decryptor()
+  {
+    return _decryptor;
+  }
+
+  public Flow.Processor<ByteBuffer, List<ByteBuffer>> encryptor()
+  {
+    return _encryptor;
+  }
+
+  public void setHandshakeCompletedListener(IHandshakeCompletedListener hcl)
+  {
+    _hcl = hcl;
+  }
+
+  public void beginHandshake() throws SSLException
+  {
+    try {
+      synchronized (this) {
+        try {
+          _ssl.beginHandshake();
+        } catch (SSLException e) {
+          fail(e);
+          throw e;
+        } catch (IOException e) {
+          SSLException wrapped = new SSLException(e);
+          fail(wrapped);
+          throw wrapped;
+        }
+      }
+    } finally {
+      drain();
+    }
+  }
+
+  public void terminate()
+  {
+    synchronized (this) {
+      fail(new SSLException("Session terminated"));
+    }
+    drain();
+  }
+
+  /* Privates */
+  private void fail(Throwable t)
+  {
+    _ssl.terminate();
+    _decryptor.error(t);
+    _encryptor.error(t);
+  }
+
+  private void drain()
+  {
+    /* Output of a facade call may belong to either processor, e.g. a
+     decrypt during the handshake produces ciphertext. Must not be called
+     with the monitor held. */
+    boolean handshakeCompleted;
+    synchronized (this) {
+      handshakeCompleted = _handshakeCompleted;
+      _handshakeCompleted = false;
+    }
+    if (handshakeCompleted && _hcl != null) {
+      _hcl.onComplete();
+    }
+    _decryptor.drain();
+    _encryptor.drain();
+  }
+
+  private abstract class Stage implements Flow.Processor<ByteBuffer, List<ByteBuffer>>
+  {
+    private final ArrayDeque<List<ByteBuffer>> _ready = new ArrayDeque<>();
+    private final AtomicInteger _wip = new AtomicInteger();
+    private List<ByteBuffer> _batch = new ArrayList<>();
+    private Flow.Subscription _upstream;
+    private Flow.Subscriber<? super List<ByteBuffer>> _downstream;
+    private boolean _subscribed;
+    private long _demand;
+    private boolean _upstreamRequested;
+    private boolean _upstreamDone;
+    private boolean _cancelUpstream;
+    private boolean _completed;
+    private boolean _terminated;
+    private Throwable _error;
+
+    abstract void process(ByteBuffer item) throws SSLException;
+
+    abstract void upstreamCompleted();
+
+    abstract boolean readyForInput();
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<ByteBuffer>> subscriber)
+    {
+      boolean rejected;
+      synchronized (SSLFlowAdapter.this) {
+        rejected = _subscribed;
+        _subscribed = true;
+      }
+      if (rejected) {
+        subscriber.onSubscribe(new NoSubscription());
+        subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+        return;
+      }
+      subscriber.onSubscribe(new Flow.Subscription()
+      {
+        @Override
+        public void request(long n)
+        {
+          synchronized (SSLFlowAdapter.this) {
+            if (n <= 0) {
+              error(new IllegalArgumentException("Demand must be positive: " + n));
+            } else {
+              _demand = (Long.MAX_VALUE - _demand < n) ? Long.MAX_VALUE : _demand + n;
+            }
+          }
+          SSLFlowAdapter.this.drain();
+        }
+
+        @Override
+        public void cancel()
+        {
+          synchronized (SSLFlowAdapter.this) {
+            _terminated = true;
+            _ready.clear();
+            _batch.clear();
+            cancelUpstream();
+          }
+          SSLFlowAdapter.this.drain();
+        }
+      });
+      //Only signalled once onSubscribe has returned
+      synchronized (SSLFlowAdapter.this) {
+        _downstream = subscriber;
+      }
+      SSLFlowAdapter.this.drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+      boolean accepted;
+      synchronized (SSLFlowAdapter.this) {
+        accepted = _upstream == null && !_terminated && !_completed;
+        if (accepted) {
+          _upstream = subscription;
+        }
+      }
+      if (!accepted) {
+        subscription.cancel();
+        return;
+      }
+      SSLFlowAdapter.this.drain();
+    }
+
+    @Override
+    public void onNext(ByteBuffer item)
+    {
+      synchronized (SSLFlowAdapter.this) {
+        _upstreamRequested = false;
+        if (!_terminated && !_completed) {
+          try {
+            process(item);
+          } catch (SSLException e) {
+            fail(e);
+          } catch (RuntimeException e) {
+            fail(e);
+          }
+        }
+      }
+      SSLFlowAdapter.this.drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+      synchronized (SSLFlowAdapter.this) {
+        _upstreamDone = true;
+        fail(throwable);
+      }
+      SSLFlowAdapter.this.drain();
+    }
+
+    @Override
+    public void onComplete()
+    {
+      synchronized (SSLFlowAdapter.this) {
+        _upstreamDone = true;
+        upstreamCompleted();
+      }
+      SSLFlowAdapter.this.drain();
+    }
+
+    void collect(ByteBuffer data)
+    {
+      _batch.add(data);
+    }
+
+    void complete()
+    {
+      /* The session is over, nothing more is taken from upstream */
+      _completed = true;
+      cancelUpstream();
+    }
+
+    void error(Throwable t)
+    {
+      if (_error == null && !_terminated) {
+        _error = t;
+        _ready.clear();
+        _batch.clear();
+        cancelUpstream();
+      }
+    }
+
+    void drain()
+    {
+      /* Only one thread at a time delivers signals, a thread that finds
+       another one draining leaves the work to it */
+      if (_wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        while (emitNext()) {
+          //Until there is nothing left that can be signalled
+        }
+        missed = _wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private boolean emitNext()
+    {
+      /* Takes the next signal under the monitor and delivers it after
+       releasing it, returns false if there was none */
+      Flow.Subscriber<? super List<ByteBuffer>> downstream;
+      Flow.Subscription cancel = null;
+      Flow.Subscription request = null;
+      List<ByteBuffer> item = null;
+      Throwable error = null;
+      boolean complete = false;
+      synchronized (SSLFlowAdapter.this) {
+        if (!_batch.isEmpty()) {
+          _ready.add(_batch);
+          _batch = new ArrayList<>();
+        }
+        downstream = _downstream;
+        if (_cancelUpstream) {
+          _cancelUpstream = false;
+          cancel = _upstream;
+        } else if (downstream == null || _terminated) {
+          return false;
+        } else if (_demand > 0 && !_ready.isEmpty()) {
+          _demand--;
+          item = _ready.poll();
+        } else if (_error != null) {
+          _terminated = true;
+          error = _error;
+        } else if (_completed && _ready.isEmpty()) {
+          _terminated = true;
+          complete = true;
+        } else if (_upstream != null && !_completed && !_upstreamDone
+                && !_upstreamRequested && _demand > 0 && _ready.isEmpty()
+                && readyForInput()) {
+          _upstreamRequested = true;
+          request = _upstream;
+        } else {
+          return false;
+        }
+      }
+      if (cancel != null) {
+        cancel.cancel();
+      } else if (item != null) {
+        downstream.onNext(item);
+      } else if (error != null) {
+        downstream.onError(error);
+      } else if (complete) {
+        downstream.onComplete();
+      } else {
+        request.request(1);
+      }
+      return true;
+    }
+
+    private void cancelUpstream()
+    {
+      if (_upstream != null && !_upstreamDone) {
+        _upstreamDone = true;
+        _cancelUpstream = true;
+      }
+    }
+  }
+
+  private static class NoSubscription implements Flow.Subscription
+  {
+    @Override
+    public void request(long n)
+    {
+    }
+
+    @Override
+    public void cancel()
+    {
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package prj.sslfacade.pool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the plain data of a connection taken from a WarmConnectionPool.
+ */
+public interface IPlainDataListener
+{
+    void onPlainData(ByteBuffer plainBytes);
+}
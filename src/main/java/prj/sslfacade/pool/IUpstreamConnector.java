@@ -0,0 +1,16 @@
+package prj.sslfacade.pool;
+
+import java.util.concurrent.CompletableFuture;
+import prj.sslfacade.ISSLFacade;
+
+/**
+ * Opens transports to upstreams for the WarmConnectionPool. Everything
+ * read from the transport must be passed to ssl.decrypt() and ssl.terminate()
+ * must be called when the transport is closed by the other side, both on the
+ * thread the pool is used from. The returned future completes on that thread
+ * once the transport is connected.
+ */
+public interface IUpstreamConnector
+{
+    CompletableFuture<IUpstreamTransport> connect(String upstream, ISSLFacade ssl);
+}
@@ -0,0 +1,14 @@
+package prj.sslfacade.pool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A connection to an upstream as seen by the WarmConnectionPool, only used
+ * to send ciphertext and to close it.
+ */
+public interface IUpstreamTransport
+{
+    void write(ByteBuffer cipherText);
+
+    void close();
+}
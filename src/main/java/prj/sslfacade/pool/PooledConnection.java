@@ -0,0 +1,141 @@
+package prj.sslfacade.pool;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.ISSLListener;
+import prj.sslfacade.ISessionClosedListener;
+import prj.sslfacade.SSLFacade;
+
+public class PooledConnection
+{
+  /*
+   A client connection of a WarmConnectionPool: a transport to an
+   upstream and the facade that has completed its handshake over it.
+   Ciphertext the facade produces is written to the transport, plain data
+   is handed to the listener of whoever took the connection from the pool.
+   */
+
+  private final String _upstream;
+  private final SSLFacade _ssl;
+  private IUpstreamTransport _transport;
+  private IPlainDataListener _plainDataListener;
+  private ISessionClosedListener _closeListener;
+  private boolean _leased;
+  private boolean _closed;
+  private long _idleSince;
+
+  PooledConnection(String upstream, SSLFacade ssl)
+  {
+    _upstream = upstream;
+    _ssl = ssl;
+    _ssl.setSSLListener(new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(ByteBuffer wrappedBytes)
+      {
+        if (_transport != null) {
+          _transport.write(wrappedBytes);
+        }
+      }
+
+      @Override
+      public void onPlainData(ByteBuffer plainBytes)
+      {
+        if (_plainDataListener != null) {
+          _plainDataListener.onPlainData(plainBytes);
+        }
+      }
+    });
+    _ssl.setCloseListener(new ISessionClosedListener()
+    {
+      @Override
+      public void onSessionClosed()
+      {
+        _closed = true;
+        if (_closeListener != null) {
+          _closeListener.onSessionClosed();
+        }
+      }
+    });
+  }
+
+  public String getUpstream()
+  {
+    return _upstream;
+  }
+
+  public SSLFacade getFacade()
+  {
+    return _ssl;
+  }
+
+  public void setPlainDataListener(IPlainDataListener l)
+  {
+    _plainDataListener = l;
+  }
+
+  public void setCloseListener(ISessionClosedListener l)
+  {
+    _closeListener = l;
+  }
+
+  public void write(ByteBuffer plainData) throws SSLException
+  {
+    _ssl.encrypt(plainData);
+  }
+
+  public boolean isOpen()
+  {
+    /* terminate() does not report a closed session, it completes the
+     peer close future exceptionally instead */
+    return !_closed && !_ssl.isCloseCompleted() && !_ssl.getPeerCloseFuture().isDone();
+  }
+
+  public void close()
+  {
+    /* Sends close_notify and closes the transport */
+    if (!_closed) {
+      _closed = true;
+      _ssl.close();
+    }
+    if (_transport != null) {
+      _transport.close();
+    }
+  }
+
+  /* Package private, used by WarmConnectionPool */
+  void connected(IUpstreamTransport transport)
+  {
+    _transport = transport;
+  }
+
+  void warm(long now)
+  {
+    _idleSince = now;
+  }
+
+  long getIdleSince()
+  {
+    return _idleSince;
+  }
+
+  void lease()
+  {
+    _leased = true;
+  }
+
+  boolean isLeased()
+  {
+    return _leased;
+  }
+
+  void discard()
+  {
+    /* The connection never made it into the pool or has expired there */
+    _closed = true;
+    _ssl.terminate();
+    if (_transport != null) {
+      _transport.close();
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package prj.sslfacade.pool;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import javax.net.ssl.SSLSession;
+import prj.sslfacade.ITaskHandler;
+import prj.sslfacade.SSLFacade;
+import prj.sslfacade.SSLFacadeFactory;
+import prj.sslfacade.timer.SSLDeadlines;
+
+public class WarmConnectionPool
+{
+  /*
+   Keeps a number of client connections per upstream connected and
+   handshaked ahead of time, so that a request that needs a new
+   connection gets one without waiting for TCP and TLS handshakes.
+
+   For every upstream the pool opens connections through the
+   IUpstreamConnector, creates their facades from a client mode
+   SSLFacadeFactory and runs the handshake. Connections that completed it
+   are kept warm until acquire() hands them out, oldest first. A warm
+   connection that the upstream closes is dropped and one that stayed
+   idle for longer than maxIdle is closed, since upstreams tend to close
+   idle connections on their own. Both are replaced, as are connections
+   that have been handed out.
+
+   The pool has no thread of its own. It is meant to live on the event
+   loop that drives the facades and the transports, which calls
+   maintain() periodically. Connecting and handshaking happen in the
+   background of that loop, not on the request path.
+   */
+
+  private final SSLFacadeFactory _factory;
+  private final IUpstreamConnector _connector;
+  private final ITaskHandler _taskHandler;
+  private final int _connectionsPerUpstream;
+  private final long _maxIdleNanos;
+  private final Map<String, Upstream> _upstreams = new LinkedHashMap<String, Upstream>();
+  private SSLDeadlines _deadlines;
+  private long _hits;
+  private long _misses;
+  private long _failures;
+  private long _expired;
+
+  public WarmConnectionPool(SSLFacadeFactory factory, IUpstreamConnector connector,
+          ITaskHandler taskHandler, int connectionsPerUpstream, long maxIdle, TimeUnit unit)
+  {
+    if (!factory.isClientMode()) {
+      throw new IllegalArgumentException("A client mode factory is required");
+    }
+    _factory = factory;
+    _connector = connector;
+    _taskHandler = taskHandler;
+    _connectionsPerUpstream = connectionsPerUpstream;
+    _maxIdleNanos = unit.toNanos(maxIdle);
+  }
+
+  public void setDeadlines(SSLDeadlines deadlines)
+  {
+    /* Puts a deadline on the handshakes of new connections */
+    _deadlines = deadlines;
+  }
+
+  public void addUpstream(String upstream)
+  {
+    if (!_upstreams.containsKey(upstream)) {
+      Upstream state = new Upstream(upstream);
+      _upstreams.put(upstream, state);
+      refill(state);
+    }
+  }
+
+  public void removeUpstream(String upstream)
+  {
+    Upstream state = _upstreams.remove(upstream);
+    if (state != null) {
+      for (PooledConnection connection : state.warm) {
+        connection.close();
+      }
+      state.warm.clear();
+    }
+  }
+
+  public PooledConnection acquire(String upstream)
+  {
+    /* A connection that has completed its handshake, or null if there is
+     none warm right now and the caller has to connect on its own */
+    Upstream state = _upstreams.get(upstream);
+    if (state == null) {
+      throw new IllegalArgumentException("Unknown upstream: " + upstream);
+    }
+    long now = System.nanoTime();
+    PooledConnection connection;
+    while ((connection = state.warm.poll()) != null) {
+      if (connection.isOpen() && !isExpired(connection, now)) {
+        break;
+      }
+      drop(connection, now);
+    }
+    if (connection == null) {
+      _misses++;
+    } else {
+      _hits++;
+      connection.lease();
+    }
+    refill(state);
+    return connection;
+  }
+
+  public void maintain()
+  {
+    maintain(System.nanoTime());
+  }
+
+  public void maintain(long now)
+  {
+    /* Drops closed and expired connections and starts replacing them */
+    for (Upstream state : _upstreams.values()) {
+      Iterator<PooledConnection> i = state.warm.iterator();
+      while (i.hasNext()) {
+        PooledConnection connection = i.next();
+        if (!connection.isOpen() || isExpired(connection, now)) {
+          i.remove();
+          drop(connection, now);
+        }
+      }
+      refill(state);
+    }
+  }
+
+  public void shutdown()
+  {
+    for (String upstream : _upstreams.keySet().toArray(new String[0])) {
+      removeUpstream(upstream);
+    }
+  }
+
+  public int getWarmCount(String upstream)
+  {
+    Upstream state = _upstreams.get(upstream);
+    return state == null ? 0 : state.warm.size();
+  }
+
+  public long getHits()
+  {
+    return _hits;
+  }
+
+  public long getMisses()
+  {
+    return _misses;
+  }
+
+  public long getFailures()
+  {
+    /* Connections that failed to connect or to handshake */
+    return _failures;
+  }
+
+  public long getExpired()
+  {
+    return _expired;
+  }
+
+  /* Privates */
+  private boolean isExpired(PooledConnection connection, long now)
+  {
+    return now - connection.getIdleSince() > _maxIdleNanos;
+  }
+
+  private void drop(PooledConnection connection, long now)
+  {
+    if (connection.isOpen() && isExpired(connection, now)) {
+      _expired++;
+      connection.close();
+    } else {
+      connection.discard();
+    }
+  }
+
+  private void refill(Upstream state)
+  {
+    /* Counted up front since connectors may complete synchronously */
+    int missing = _connectionsPerUpstream - state.warm.size() - state.connecting;
+    for (int i = 0; i < missing; i++) {
+      state.connecting++;
+      connect(state);
+    }
+  }
+
+  private void connect(final Upstream state)
+  {
+    final PooledConnection connection;
+    try {
+      SSLFacade ssl = _factory.create(_taskHandler);
+      connection = new PooledConnection(state.name, ssl);
+    } catch (IOException e) {
+      state.connecting--;
+      _failures++;
+      return;
+    }
+    _connector.connect(state.name, connection.getFacade()).whenComplete(
+            new BiConsumer<IUpstreamTransport, Throwable>()
+    {
+      @Override
+      public void accept(IUpstreamTransport transport, Throwable failure)
+      {
+        if (failure != null) {
+          failed(state, connection);
+        } else {
+          connection.connected(transport);
+          handshake(state, connection);
+        }
+      }
+    });
+  }
+
+  private void handshake(final Upstream state, final PooledConnection connection)
+  {
+    CompletableFuture<SSLSession> handshake;
+    try {
+      if (_deadlines != null) {
+        //Expiry fails the handshake future, which discards the connection
+        handshake = _deadlines.beginHandshake(connection.getFacade(), null);
+      } else {
+        connection.getFacade().beginHandshake();
+        handshake = connection.getFacade().getHandshakeFuture();
+      }
+    } catch (IOException e) {
+      failed(state, connection);
+      return;
+    }
+    handshake.whenComplete(new BiConsumer<SSLSession, Throwable>()
+    {
+      @Override
+      public void accept(SSLSession session, Throwable failure)
+      {
+        if (failure != null) {
+          failed(state, connection);
+        } else if (_upstreams.get(state.name) != state) {
+          //The upstream has been removed in the meantime
+          state.connecting--;
+          connection.close();
+        } else {
+          state.connecting--;
+          connection.warm(System.nanoTime());
+          state.warm.add(connection);
+        }
+      }
+    });
+  }
+
+  private void failed(Upstream state, PooledConnection connection)
+  {
+    /* Not retried right away, the next maintain() tries again */
+    state.connecting--;
+    _failures++;
+    connection.discard();
+  }
+
+  private static class Upstream
+  {
+    final String name;
+    final ArrayDeque<PooledConnection> warm = new ArrayDeque<PooledConnection>();
+    int connecting;
+
+    Upstream(String name)
+    {
+      this.name = name;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package prj.sslfacade.sim;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.ISSLFacade;
+
+class Link
+{
+  /*
+   One direction of a simulated connection. What the sending facade
+   writes is split into segments that are in flight until their arrival
+   time and then passed to decrypt() of the receiving facade, in the order
+   they were sent.
+   */
+
+  private final SimulatedNetwork _network;
+  private final ISSLFacade _receiver;
+  private final ArrayDeque<Segment> _inFlight = new ArrayDeque<Segment>();
+  private long _freeAt;
+  private long _segments;
+
+  Link(SimulatedNetwork network, ISSLFacade receiver)
+  {
+    _network = network;
+    _receiver = receiver;
+  }
+
+  void send(ByteBuffer data)
+  {
+    /* Facades hand out buffers of their own, so segments can be views */
+    NetworkProfile profile = _network.getProfile();
+    while (data.hasRemaining()) {
+      int size = Math.min(profile.getSegmentSize(), data.remaining());
+      ByteBuffer segment = data.slice();
+      segment.limit(size);
+      data.position(data.position() + size);
+      send(segment, profile);
+    }
+  }
+
+  private void send(ByteBuffer segment, NetworkProfile profile)
+  {
+    long departure = Math.max(_network.now(), _freeAt);
+    if (profile.getBytesPerSecond() > 0) {
+      departure += segment.remaining() * 1000000000L / profile.getBytesPerSecond();
+    }
+    _freeAt = departure;
+    _inFlight.add(new Segment(segment, departure + profile.getRttNanos() / 2));
+    _segments++;
+  }
+
+  long nextArrival()
+  {
+    Segment next = _inFlight.peek();
+    return next == null ? Long.MAX_VALUE : next.arrival;
+  }
+
+  void deliver(long now) throws SSLException
+  {
+    /* Delivers the next segment that has arrived, or all of them at once
+     when the profile coalesces */
+    if (!_network.getProfile().isCoalesce()) {
+      _receiver.decrypt(_inFlight.poll().data);
+      return;
+    }
+    int size = 0;
+    for (Segment segment : _inFlight) {
+      if (segment.arrival > now) {
+        break;
+      }
+      size += segment.data.remaining();
+    }
+    ByteBuffer read = ByteBuffer.allocate(size);
+    while (nextArrival() <= now) {
+      read.put(_inFlight.poll().data);
+    }
+    read.flip();
+    _receiver.decrypt(read);
+  }
+
+  long getSegments()
+  {
+    return _segments;
+  }
+
+  private static class Segment
+  {
+    final ByteBuffer data;
+    final long arrival;
+
+    Segment(ByteBuffer data, long arrival)
+    {
+      this.data = data;
+      this.arrival = arrival;
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package prj.sslfacade.sim;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.DefaultTaskHandler;
+import prj.sslfacade.SSLFacade;
+
+public class NetworkBenchmark
+{
+  /*
+   Runs facade pairs over a SimulatedNetwork per NetworkProfile and
+   reports what the profile costs, so that changes to the unwrap path can
+   be validated against pathological splits as well as ideal ones.
+
+   For every profile a number of connections complete their handshakes
+   together, then each client sends the payload to its server in chunks,
+   all connections a chunk at a time. Reported are the simulated handshake
+   latency, which is a matter of round trips and bandwidth, and the CPU
+   time of the calling thread per handshake and per MB of payload, which
+   is what the facades spend on the profile's splits. The CPU time
+   includes the small share of the simulator itself.
+   */
+
+  private final SSLContext _serverContext;
+  private final SSLContext _clientContext;
+  private int _connections = 10;
+  private long _payloadBytes = 1024 * 1024;
+  private int _chunkSize = 16 * 1024;
+  private long _seed;
+  private int _warmupRounds = 1;
+
+  public NetworkBenchmark(SSLContext context)
+  {
+    this(context, context);
+  }
+
+  public NetworkBenchmark(SSLContext serverContext, SSLContext clientContext)
+  {
+    _serverContext = serverContext;
+    _clientContext = clientContext;
+  }
+
+  public void setConnections(int connections)
+  {
+    _connections = connections;
+  }
+
+  public void setPayloadBytes(long payloadBytes)
+  {
+    /* Per connection */
+    _payloadBytes = payloadBytes;
+  }
+
+  public void setChunkSize(int chunkSize)
+  {
+    _chunkSize = chunkSize;
+  }
+
+  public void setSeed(long seed)
+  {
+    _seed = seed;
+  }
+
+  public void setWarmupRounds(int warmupRounds)
+  {
+    /* Unmeasured rounds over the ideal profile before the first profile
+     is measured, so that its numbers do not include JIT compilation */
+    _warmupRounds = warmupRounds;
+  }
+
+  public List<Result> run() throws IOException
+  {
+    for (int i = 0; i < _warmupRounds; i++) {
+      run(NetworkProfile.ideal());
+    }
+    List<Result> results = new ArrayList<Result>();
+    for (NetworkProfile profile : NetworkProfile.standardProfiles()) {
+      results.add(run(profile));
+    }
+    return results;
+  }
+
+  public Result run(NetworkProfile profile) throws IOException
+  {
+    SimulatedNetwork network = new SimulatedNetwork(profile, _seed);
+    List<SimulatedConnection> connections = new ArrayList<SimulatedConnection>();
+    long cpu = cpuTime();
+    for (int i = 0; i < _connections; i++) {
+      SimulatedConnection connection = network.connect(
+              new SSLFacade(_clientContext, true, false, new DefaultTaskHandler()),
+              new SSLFacade(_serverContext, false, false, new DefaultTaskHandler()));
+      connection.beginHandshake();
+      connections.add(connection);
+    }
+    network.run();
+    long handshakeCpu = cpuTime() - cpu;
+    long handshakeNanos = 0;
+    long maxHandshakeNanos = 0;
+    for (SimulatedConnection connection : connections) {
+      if (connection.getHandshakeNanos() < 0) {
+        throw new SSLException("Handshake did not complete over " + profile);
+      }
+      handshakeNanos += connection.getHandshakeNanos();
+      maxHandshakeNanos = Math.max(maxHandshakeNanos, connection.getHandshakeNanos());
+    }
+
+    ByteBuffer chunk = ByteBuffer.allocate(_chunkSize);
+    long transferStart = network.now();
+    cpu = cpuTime();
+    long sent = 0;
+    while (sent < _payloadBytes) {
+      int size = (int) Math.min(_chunkSize, _payloadBytes - sent);
+      for (SimulatedConnection connection : connections) {
+        chunk.clear();
+        chunk.limit(size);
+        connection.getClient().encrypt(chunk);
+      }
+      sent += size;
+      network.run();
+    }
+    long transferCpu = cpuTime() - cpu;
+    for (SimulatedConnection connection : connections) {
+      if (connection.getServerReceived() != sent) {
+        throw new SSLException("Only " + connection.getServerReceived() + " of " + sent
+                + " bytes arrived over " + profile);
+      }
+      connection.getClient().terminate();
+      connection.getServer().terminate();
+    }
+    double megabytes = (double) sent * _connections / (1024 * 1024);
+    return new Result(profile.getName(), handshakeNanos / _connections, maxHandshakeNanos,
+            handshakeCpu / _connections, (long) (transferCpu / megabytes),
+            network.now() - transferStart, network.getSegments());
+  }
+
+  /* Privates */
+  private static long cpuTime()
+  {
+    /* CPU time of the calling thread, wall clock time where the JVM does
+     not measure it */
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+      return threads.getCurrentThreadCpuTime();
+    }
+    return System.nanoTime();
+  }
+
+  public static class Result
+  {
+    private final String _profile;
+    private final long _handshakeNanos;
+    private final long _maxHandshakeNanos;
+    private final long _cpuNanosPerHandshake;
+    private final long _cpuNanosPerMegabyte;
+    private final long _transferNanos;
+    private final long _segments;
+
+    Result(String profile, long handshakeNanos, long maxHandshakeNanos,
+            long cpuNanosPerHandshake, long cpuNanosPerMegabyte, long transferNanos,
+            long segments)
+    {
+      _profile = profile;
+      _handshakeNanos = handshakeNanos;
+      _maxHandshakeNanos = maxHandshakeNanos;
+      _cpuNanosPerHandshake = cpuNanosPerHandshake;
+      _cpuNanosPerMegabyte = cpuNanosPerMegabyte;
+      _transferNanos = transferNanos;
+      _segments = segments;
+    }
+
+    public String getProfile()
+    {
+      return _profile;
+    }
+
+    public long getHandshakeNanos()
+    {
+      /* Mean simulated handshake latency */
+      return _handshakeNanos;
+    }
+
+    public long getMaxHandshakeNanos()
+    {
+      return _maxHandshakeNanos;
+    }
+
+    public long getCpuNanosPerHandshake()
+    {
+      return _cpuNanosPerHandshake;
+    }
+
+    public long getCpuNanosPerMegabyte()
+    {
+      return _cpuNanosPerMegabyte;
+    }
+
+    public long getTransferNanos()
+    {
+      /* Simulated time the transfer took */
+      return _transferNanos;
+    }
+
+    public long getSegments()
+    {
+      return _segments;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%s: handshake %.2f ms (max %.2f ms), %.2f ms CPU per handshake, %.2f ms CPU per MB, transfer %.2f ms, %d segments",
+              _profile, _handshakeNanos / 1e6, _maxHandshakeNanos / 1e6, _cpuNanosPerHandshake / 1e6,
+              _cpuNanosPerMegabyte / 1e6, _transferNanos / 1e6, _segments);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package prj.sslfacade.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class NetworkProfile
+{
+  /*
+   How a SimulatedNetwork carries the bytes of its connections:
+
+   - The segment size splits everything a facade writes into segments of
+     at most that many bytes, down to a single byte.
+   - With coalescing, all segments of a direction that have arrived by the
+     time the receiver reads are passed to decrypt() in one buffer, as a
+     read from a socket would return them. Without it every segment is a
+     decrypt() of its own.
+   - The round trip time delays every segment by half of it.
+   - The bandwidth caps the bytes per second of each direction of a
+     connection, 0 leaves them uncapped.
+   - With reordering, the segments of different connections that are due
+     at the same time are delivered in random order. The order within a
+     connection is always kept, as it is with TCP.
+   */
+
+  private static final int MSS = 1460;
+
+  private final String _name;
+  private int _segmentSize = Integer.MAX_VALUE;
+  private boolean _coalesce;
+  private long _rttNanos;
+  private long _bytesPerSecond;
+  private boolean _reorder;
+
+  public NetworkProfile(String name)
+  {
+    _name = name;
+  }
+
+  public static NetworkProfile ideal()
+  {
+    /* Every write arrives at once and as a whole */
+    return new NetworkProfile("ideal");
+  }
+
+  public static NetworkProfile singleBytes()
+  {
+    NetworkProfile profile = new NetworkProfile("1-byte segments");
+    profile.setSegmentSize(1);
+    return profile;
+  }
+
+  public static NetworkProfile smallSegments()
+  {
+    /* The minimum MSS every IPv4 host has to accept */
+    NetworkProfile profile = new NetworkProfile("536-byte segments");
+    profile.setSegmentSize(536);
+    return profile;
+  }
+
+  public static NetworkProfile coalesced()
+  {
+    NetworkProfile profile = new NetworkProfile("coalesced segments");
+    profile.setSegmentSize(MSS);
+    profile.setCoalesce(true);
+    return profile;
+  }
+
+  public static NetworkProfile wan()
+  {
+    NetworkProfile profile = new NetworkProfile("wan 50ms 100Mbit/s");
+    profile.setSegmentSize(MSS);
+    profile.setCoalesce(true);
+    profile.setRtt(50, TimeUnit.MILLISECONDS);
+    profile.setBytesPerSecond(100L * 1000 * 1000 / 8);
+    return profile;
+  }
+
+  public static NetworkProfile reordered()
+  {
+    NetworkProfile profile = new NetworkProfile("reordered 1ms");
+    profile.setSegmentSize(MSS);
+    profile.setRtt(1, TimeUnit.MILLISECONDS);
+    profile.setReorder(true);
+    return profile;
+  }
+
+  public static List<NetworkProfile> standardProfiles()
+  {
+    List<NetworkProfile> profiles = new ArrayList<NetworkProfile>();
+    profiles.add(ideal());
+    profiles.add(singleBytes());
+    profiles.add(smallSegments());
+    profiles.add(coalesced());
+    profiles.add(wan());
+    profiles.add(reordered());
+    return profiles;
+  }
+
+  public String getName()
+  {
+    return _name;
+  }
+
+  public void setSegmentSize(int segmentSize)
+  {
+    if (segmentSize < 1) {
+      throw new IllegalArgumentException("Unsupported segment size: " + segmentSize);
+    }
+    _segmentSize = segmentSize;
+  }
+
+  public int getSegmentSize()
+  {
+    return _segmentSize;
+  }
+
+  public void setCoalesce(boolean coalesce)
+  {
+    _coalesce = coalesce;
+  }
+
+  public boolean isCoalesce()
+  {
+    return _coalesce;
+  }
+
+  public void setRtt(long rtt, TimeUnit unit)
+  {
+    _rttNanos = unit.toNanos(rtt);
+  }
+
+  public long getRttNanos()
+  {
+    return _rttNanos;
+  }
+
+  public void setBytesPerSecond(long bytesPerSecond)
+  {
+    _bytesPerSecond = bytesPerSecond;
+  }
+
+  public long getBytesPerSecond()
+  {
+    return _bytesPerSecond;
+  }
+
+  public void setReorder(boolean reorder)
+  {
+    _reorder = reorder;
+  }
+
+  public boolean isReorder()
+  {
+    return _reorder;
+  }
+
+  @Override
+  public String toString()
+  {
+    return _name;
+  }
+}
@@ -0,0 +1,108 @@
+package prj.sslfacade.sim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import javax.net.ssl.SSLSession;
+import prj.sslfacade.ISSLFacade;
+import prj.sslfacade.ISSLListener;
+
+public class SimulatedConnection
+{
+  /*
+   A client and a server facade connected by a SimulatedNetwork. The
+   connection takes over the SSLListener of both facades, wrapped data is
+   sent over the network and plain data is counted.
+   */
+
+  private final SimulatedNetwork _network;
+  private final ISSLFacade _client;
+  private final ISSLFacade _server;
+  private long _clientReceived;
+  private long _serverReceived;
+  private long _handshakeNanos = -1;
+
+  SimulatedConnection(SimulatedNetwork network, ISSLFacade client, ISSLFacade server,
+          final Link toServer, final Link toClient)
+  {
+    _network = network;
+    _client = client;
+    _server = server;
+    _client.setSSLListener(new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(ByteBuffer wrappedBytes)
+      {
+        toServer.send(wrappedBytes);
+      }
+
+      @Override
+      public void onPlainData(ByteBuffer plainBytes)
+      {
+        _clientReceived += plainBytes.remaining();
+      }
+    });
+    _server.setSSLListener(new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(ByteBuffer wrappedBytes)
+      {
+        toClient.send(wrappedBytes);
+      }
+
+      @Override
+      public void onPlainData(ByteBuffer plainBytes)
+      {
+        _serverReceived += plainBytes.remaining();
+      }
+    });
+  }
+
+  public ISSLFacade getClient()
+  {
+    return _client;
+  }
+
+  public ISSLFacade getServer()
+  {
+    return _server;
+  }
+
+  public CompletableFuture<SSLSession> beginHandshake() throws IOException
+  {
+    /* Begins the handshake on both sides, it progresses as the network
+     runs. Completes when the client has completed it. */
+    final long start = _network.now();
+    _server.beginHandshake();
+    _client.beginHandshake();
+    CompletableFuture<SSLSession> handshake = _client.getHandshakeFuture();
+    handshake.whenComplete(new BiConsumer<SSLSession, Throwable>()
+    {
+      @Override
+      public void accept(SSLSession session, Throwable failure)
+      {
+        if (failure == null) {
+          _handshakeNanos = _network.now() - start;
+        }
+      }
+    });
+    return handshake;
+  }
+
+  public long getHandshakeNanos()
+  {
+    /* Simulated time the client's handshake took, -1 until it completed */
+    return _handshakeNanos;
+  }
+
+  public long getClientReceived()
+  {
+    return _clientReceived;
+  }
+
+  public long getServerReceived()
+  {
+    return _serverReceived;
+  }
+}
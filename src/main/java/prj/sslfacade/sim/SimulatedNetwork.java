@@ -0,0 +1,102 @@
+package prj.sslfacade.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.ISSLFacade;
+
+public class SimulatedNetwork
+{
+  /*
+   An in-memory transport for facade pairs that splits, delays, paces and
+   reorders their bytes as a NetworkProfile describes, so that the unwrap
+   cache and the handshake can be exercised and benchmarked with the byte
+   boundaries of real networks instead of whole buffers.
+
+   Time is simulated. Nothing sleeps, run() delivers what is due and then
+   moves the clock to the next arrival, so delays and bandwidth caps cost
+   no wall clock time and the CPU spent is that of the facades. Delivery
+   happens from run() only and never from within a facade's callbacks,
+   which keeps the facades from being re-entered.
+
+   Not thread-safe, all connections of a network belong to one thread.
+   */
+
+  private final NetworkProfile _profile;
+  private final Random _random;
+  private final List<Link> _links = new ArrayList<Link>();
+  private final List<Link> _due = new ArrayList<Link>();
+  private long _now;
+
+  public SimulatedNetwork(NetworkProfile profile)
+  {
+    this(profile, 0);
+  }
+
+  public SimulatedNetwork(NetworkProfile profile, long seed)
+  {
+    /* The seed makes reordering repeatable */
+    _profile = profile;
+    _random = new Random(seed);
+  }
+
+  public SimulatedConnection connect(ISSLFacade client, ISSLFacade server)
+  {
+    Link toServer = new Link(this, server);
+    Link toClient = new Link(this, client);
+    _links.add(toServer);
+    _links.add(toClient);
+    return new SimulatedConnection(this, client, server, toServer, toClient);
+  }
+
+  public NetworkProfile getProfile()
+  {
+    return _profile;
+  }
+
+  public long now()
+  {
+    /* Simulated nanoseconds since the network was created */
+    return _now;
+  }
+
+  public void run() throws SSLException
+  {
+    /* Delivers segments until none is in flight anymore */
+    while (true) {
+      long next = Long.MAX_VALUE;
+      _due.clear();
+      for (Link link : _links) {
+        long arrival = link.nextArrival();
+        if (arrival <= _now) {
+          _due.add(link);
+        }
+        next = Math.min(next, arrival);
+      }
+      if (next == Long.MAX_VALUE) {
+        return;
+      }
+      if (_due.isEmpty()) {
+        _now = next;
+        continue;
+      }
+      if (_profile.isReorder()) {
+        Collections.shuffle(_due, _random);
+      }
+      for (Link link : _due) {
+        link.deliver(_now);
+      }
+    }
+  }
+
+  public long getSegments()
+  {
+    long segments = 0;
+    for (Link link : _links) {
+      segments += link.getSegments();
+    }
+    return segments;
+  }
+}
@@ -0,0 +1,169 @@
+package prj.sslfacade.sni;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.net.ssl.SSLException;
+
+public class ClientHello
+{
+  /*
+   The parts of a TLS ClientHello that are needed to pick a SSLContext
+   before there is a SSLEngine: the server name from the server_name
+   extension and the protocols offered in the ALPN extension.
+
+   parse() works on the raw bytes the client has sent so far. The
+   ClientHello may be split over several TLS records and those records may
+   arrive in pieces, as long as the message is incomplete parse() returns
+   null and should be called again with more bytes. Nothing is consumed,
+   the same bytes are later handed to the engine.
+   */
+
+  private static final int HANDSHAKE_RECORD = 22;
+  private static final int CLIENT_HELLO = 1;
+  private static final int SERVER_NAME_EXTENSION = 0;
+  private static final int ALPN_EXTENSION = 16;
+  private static final int HOST_NAME = 0;
+  private static final int MAX_RECORD_LENGTH = 16384 + 2048;
+
+  private final String _serverName;
+  private final List<String> _applicationProtocols;
+
+  ClientHello(String serverName, List<String> applicationProtocols)
+  {
+    _serverName = serverName;
+    _applicationProtocols = applicationProtocols;
+  }
+
+  public String getServerName()
+  {
+    /* The requested host name, null if the client did not send SNI */
+    return _serverName;
+  }
+
+  public List<String> getApplicationProtocols()
+  {
+    /* Protocols offered via ALPN, empty if the client offered none */
+    return _applicationProtocols;
+  }
+
+  public static ClientHello parse(ByteBuffer data) throws SSLException
+  {
+    /* Looks at the bytes between position and limit without moving the
+     position */
+    ByteBuffer records = data.duplicate();
+    ByteBuffer handshake = ByteBuffer.allocate(data.remaining());
+    while (records.remaining() >= 5) {
+      int type = records.get() & 0xff;
+      int major = records.get() & 0xff;
+      records.get();
+      int length = records.getShort() & 0xffff;
+      if (type != HANDSHAKE_RECORD || major != 3 || length > MAX_RECORD_LENGTH) {
+        throw new SSLException("Not a TLS ClientHello");
+      }
+      if (records.remaining() < length) {
+        return null;
+      }
+      ByteBuffer fragment = records.slice();
+      fragment.limit(length);
+      handshake.put(fragment);
+      records.position(records.position() + length);
+
+      if (handshake.position() >= 4) {
+        if ((handshake.get(0) & 0xff) != CLIENT_HELLO) {
+          throw new SSLException("Not a TLS ClientHello");
+        }
+        int messageLength = uint24(handshake, 1);
+        if (handshake.position() >= 4 + messageLength) {
+          ByteBuffer body = handshake.duplicate();
+          body.flip();
+          body.position(4);
+          body.limit(4 + messageLength);
+          return parseBody(body);
+        }
+      }
+    }
+    return null;
+  }
+
+  /* Privates */
+  private static ClientHello parseBody(ByteBuffer body) throws SSLException
+  {
+    String serverName = null;
+    List<String> protocols = Collections.emptyList();
+    try {
+      skip(body, 2 + 32);                       //version, random
+      skip(body, body.get() & 0xff);            //session id
+      skip(body, body.getShort() & 0xffff);     //cipher suites
+      skip(body, body.get() & 0xff);            //compression methods
+      if (!body.hasRemaining()) {
+        return new ClientHello(null, protocols);
+      }
+      ByteBuffer extensions = slice(body, body.getShort() & 0xffff);
+      while (extensions.hasRemaining()) {
+        int type = extensions.getShort() & 0xffff;
+        ByteBuffer extension = slice(extensions, extensions.getShort() & 0xffff);
+        if (type == SERVER_NAME_EXTENSION) {
+          serverName = parseServerName(extension);
+        } else if (type == ALPN_EXTENSION) {
+          protocols = parseProtocols(extension);
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new SSLException("Malformed ClientHello", e);
+    } catch (IllegalArgumentException e) {
+      throw new SSLException("Malformed ClientHello", e);
+    }
+    return new ClientHello(serverName, protocols);
+  }
+
+  private static String parseServerName(ByteBuffer extension)
+  {
+    ByteBuffer names = slice(extension, extension.getShort() & 0xffff);
+    while (names.hasRemaining()) {
+      int nameType = names.get() & 0xff;
+      ByteBuffer name = slice(names, names.getShort() & 0xffff);
+      if (nameType == HOST_NAME) {
+        return StandardCharsets.US_ASCII.decode(name).toString();
+      }
+    }
+    return null;
+  }
+
+  private static List<String> parseProtocols(ByteBuffer extension)
+  {
+    ByteBuffer list = slice(extension, extension.getShort() & 0xffff);
+    List<String> protocols = new ArrayList<String>();
+    while (list.hasRemaining()) {
+      ByteBuffer protocol = slice(list, list.get() & 0xff);
+      protocols.add(StandardCharsets.UTF_8.decode(protocol).toString());
+    }
+    return Collections.unmodifiableList(protocols);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int length)
+  {
+    /* Takes the next length bytes of buffer as a buffer of their own */
+    if (buffer.remaining() < length) {
+      throw new BufferUnderflowException();
+    }
+    ByteBuffer result = buffer.slice();
+    result.limit(length);
+    buffer.position(buffer.position() + length);
+    return result;
+  }
+
+  private static void skip(ByteBuffer buffer, int length)
+  {
+    slice(buffer, length);
+  }
+
+  private static int uint24(ByteBuffer buffer, int index)
+  {
+    return ((buffer.get(index) & 0xff) << 16) | ((buffer.get(index + 1) & 0xff) << 8)
+            | (buffer.get(index + 2) & 0xff);
+  }
+}
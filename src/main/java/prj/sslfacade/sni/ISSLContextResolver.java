@@ -0,0 +1,14 @@
+package prj.sslfacade.sni;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+/**
+ * Picks the SSLContext for a connection from what the client asked for in
+ * its ClientHello. Results are cached by SNIContextSelector, so this is
+ * only called once per server name and list of ALPN protocols.
+ */
+public interface ISSLContextResolver
+{
+    SSLContext resolve(ClientHello hello) throws SSLException;
+}
@@ -0,0 +1,99 @@
+package prj.sslfacade.sni;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.SSLFacadeFactory;
+
+public class SNIContextSelector
+{
+  /*
+   Maps ClientHellos to the SSLFacadeFactory of the SSLContext the
+   resolver picked for them. Resolved contexts are cached by server name
+   and ALPN protocols, the cache is bounded since server names are chosen
+   by clients. All names that resolve to the same SSLContext share one
+   factory and therefore one SSLParameters template and engine pool.
+
+   Thread-safe, one selector is meant to be shared by all SNIServerFacades
+   of a server.
+   */
+
+  private final ISSLContextResolver _resolver;
+  private final boolean _clientAuthRequired;
+  private final int _maxEntries;
+  private final Map<String, SSLFacadeFactory> _byName;
+  private final Map<SSLContext, SSLFacadeFactory> _byContext
+          = new IdentityHashMap<SSLContext, SSLFacadeFactory>();
+  private long _resolved;
+
+  public SNIContextSelector(ISSLContextResolver resolver, boolean clientAuthRequired,
+          int maxEntries)
+  {
+    _resolver = resolver;
+    _clientAuthRequired = clientAuthRequired;
+    _maxEntries = maxEntries;
+    _byName = new LinkedHashMap<String, SSLFacadeFactory>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SSLFacadeFactory> eldest)
+      {
+        return size() > _maxEntries;
+      }
+    };
+  }
+
+  public synchronized SSLFacadeFactory select(ClientHello hello) throws SSLException
+  {
+    String key = key(hello);
+    SSLFacadeFactory factory = _byName.get(key);
+    if (factory == null) {
+      SSLContext context = _resolver.resolve(hello);
+      if (context == null) {
+        throw new SSLException("No SSLContext for server name " + hello.getServerName());
+      }
+      _resolved++;
+      factory = _byContext.get(context);
+      if (factory == null) {
+        factory = new SSLFacadeFactory(context, false, _clientAuthRequired);
+        _byContext.put(context, factory);
+      }
+      _byName.put(key, factory);
+    }
+    return factory;
+  }
+
+  public synchronized SSLFacadeFactory getFactory(SSLContext context)
+  {
+    /* The factory used for a context, to configure budgets, pools or
+     cipher suites. Null until the context has been resolved once. */
+    return _byContext.get(context);
+  }
+
+  public synchronized long getResolveCount()
+  {
+    return _resolved;
+  }
+
+  public synchronized int getCachedCount()
+  {
+    return _byName.size();
+  }
+
+  public synchronized void clear()
+  {
+    /* Resolves every name again, e.g. after certificates were replaced.
+     The factories are kept, a name that resolves to the same context
+     again gets the factory configured through getFactory(). */
+    _byName.clear();
+  }
+
+  /* Privates */
+  private static String key(ClientHello hello)
+  {
+    String name = hello.getServerName() == null ? "" : hello.getServerName().toLowerCase(Locale.ROOT);
+    return name + "|" + String.join(",", hello.getApplicationProtocols());
+  }
+}
@@ -0,0 +1,509 @@
+package prj.sslfacade.sni;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import prj.sslfacade.BufferBudget;
+import prj.sslfacade.DemandUnit;
+import prj.sslfacade.IBufferAllocator;
+import prj.sslfacade.IHandshakeCompletedListener;
+import prj.sslfacade.IReadInterestListener;
+import prj.sslfacade.ISSLFacade;
+import prj.sslfacade.ISSLListener;
+import prj.sslfacade.ISessionClosedListener;
+import prj.sslfacade.ITaskHandler;
+import prj.sslfacade.LengthFieldFraming;
+import prj.sslfacade.SSLFacade;
+import prj.sslfacade.SSLFacadeFactory;
+
+public class SNIServerFacade implements ISSLFacade
+{
+  /*
+   A server side facade that does not need to know its SSLContext up
+   front. Ciphertext passed to decrypt() is buffered until it contains the
+   complete ClientHello, the SSLContext is then picked by the
+   SNIContextSelector from the server name and ALPN protocols the client
+   sent, the actual SSLFacade is created and the buffered bytes are
+   replayed into it.
+
+   Until then listeners and settings are only recorded and applied to the
+   facade once it exists, writes are queued like any write made before the
+   handshake has completed. The handshake itself starts as soon as the
+   facade has been created, calling beginHandshake() is optional. Closing
+   before the ClientHello arrived ends the connection without anything
+   being sent since there is no TLS session yet.
+   */
+
+  private static final int MAX_CLIENT_HELLO = 64 * 1024;
+  private static final int MAX_RECORD = 16384 + 2048 + 5;
+
+  private final SNIContextSelector _selector;
+  private final ITaskHandler _taskHandler;
+  private SSLFacade _ssl;
+  private ClientHello _hello;
+  private ByteBuffer _received;
+  private final List<ByteBuffer> _writes = new ArrayList<ByteBuffer>();
+
+  private IHandshakeCompletedListener _hcl;
+  private ISSLListener _sslListener;
+  private ISessionClosedListener _scl;
+  private IReadInterestListener _readInterestListener;
+  private WritableByteChannel _sink;
+  private LengthFieldFraming _framing;
+  private boolean _batchDelivery;
+  private BufferBudget _budget;
+  private IBufferAllocator _allocator;
+  private DemandUnit _demandUnit;
+  private long _demand;
+  private boolean _closed;
+  private CompletableFuture<SSLSession> _handshakeFuture = new CompletableFuture<SSLSession>();
+  private CompletableFuture<Void> _closeFuture = new CompletableFuture<Void>();
+  private CompletableFuture<Void> _peerCloseFuture = new CompletableFuture<Void>();
+
+  public SNIServerFacade(SNIContextSelector selector, ITaskHandler taskHandler)
+  {
+    _selector = selector;
+    _taskHandler = taskHandler;
+  }
+
+  public ClientHello getClientHello()
+  {
+    /* Null until the ClientHello has been received */
+    return _hello;
+  }
+
+  public SSLFacade getFacade()
+  {
+    /* Null until the ClientHello has been received */
+    return _ssl;
+  }
+
+  @Override
+  public void setHandshakeCompletedListener(IHandshakeCompletedListener hcl)
+  {
+    _hcl = hcl;
+    if (_ssl != null) {
+      _ssl.setHandshakeCompletedListener(hcl);
+    }
+  }
+
+  @Override
+  public void setSSLListener(ISSLListener l)
+  {
+    _sslListener = l;
+    if (_ssl != null) {
+      _ssl.setSSLListener(l);
+    }
+  }
+
+  @Override
+  public void setCloseListener(ISessionClosedListener l)
+  {
+    _scl = l;
+    if (_ssl != null) {
+      _ssl.setCloseListener(l);
+    }
+  }
+
+  public void setBufferBudget(BufferBudget budget) throws SSLException
+  {
+    _budget = budget;
+    if (_ssl != null) {
+      _ssl.setBufferBudget(budget);
+    }
+  }
+
+  public void setBufferAllocator(IBufferAllocator allocator) throws SSLException
+  {
+    _allocator = allocator;
+    if (_ssl != null) {
+      _ssl.setBufferAllocator(allocator);
+    }
+  }
+
+  public boolean hasBufferHeadroom(int bytes)
+  {
+    if (_ssl != null) {
+      return _ssl.hasBufferHeadroom(bytes);
+    }
+    return _budget == null || _budget.hasHeadroom(bytes);
+  }
+
+  public void setDemandDelivery(DemandUnit unit)
+  {
+    _demandUnit = unit;
+    _demand = 0;
+    if (_ssl != null) {
+      _ssl.setDemandDelivery(unit);
+    }
+  }
+
+  public void setPlainDataSink(WritableByteChannel sink)
+  {
+    _sink = sink;
+    _framing = null;
+    _batchDelivery = false;
+    if (_ssl != null) {
+      _ssl.setPlainDataSink(sink);
+    }
+  }
+
+  public void setLengthFieldFraming(LengthFieldFraming framing)
+  {
+    _framing = framing;
+    _sink = null;
+    _batchDelivery = false;
+    if (_ssl != null) {
+      _ssl.setLengthFieldFraming(framing);
+    }
+  }
+
+  public void setBatchDelivery(boolean enabled)
+  {
+    _batchDelivery = enabled;
+    _sink = null;
+    _framing = null;
+    if (_ssl != null) {
+      _ssl.setBatchDelivery(enabled);
+    }
+  }
+
+  public boolean flushPlainDataSink() throws IOException
+  {
+    return _ssl == null || _ssl.flushPlainDataSink();
+  }
+
+  public void setReadInterestListener(IReadInterestListener l)
+  {
+    _readInterestListener = l;
+    if (_ssl != null) {
+      _ssl.setReadInterestListener(l);
+    }
+  }
+
+  public void request(long n) throws SSLException
+  {
+    if (_ssl != null) {
+      _ssl.request(n);
+    } else if (n <= 0) {
+      throw new IllegalArgumentException("Demand must be positive: " + n);
+    } else {
+      _demand = (Long.MAX_VALUE - _demand < n) ? Long.MAX_VALUE : _demand + n;
+    }
+  }
+
+  @Override
+  public void beginHandshake() throws IOException
+  {
+    /* The handshake is started as soon as the ClientHello has arrived */
+  }
+
+  @Override
+  public CompletableFuture<SSLSession> getHandshakeFuture()
+  {
+    return _handshakeFuture;
+  }
+
+  @Override
+  public boolean isHandshakeCompleted()
+  {
+    return _ssl != null && _ssl.isHandshakeCompleted();
+  }
+
+  @Override
+  public void encrypt(ByteBuffer plainData) throws SSLException
+  {
+    if (_ssl != null) {
+      _ssl.encrypt(plainData);
+    } else if (_closed) {
+      throw new SSLException("Session closed");
+    } else {
+      ByteBuffer copy = ByteBuffer.allocate(plainData.remaining());
+      copy.put(plainData);
+      copy.flip();
+      _writes.add(copy);
+    }
+  }
+
+  public long encryptTo(GatheringByteChannel channel, ByteBuffer... srcs) throws IOException
+  {
+    if (_ssl != null) {
+      return _ssl.encryptTo(channel, srcs);
+    }
+    long queued = 0;
+    for (ByteBuffer src : srcs) {
+      queued += src.remaining();
+      encrypt(src);
+    }
+    return queued;
+  }
+
+  public long encryptFrom(FileChannel file, long position, long count,
+          GatheringByteChannel channel) throws IOException
+  {
+    if (_ssl == null) {
+      throw new SSLException("Files can only be sent after the handshake");
+    }
+    return _ssl.encryptFrom(file, position, count, channel);
+  }
+
+  public boolean hasPendingOutput()
+  {
+    return _ssl != null && _ssl.hasPendingOutput();
+  }
+
+  public boolean flushPending(GatheringByteChannel channel) throws IOException
+  {
+    return _ssl == null || _ssl.flushPending(channel);
+  }
+
+  @Override
+  public void decrypt(ByteBuffer encryptedData) throws SSLException
+  {
+    if (_ssl != null) {
+      _ssl.decrypt(encryptedData);
+      return;
+    }
+    if (_closed) {
+      throw new SSLException("Session closed before the ClientHello was received");
+    }
+    if (encryptedData != null) {
+      reserve(encryptedData.remaining());
+      _received.put(encryptedData);
+    }
+    sniff();
+  }
+
+  public int decryptFrom(ReadableByteChannel channel) throws IOException
+  {
+    /* The ClientHello is read into the buffer it is collected in, after
+     that the facade reads from the channel itself */
+    if (_ssl != null) {
+      return _ssl.decryptFrom(channel);
+    }
+    if (_closed) {
+      throw new SSLException("Session closed before the ClientHello was received");
+    }
+    reserve(1);
+    int read = channel.read(_received);
+    if (read > 0) {
+      sniff();
+    }
+    return read;
+  }
+
+  @Override
+  public void close()
+  {
+    if (_ssl != null) {
+      _ssl.close();
+    } else if (!_closed) {
+      end(new SSLException("Session closed before the handshake completed"));
+      _closeFuture.complete(null);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> closeAsync()
+  {
+    if (_ssl != null) {
+      return _ssl.closeAsync();
+    }
+    close();
+    return _closeFuture;
+  }
+
+  @Override
+  public CompletableFuture<Void> getPeerCloseFuture()
+  {
+    return _peerCloseFuture;
+  }
+
+  @Override
+  public boolean isCloseCompleted()
+  {
+    return _ssl != null ? _ssl.isCloseCompleted() : _closed;
+  }
+
+  @Override
+  public boolean isClientMode()
+  {
+    return false;
+  }
+
+  @Override
+  public void terminate()
+  {
+    if (_ssl != null) {
+      _ssl.terminate();
+    } else if (!_closed) {
+      SSLException terminated = new SSLException("Session terminated");
+      end(terminated);
+      _closeFuture.completeExceptionally(terminated);
+    }
+  }
+
+  public void reset()
+  {
+    /* Reuses this facade for a new connection, which again starts by
+     waiting for its ClientHello. The facade created for the previous
+     connection is dropped along with all listeners, settings and queued
+     writes, if that connection is still open it is terminated without
+     notifying anyone. */
+    _scl = null;
+    _hcl = null;
+    _sslListener = null;
+    if (_ssl != null) {
+      _ssl.setCloseListener(null);
+      if (!_ssl.isCloseCompleted()) {
+        _ssl.terminate();
+      }
+    }
+    SSLException reset = new SSLException("Facade reset for a new connection");
+    _handshakeFuture.completeExceptionally(reset);
+    _closeFuture.completeExceptionally(reset);
+    _peerCloseFuture.completeExceptionally(reset);
+    _ssl = null;
+    _hello = null;
+    _received = null;
+    _writes.clear();
+    _readInterestListener = null;
+    _sink = null;
+    _framing = null;
+    _batchDelivery = false;
+    _budget = null;
+    _allocator = null;
+    _demandUnit = null;
+    _demand = 0;
+    _closed = false;
+    _handshakeFuture = new CompletableFuture<SSLSession>();
+    _closeFuture = new CompletableFuture<Void>();
+    _peerCloseFuture = new CompletableFuture<Void>();
+  }
+
+  /* Privates */
+  private void reserve(int length) throws SSLException
+  {
+    /* Makes room for length more bytes in the buffer the ClientHello is
+     collected in. It grows by at least a record, so reading a ClientHello
+     split over several reads usually allocates once. */
+    int buffered = _received == null ? 0 : _received.position();
+    if (buffered + length > MAX_CLIENT_HELLO) {
+      SSLException e = new SSLException("ClientHello exceeds " + MAX_CLIENT_HELLO + " bytes");
+      _handshakeFuture.completeExceptionally(e);
+      throw e;
+    }
+    if (_received != null && _received.remaining() >= length) {
+      return;
+    }
+    ByteBuffer grown = ByteBuffer.allocate(
+            Math.min(MAX_CLIENT_HELLO, buffered + Math.max(length, MAX_RECORD)));
+    if (_received != null) {
+      _received.flip();
+      grown.put(_received);
+    }
+    _received = grown;
+  }
+
+  private void sniff() throws SSLException
+  {
+    /* Creates the facade once the ClientHello is complete and replays all
+     bytes received so far into it */
+    if (_received == null) {
+      return;
+    }
+    try {
+      _hello = ClientHello.parse((ByteBuffer) _received.duplicate().flip());
+      if (_hello == null) {
+        return;
+      }
+      createFacade(_selector.select(_hello));
+    } catch (SSLException e) {
+      _handshakeFuture.completeExceptionally(e);
+      throw e;
+    }
+    ByteBuffer received = _received;
+    _received = null;
+    received.flip();
+    _ssl.decrypt(received);
+  }
+
+  private void createFacade(SSLFacadeFactory factory) throws SSLException
+  {
+    SSLFacade ssl = factory.create(_taskHandler);
+    if (_allocator != null) {
+      ssl.setBufferAllocator(_allocator);
+    }
+    if (_budget != null) {
+      ssl.setBufferBudget(_budget);
+    }
+    ssl.setSSLListener(_sslListener);
+    ssl.setHandshakeCompletedListener(_hcl);
+    ssl.setCloseListener(_scl);
+    ssl.setReadInterestListener(_readInterestListener);
+    if (_batchDelivery) {
+      ssl.setBatchDelivery(true);
+    } else if (_framing != null) {
+      ssl.setLengthFieldFraming(_framing);
+    } else {
+      ssl.setPlainDataSink(_sink);
+    }
+    if (_demandUnit != null) {
+      ssl.setDemandDelivery(_demandUnit);
+      if (_demand > 0) {
+        ssl.request(_demand);
+      }
+    }
+    _ssl = ssl;
+    for (ByteBuffer write : _writes) {
+      ssl.encrypt(write);
+    }
+    _writes.clear();
+    ssl.getPeerCloseFuture().whenComplete(new BiConsumer<Void, Throwable>()
+    {
+      @Override
+      public void accept(Void ignored, Throwable failure)
+      {
+        if (failure != null) {
+          _peerCloseFuture.completeExceptionally(failure);
+        } else {
+          _peerCloseFuture.complete(null);
+        }
+      }
+    });
+    ssl.beginHandshake();
+    ssl.getHandshakeFuture().whenComplete(new BiConsumer<SSLSession, Throwable>()
+    {
+      @Override
+      public void accept(SSLSession session, Throwable failure)
+      {
+        if (failure != null) {
+          _handshakeFuture.completeExceptionally(failure);
+        } else {
+          _handshakeFuture.complete(session);
+        }
+      }
+    });
+  }
+
+  private void end(SSLException e)
+  {
+    _closed = true;
+    _received = null;
+    _writes.clear();
+    _handshakeFuture.completeExceptionally(e);
+    _peerCloseFuture.completeExceptionally(e);
+    if (_scl != null) {
+      _scl.onSessionClosed();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package prj.sslfacade.timer;
+
+import java.util.concurrent.TimeUnit;
+
+public class HashedTimerWheel
+{
+  /*
+   A hashed timer wheel for very large numbers of coarse timeouts, such as
+   one handshake deadline per connection. Time is divided into ticks, a
+   timeout is put into the slot of the tick it expires in and the slots
+   form a ring, so a timeout that lies more than one revolution ahead
+   simply stays in its slot until the wheel gets there for the right
+   time. Scheduling and cancelling are O(1), each tick only looks at the
+   timeouts of one slot.
+
+   The wheel has no thread of its own and is not thread-safe: it is meant
+   to be owned by the event loop that also drives the facades, which calls
+   tick() on every iteration. Expired tasks therefore run on the thread the
+   facades live on. nanosUntilNextTick() tells the loop how long it may
+   block waiting for I/O.
+
+   Timeouts expire at most one tick late.
+   */
+
+  private final long _tickNanos;
+  private final Timeout[] _slots;
+  private final int _mask;
+  private final long _start;
+  private long _tick;
+  private int _size;
+
+  public HashedTimerWheel(long tickDuration, TimeUnit unit, int slots)
+  {
+    this(tickDuration, unit, slots, System.nanoTime());
+  }
+
+  HashedTimerWheel(long tickDuration, TimeUnit unit, int slots, long now)
+  {
+    if (tickDuration <= 0 || slots < 1 || slots > (1 << 30)) {
+      throw new IllegalArgumentException("Unsupported wheel: " + slots + " slots of " + tickDuration + " " + unit);
+    }
+    int size = Integer.highestOneBit(slots);
+    if (size < slots) {
+      size <<= 1;
+    }
+    _tickNanos = unit.toNanos(tickDuration);
+    _slots = new Timeout[size];
+    _mask = size - 1;
+    _start = now;
+  }
+
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+  {
+    return schedule(task, delay, unit, System.nanoTime());
+  }
+
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit, long now)
+  {
+    /* The timeout expires in the first tick that ends at or after now +
+     delay, but never in a tick that has already been processed */
+    long elapsed = now - _start + unit.toNanos(Math.max(0, delay));
+    long deadlineTick = Math.max(_tick + 1, (elapsed + _tickNanos - 1) / _tickNanos);
+    Timeout timeout = new Timeout(this, task, deadlineTick);
+    link(timeout);
+    return timeout;
+  }
+
+  public int tick()
+  {
+    return tick(System.nanoTime());
+  }
+
+  public int tick(long now)
+  {
+    /* Runs the tasks of all timeouts that have expired by now and returns
+     how many there were */
+    long target = (now - _start) / _tickNanos;
+    int expired = 0;
+    if (target - _tick > _slots.length) {
+      /* The loop was away for more than a revolution, every slot has to
+       be looked at once. The wheel is moved first, so that tasks which
+       schedule timeouts while the slots are scanned do not get deadlines
+       in ticks that count as processed already. */
+      _tick = target;
+      for (int i = 0; i < _slots.length; i++) {
+        expired += expire(i, target);
+      }
+    }
+    while (_tick < target) {
+      _tick++;
+      expired += expire((int) _tick & _mask, _tick);
+    }
+    return expired;
+  }
+
+  public long nanosUntilNextTick(long now)
+  {
+    long next = (_tick + 1) * _tickNanos + _start;
+    return Math.max(0, next - now);
+  }
+
+  public int size()
+  {
+    return _size;
+  }
+
+  /* Package private, used by Timeout */
+  boolean cancel(Timeout timeout)
+  {
+    if (timeout._state != Timeout.PENDING) {
+      return false;
+    }
+    timeout._state = Timeout.CANCELLED;
+    unlink(timeout);
+    return true;
+  }
+
+  /* Privates */
+  private int expire(int slot, long upToTick)
+  {
+    int expired = 0;
+    Timeout timeout = _slots[slot];
+    while (timeout != null) {
+      /* Tasks may schedule or cancel timeouts, including the next one */
+      Timeout next = timeout._next;
+      if (timeout._deadlineTick <= upToTick) {
+        unlink(timeout);
+        timeout._state = Timeout.EXPIRED;
+        timeout._task.run();
+        expired++;
+        if (next != null && next._state != Timeout.PENDING) {
+          //The task removed the next timeout, start over from the head
+          next = _slots[slot];
+        }
+      }
+      timeout = next;
+    }
+    return expired;
+  }
+
+  private void link(Timeout timeout)
+  {
+    int slot = (int) timeout._deadlineTick & _mask;
+    Timeout head = _slots[slot];
+    timeout._next = head;
+    if (head != null) {
+      head._prev = timeout;
+    }
+    _slots[slot] = timeout;
+    _size++;
+  }
+
+  private void unlink(Timeout timeout)
+  {
+    int slot = (int) timeout._deadlineTick & _mask;
+    if (timeout._prev != null) {
+      timeout._prev._next = timeout._next;
+    } else {
+      _slots[slot] = timeout._next;
+    }
+    if (timeout._next != null) {
+      timeout._next._prev = timeout._prev;
+    }
+    timeout._prev = null;
+    timeout._next = null;
+    _size--;
+  }
+}
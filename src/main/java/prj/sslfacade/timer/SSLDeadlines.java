@@ -0,0 +1,118 @@
+package prj.sslfacade.timer;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import javax.net.ssl.SSLSession;
+import prj.sslfacade.ISSLFacade;
+import prj.sslfacade.ISessionClosedListener;
+
+public class SSLDeadlines
+{
+  /*
+   Puts deadlines on the two phases of a connection in which a facade
+   waits for its peer: the handshake and, after close(), the peer's
+   close_notify. A peer that stops sending in either phase, a dead client
+   or a slowloris, would otherwise keep the facade, its engine and its
+   buffers alive for good.
+
+   All deadlines of all facades share one HashedTimerWheel, there is no
+   scheduled task per connection. A deadline is cancelled as soon as the
+   phase completes. When it expires the facade is terminated and the
+   given ISessionClosedListener is told, so that the host application can
+   close the transport and release everything it holds for the
+   connection.
+
+   Like the wheel this must only be used from the thread that drives the
+   facades and ticks the wheel.
+   */
+
+  private final HashedTimerWheel _wheel;
+  private final long _handshakeTimeoutNanos;
+  private final long _closeTimeoutNanos;
+  private long _expired;
+
+  public SSLDeadlines(HashedTimerWheel wheel, long handshakeTimeout, long closeTimeout,
+          TimeUnit unit)
+  {
+    _wheel = wheel;
+    _handshakeTimeoutNanos = unit.toNanos(handshakeTimeout);
+    _closeTimeoutNanos = unit.toNanos(closeTimeout);
+  }
+
+  public CompletableFuture<SSLSession> beginHandshake(final ISSLFacade ssl,
+          final ISessionClosedListener onExpired) throws IOException
+  {
+    /* Begins the handshake, if it has not completed within the handshake
+     timeout the facade is terminated */
+    ssl.beginHandshake();
+    CompletableFuture<SSLSession> handshake = ssl.getHandshakeFuture();
+    if (handshake.isDone()) {
+      return handshake;
+    }
+    final Timeout timeout = _wheel.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (!ssl.isHandshakeCompleted()) {
+          expire(ssl, onExpired);
+        }
+      }
+    }, _handshakeTimeoutNanos, TimeUnit.NANOSECONDS);
+    handshake.whenComplete(new BiConsumer<SSLSession, Throwable>()
+    {
+      @Override
+      public void accept(SSLSession session, Throwable failure)
+      {
+        timeout.cancel();
+      }
+    });
+    return handshake;
+  }
+
+  public CompletableFuture<Void> close(final ISSLFacade ssl, final ISessionClosedListener onExpired)
+  {
+    /* Sends close_notify and waits for the peer's answer for at most the
+     close timeout. The returned future completes when the answer has
+     arrived, or exceptionally when the facade was terminated instead. */
+    CompletableFuture<Void> peerClose = ssl.getPeerCloseFuture();
+    ssl.close();
+    if (peerClose.isDone()) {
+      return peerClose;
+    }
+    final Timeout timeout = _wheel.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        expire(ssl, onExpired);
+      }
+    }, _closeTimeoutNanos, TimeUnit.NANOSECONDS);
+    peerClose.whenComplete(new BiConsumer<Void, Throwable>()
+    {
+      @Override
+      public void accept(Void ignored, Throwable failure)
+      {
+        timeout.cancel();
+      }
+    });
+    return peerClose;
+  }
+
+  public long getExpiredCount()
+  {
+    return _expired;
+  }
+
+  /* Privates */
+  private void expire(ISSLFacade ssl, ISessionClosedListener onExpired)
+  {
+    _expired++;
+    ssl.terminate();
+    if (onExpired != null) {
+      onExpired.onSessionClosed();
+    }
+  }
+}
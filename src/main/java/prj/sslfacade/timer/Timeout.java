@@ -0,0 +1,43 @@
+package prj.sslfacade.timer;
+
+public class Timeout
+{
+  /*
+   A task scheduled on a HashedTimerWheel. Timeouts are nodes of the
+   doubly linked list of their slot, which is what makes cancel() O(1).
+   */
+
+  static final int PENDING = 0;
+  static final int CANCELLED = 1;
+  static final int EXPIRED = 2;
+
+  private final HashedTimerWheel _wheel;
+  final Runnable _task;
+  final long _deadlineTick;
+  int _state = PENDING;
+  Timeout _prev;
+  Timeout _next;
+
+  Timeout(HashedTimerWheel wheel, Runnable task, long deadlineTick)
+  {
+    _wheel = wheel;
+    _task = task;
+    _deadlineTick = deadlineTick;
+  }
+
+  public boolean cancel()
+  {
+    /* Returns false if the timeout has already expired or been cancelled */
+    return _wheel.cancel(this);
+  }
+
+  public boolean isExpired()
+  {
+    return _state == EXPIRED;
+  }
+
+  public boolean isCancelled()
+  {
+    return _state == CANCELLED;
+  }
+}
@@ -0,0 +1,155 @@
+package prj.sslfacade.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class Trace
+{
+  /*
+   The shape of the traffic of one connection as a TraceRecorder captured
+   it: when the recorded side read or wrote how many bytes of ciphertext,
+   when its handshake completed and when the peer closed the transport.
+   No content is kept.
+
+   The file starts with a header of the magic number, the format version
+   and a flags byte that tells whether the recorded side was the client.
+   Every event follows as two unsigned varints, the microseconds since
+   the previous event and the size shifted left by two with the event type
+   in the low bits. Most events take three to five bytes.
+   */
+
+  public static final int READ = 0;
+  public static final int WRITE = 1;
+  public static final int HANDSHAKE_COMPLETED = 2;
+  public static final int END_OF_STREAM = 3;
+
+  static final int MAGIC = 0x53534c54;
+  static final int VERSION = 1;
+  static final int CLIENT_FLAG = 1;
+
+  private final boolean _client;
+  private long[] _nanos = new long[64];
+  private int[] _sizes = new int[64];
+  private byte[] _types = new byte[64];
+  private int _count;
+
+  Trace(boolean client)
+  {
+    _client = client;
+  }
+
+  public static Trace read(InputStream in) throws IOException
+  {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a trace");
+    }
+    int version = data.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported trace version: " + version);
+    }
+    Trace trace = new Trace((data.readUnsignedByte() & CLIENT_FLAG) != 0);
+    long micros = 0;
+    while (true) {
+      long delta;
+      try {
+        delta = readVarint(data);
+      } catch (EOFException e) {
+        return trace;
+      }
+      micros += delta;
+      long event = readVarint(data);
+      trace.add(micros * 1000, (int) (event & 3), (int) (event >>> 2));
+    }
+  }
+
+  public boolean isClient()
+  {
+    /* Whether the recorded side was the client of its connection */
+    return _client;
+  }
+
+  public int size()
+  {
+    return _count;
+  }
+
+  public long getNanos(int event)
+  {
+    /* Time since recording began, in microsecond resolution */
+    return _nanos[event];
+  }
+
+  public int getType(int event)
+  {
+    return _types[event];
+  }
+
+  public int getSize(int event)
+  {
+    return _sizes[event];
+  }
+
+  public int getHandshakeCompleted()
+  {
+    /* The event at which the handshake completed, -1 if not recorded */
+    for (int i = 0; i < _count; i++) {
+      if (_types[i] == HANDSHAKE_COMPLETED) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public long getBytes(int type)
+  {
+    long bytes = 0;
+    for (int i = 0; i < _count; i++) {
+      if (_types[i] == type) {
+        bytes += _sizes[i];
+      }
+    }
+    return bytes;
+  }
+
+  /* Privates */
+  private void add(long nanos, int type, int size)
+  {
+    if (_count == _nanos.length) {
+      _nanos = Arrays.copyOf(_nanos, 2 * _count);
+      _sizes = Arrays.copyOf(_sizes, 2 * _count);
+      _types = Arrays.copyOf(_types, 2 * _count);
+    }
+    _nanos[_count] = nanos;
+    _sizes[_count] = size;
+    _types[_count] = (byte) type;
+    _count++;
+  }
+
+  private static long readVarint(DataInputStream in) throws IOException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = shift == 0 ? in.readUnsignedByte() : readContinuation(in);
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed trace");
+  }
+
+  private static int readContinuation(DataInputStream in) throws IOException
+  {
+    /* EOF within a varint is a truncated trace, not its end */
+    int b = in.read();
+    if (b < 0) {
+      throw new IOException("Truncated trace");
+    }
+    return b;
+  }
+}
@@ -0,0 +1,177 @@
+package prj.sslfacade.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import prj.sslfacade.IHandshakeCompletedListener;
+import prj.sslfacade.ISSLListener;
+
+public class TraceRecorder implements Closeable
+{
+  /*
+   Records the shape of a connection's traffic into a compact binary
+   Trace: the time, size and direction of every segment of ciphertext the
+   transport reads or writes, and when the handshake completed. Content
+   is never recorded, so traces of production traffic can be kept and
+   replayed by a TraceReplayer.
+
+   The transport calls onRead() and onWrite() with the bytes it passed to
+   decrypt() and wrote to the network. A read of -1, as returned by
+   decryptFrom() and channel reads at the end of the stream, is recorded
+   as an END_OF_STREAM event. Transports that write every wrapped buffer
+   as a whole can let record() wrap their ISSLListener instead of calling
+   onWrite().
+
+   Events are buffered and written to the stream in blocks. Recording
+   must never disturb the connection, so a failed write does not throw
+   from the callbacks, it ends the recording and is thrown by close().
+
+   Like the facade this is not thread-safe.
+   */
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private final OutputStream _out;
+  private final byte[] _block = new byte[BLOCK_SIZE];
+  private final long _start;
+  private int _length;
+  private long _lastMicros;
+  private IOException _failure;
+
+  public TraceRecorder(OutputStream out, boolean client) throws IOException
+  {
+    /* client tells whether the recorded facade is in client mode */
+    _out = out;
+    _start = System.nanoTime();
+    writeInt(Trace.MAGIC);
+    _block[_length++] = (byte) Trace.VERSION;
+    _block[_length++] = (byte) (client ? Trace.CLIENT_FLAG : 0);
+  }
+
+  public void onRead(int bytes)
+  {
+    if (bytes == -1) {
+      record(Trace.END_OF_STREAM, 0);
+    } else {
+      record(Trace.READ, checkSize(bytes));
+    }
+  }
+
+  public void onWrite(int bytes)
+  {
+    record(Trace.WRITE, checkSize(bytes));
+  }
+
+  public void onHandshakeCompleted()
+  {
+    record(Trace.HANDSHAKE_COMPLETED, 0);
+  }
+
+  public ISSLListener record(final ISSLListener listener)
+  {
+    /* Records every wrapped buffer as written */
+    return new ISSLListener()
+    {
+      @Override
+      public void onWrappedData(ByteBuffer wrappedBytes)
+      {
+        onWrite(wrappedBytes.remaining());
+        listener.onWrappedData(wrappedBytes);
+      }
+
+      @Override
+      public void onPlainData(ByteBuffer plainBytes)
+      {
+        listener.onPlainData(plainBytes);
+      }
+    };
+  }
+
+  public IHandshakeCompletedListener record(final IHandshakeCompletedListener listener)
+  {
+    return new IHandshakeCompletedListener()
+    {
+      @Override
+      public void onComplete()
+      {
+        onHandshakeCompleted();
+        if (listener != null) {
+          listener.onComplete();
+        }
+      }
+    };
+  }
+
+  public void flush() throws IOException
+  {
+    writeBlock();
+    if (_failure != null) {
+      throw _failure;
+    }
+    _out.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try {
+      flush();
+    } finally {
+      _out.close();
+    }
+  }
+
+  /* Privates */
+  private static int checkSize(int bytes)
+  {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Negative size: " + bytes);
+    }
+    return bytes;
+  }
+
+  private void record(int type, int size)
+  {
+    if (_failure != null) {
+      return;
+    }
+    long micros = (System.nanoTime() - _start) / 1000;
+    //Two varints of at most ten bytes each
+    if (_length > BLOCK_SIZE - 20) {
+      writeBlock();
+    }
+    writeVarint(micros - _lastMicros);
+    writeVarint((long) size << 2 | type);
+    _lastMicros = micros;
+  }
+
+  private void writeBlock()
+  {
+    if (_failure == null && _length > 0) {
+      try {
+        _out.write(_block, 0, _length);
+      } catch (IOException e) {
+        _failure = e;
+      }
+    }
+    _length = 0;
+  }
+
+  private void writeVarint(long value)
+  {
+    while ((value & ~0x7fL) != 0) {
+      _block[_length++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    _block[_length++] = (byte) value;
+  }
+
+  private void writeInt(int value)
+  {
+    _block[_length++] = (byte) (value >>> 24);
+    _block[_length++] = (byte) (value >>> 16);
+    _block[_length++] = (byte) (value >>> 8);
+    _block[_length++] = (byte) value;
+  }
+}
@@ -0,0 +1,395 @@
+package prj.sslfacade.trace;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import prj.sslfacade.DefaultTaskHandler;
+import prj.sslfacade.ISSLListener;
+import prj.sslfacade.SSLFacade;
+
+public class TraceReplayer
+{
+  /*
+   Replays recorded Traces over client and server facade pairs that are
+   connected in memory, one pair per trace, so that the data path can be
+   benchmarked and regression-tested with the shapes of real traffic.
+
+   The handshake of every pair is completed first. Its bytes depend on
+   the certificates of the replaying contexts rather than of the recorded
+   ones, so it is not replayed segment by segment. From the handshake on
+   every event is replayed with its recorded size: for a write of the
+   recorded side its facade encrypts until that many bytes of ciphertext
+   are waiting and exactly those bytes are passed to decrypt() of the
+   peer, for a read the peer encrypts and the recorded side decrypts. The
+   plain data is sized after the ciphertext, which makes the volume in
+   each direction match the recording within the record overhead. Events
+   of all traces are interleaved by their time since their handshake.
+
+   At a speed of 0, the default, events follow each other as fast as
+   possible. At other speeds the recorded pacing is kept, divided by the
+   speed. After the last event all ciphertext still waiting is delivered
+   and every byte of plain data has to have arrived, otherwise replay()
+   throws.
+   */
+
+  private static final int MAX_PLAIN_CHUNK = 64 * 1024;
+
+  private final SSLContext _serverContext;
+  private final SSLContext _clientContext;
+  private double _speed;
+
+  public TraceReplayer(SSLContext context)
+  {
+    this(context, context);
+  }
+
+  public TraceReplayer(SSLContext serverContext, SSLContext clientContext)
+  {
+    _serverContext = serverContext;
+    _clientContext = clientContext;
+  }
+
+  public void setSpeed(double speed)
+  {
+    _speed = speed;
+  }
+
+  public Result replay(Trace trace) throws SSLException
+  {
+    return replay(Collections.singletonList(trace));
+  }
+
+  public Result replay(List<Trace> traces) throws SSLException
+  {
+    List<Replay> replays = new ArrayList<Replay>();
+    PriorityQueue<Replay> next = new PriorityQueue<Replay>();
+    try {
+      for (Trace trace : traces) {
+        Replay replay = new Replay(trace);
+        replays.add(replay);
+        if (replay.hasNext()) {
+          next.add(replay);
+        }
+      }
+      ByteBuffer plain = ByteBuffer.allocate(MAX_PLAIN_CHUNK);
+      long events = 0;
+      long wireBytes = 0;
+      long recordedNanos = 0;
+      long start = System.nanoTime();
+      long cpu = cpuTime();
+      Replay replay;
+      while ((replay = next.poll()) != null) {
+        recordedNanos = replay.nextNanos();
+        if (_speed > 0) {
+          pace(start + (long) (recordedNanos / _speed));
+        }
+        wireBytes += replay.step(plain);
+        events++;
+        if (replay.hasNext()) {
+          next.add(replay);
+        }
+      }
+      long plainBytes = 0;
+      for (Replay finished : replays) {
+        plainBytes += finished.finish();
+      }
+      long cpuNanos = cpuTime() - cpu;
+      return new Result(traces.size(), events, wireBytes, plainBytes, recordedNanos,
+              System.nanoTime() - start, cpuNanos);
+    } finally {
+      for (Replay replay : replays) {
+        replay.client.terminate();
+        replay.server.terminate();
+      }
+    }
+  }
+
+  /* Privates */
+  private static void pace(long deadline)
+  {
+    long wait;
+    while ((wait = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+  private static long cpuTime()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+      return threads.getCurrentThreadCpuTime();
+    }
+    return System.nanoTime();
+  }
+
+  private class Replay implements Comparable<Replay>
+  {
+    /* One trace and the pair it is replayed over */
+    final Trace trace;
+    final SSLFacade client;
+    final SSLFacade server;
+    final Wire toServer = new Wire();
+    final Wire toClient = new Wire();
+    final long handshakeNanos;
+    long clientSent;
+    long serverSent;
+    long clientReceived;
+    long serverReceived;
+    int event;
+
+    Replay(Trace trace) throws SSLException
+    {
+      this.trace = trace;
+      client = new SSLFacade(_clientContext, true, false, new DefaultTaskHandler());
+      server = new SSLFacade(_serverContext, false, false, new DefaultTaskHandler());
+      client.setSSLListener(new ISSLListener()
+      {
+        @Override
+        public void onWrappedData(ByteBuffer wrappedBytes)
+        {
+          toServer.add(wrappedBytes);
+        }
+
+        @Override
+        public void onPlainData(ByteBuffer plainBytes)
+        {
+          clientReceived += plainBytes.remaining();
+        }
+      });
+      server.setSSLListener(new ISSLListener()
+      {
+        @Override
+        public void onWrappedData(ByteBuffer wrappedBytes)
+        {
+          toClient.add(wrappedBytes);
+        }
+
+        @Override
+        public void onPlainData(ByteBuffer plainBytes)
+        {
+          serverReceived += plainBytes.remaining();
+        }
+      });
+      server.beginHandshake();
+      client.beginHandshake();
+      pump();
+      if (!client.isHandshakeCompleted() || !server.isHandshakeCompleted()) {
+        throw new SSLException("Handshake did not complete");
+      }
+      //Traces without a handshake event are replayed from their start
+      int handshake = trace.getHandshakeCompleted();
+      event = handshake + 1;
+      handshakeNanos = handshake < 0 ? 0 : trace.getNanos(handshake);
+      skipControlEvents();
+    }
+
+    boolean hasNext()
+    {
+      return event < trace.size();
+    }
+
+    long nextNanos()
+    {
+      return trace.getNanos(event) - handshakeNanos;
+    }
+
+    int step(ByteBuffer plain) throws SSLException
+    {
+      /* Replays the next event and returns the bytes it delivered */
+      boolean fromClient = (trace.getType(event) == Trace.WRITE) == trace.isClient();
+      int size = trace.getSize(event);
+      event++;
+      skipControlEvents();
+      if (fromClient) {
+        clientSent += produce(client, toServer, size, plain);
+        return deliver(toServer, server, size);
+      }
+      serverSent += produce(server, toClient, size, plain);
+      return deliver(toClient, client, size);
+    }
+
+    long finish() throws SSLException
+    {
+      /* Delivers what is left and checks that all plain data arrived */
+      pump();
+      if (serverReceived != clientSent || clientReceived != serverSent) {
+        throw new SSLException("Plain data lost: client sent " + clientSent + ", server received "
+                + serverReceived + ", server sent " + serverSent + ", client received "
+                + clientReceived);
+      }
+      return clientSent + serverSent;
+    }
+
+    @Override
+    public int compareTo(Replay other)
+    {
+      return Long.compare(nextNanos(), other.nextNanos());
+    }
+
+    private void skipControlEvents()
+    {
+      /* Carry no ciphertext, the end of the stream is replayed by
+       finish() delivering what is left */
+      while (hasNext() && (trace.getType(event) == Trace.HANDSHAKE_COMPLETED
+              || trace.getType(event) == Trace.END_OF_STREAM)) {
+        event++;
+      }
+    }
+
+    private long produce(SSLFacade from, Wire wire, int size, ByteBuffer plain)
+            throws SSLException
+    {
+      /* Encrypts until size bytes of ciphertext are waiting. Every record
+       is larger than its plain data, so encrypting the missing number of
+       bytes is always enough. */
+      long sent = 0;
+      while (wire.available < size) {
+        long before = wire.available;
+        plain.clear();
+        plain.limit((int) Math.min(plain.capacity(), size - wire.available));
+        sent += plain.remaining();
+        from.encrypt(plain);
+        if (wire.available == before) {
+          throw new SSLException("No ciphertext produced");
+        }
+      }
+      return sent;
+    }
+
+    private int deliver(Wire wire, SSLFacade to, int size) throws SSLException
+    {
+      if (size == 0) {
+        return 0;
+      }
+      ByteBuffer segment = wire.take(size);
+      to.decrypt(segment);
+      return size;
+    }
+
+    private void pump() throws SSLException
+    {
+      while (toServer.available > 0 || toClient.available > 0) {
+        if (toServer.available > 0) {
+          server.decrypt(toServer.take(toServer.available));
+        }
+        if (toClient.available > 0) {
+          client.decrypt(toClient.take(toClient.available));
+        }
+      }
+    }
+  }
+
+  private static class Wire
+  {
+    /* Ciphertext that has been wrapped but not delivered yet */
+    private final ArrayDeque<ByteBuffer> _queue = new ArrayDeque<ByteBuffer>();
+    long available;
+
+    void add(ByteBuffer data)
+    {
+      _queue.add(data);
+      available += data.remaining();
+    }
+
+    ByteBuffer take(long size)
+    {
+      ByteBuffer segment = ByteBuffer.allocate((int) Math.min(size, available));
+      while (segment.hasRemaining()) {
+        ByteBuffer head = _queue.peek();
+        if (head.remaining() <= segment.remaining()) {
+          segment.put(_queue.poll());
+        } else {
+          ByteBuffer part = head.slice();
+          part.limit(segment.remaining());
+          segment.put(part);
+          head.position(head.position() + part.limit());
+        }
+      }
+      available -= segment.capacity();
+      segment.flip();
+      return segment;
+    }
+  }
+
+  public static class Result
+  {
+    private final int _connections;
+    private final long _events;
+    private final long _wireBytes;
+    private final long _plainBytes;
+    private final long _recordedNanos;
+    private final long _replayNanos;
+    private final long _cpuNanos;
+
+    Result(int connections, long events, long wireBytes, long plainBytes, long recordedNanos,
+            long replayNanos, long cpuNanos)
+    {
+      _connections = connections;
+      _events = events;
+      _wireBytes = wireBytes;
+      _plainBytes = plainBytes;
+      _recordedNanos = recordedNanos;
+      _replayNanos = replayNanos;
+      _cpuNanos = cpuNanos;
+    }
+
+    public int getConnections()
+    {
+      return _connections;
+    }
+
+    public long getEvents()
+    {
+      return _events;
+    }
+
+    public long getWireBytes()
+    {
+      /* Ciphertext delivered in replayed segments */
+      return _wireBytes;
+    }
+
+    public long getPlainBytes()
+    {
+      return _plainBytes;
+    }
+
+    public long getRecordedNanos()
+    {
+      /* Time the replayed events span in the recording */
+      return _recordedNanos;
+    }
+
+    public long getReplayNanos()
+    {
+      return _replayNanos;
+    }
+
+    public long getCpuNanos()
+    {
+      return _cpuNanos;
+    }
+
+    public long getCpuNanosPerMegabyte()
+    {
+      return _wireBytes == 0 ? 0 : (long) (_cpuNanos / (_wireBytes / (1024.0 * 1024)));
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%d connections, %d events, %d bytes ciphertext, %d bytes plain, recorded %.2f ms, replayed in %.2f ms, %.2f ms CPU per MB",
+              _connections, _events, _wireBytes, _plainBytes, _recordedNanos / 1e6,
+              _replayNanos / 1e6, getCpuNanosPerMegabyte() / 1e6);
+    }
+  }
+}
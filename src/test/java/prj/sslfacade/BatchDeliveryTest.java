@@ -0,0 +1,80 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Batch delivery: one onPlainData call per decrypt(), whatever the number
+ * of records it unwrapped.
+ */
+public class BatchDeliveryTest
+{
+  private TestPair _pair;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _pair = new TestPair("TLSv1.2");
+    _pair.handshake();
+    _pair.server.setBatchDelivery(true);
+  }
+
+  @Test
+  public void shall_deliver_the_records_of_one_decrypt_in_one_call() throws Exception
+  {
+    // given
+    ByteBuffer expected = sendRecords(5, 1000);
+
+    // when
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+
+    //then
+    Assertions.assertThat(_pair.serverSide.plainCalls).isEqualTo(1);
+    Assertions.assertThat(_pair.serverSide.plain.toByteArray()).isEqualTo(expected.array());
+  }
+
+  @Test
+  public void shall_flush_the_batch_before_the_close_notification() throws Exception
+  {
+    // given
+    ByteBuffer expected = sendRecords(3, 1000);
+    _pair.client.close();
+    _pair.serverSide.events.clear();
+
+    // when
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+
+    //then
+    Assertions.assertThat(_pair.serverSide.events).containsExactly("plain", "wrapped", "closed");
+    Assertions.assertThat(_pair.serverSide.plain.toByteArray()).isEqualTo(expected.array());
+  }
+
+  @Test
+  public void shall_deliver_per_record_once_disabled() throws Exception
+  {
+    // given
+    sendRecords(3, 1000);
+
+    // when
+    _pair.server.setBatchDelivery(false);
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+
+    //then
+    Assertions.assertThat(_pair.serverSide.plainCalls).isEqualTo(3);
+  }
+
+  /* Privates */
+  private ByteBuffer sendRecords(int count, int size) throws Exception
+  {
+    /* One encrypt call per record, returns all the plain data sent */
+    ByteBuffer all = TestPair.data(count * size);
+    for (int i = 0; i < count; i++) {
+      ByteBuffer record = all.duplicate();
+      record.position(i * size).limit((i + 1) * size);
+      _pair.client.encrypt(record);
+    }
+    return all;
+  }
+}
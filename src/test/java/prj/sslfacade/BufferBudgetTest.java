@@ -0,0 +1,72 @@
+package prj.sslfacade;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Checks the accounting of chained buffer budgets.
+ */
+public class BufferBudgetTest
+{
+
+  @Test
+  public void shall_chargeParentBudget()
+  {
+    // given
+    BufferBudget global = new BufferBudget(1000);
+    BufferBudget facade = new BufferBudget(600, global);
+
+    // when
+    try {
+      facade.reserve(400);
+    } catch (BufferBudgetExceededException e) {
+      Assertions.fail("Reservation within both budgets failed", e);
+    }
+
+    //then
+    Assertions.assertThat(facade.getUsed()).isEqualTo(400);
+    Assertions.assertThat(global.getUsed()).isEqualTo(400);
+    Assertions.assertThat(facade.hasHeadroom(200)).isTrue();
+    Assertions.assertThat(facade.hasHeadroom(201)).isFalse();
+  }
+
+  @Test
+  public void shall_rollbackWhenParentIsExhausted()
+  {
+    // given
+    BufferBudget global = new BufferBudget(1000);
+    BufferBudget first = new BufferBudget(800, global);
+    BufferBudget second = new BufferBudget(800, global);
+
+    // when
+    BufferBudgetExceededException thrown = null;
+    try {
+      first.reserve(700);
+      second.reserve(700);
+    } catch (BufferBudgetExceededException e) {
+      thrown = e;
+    }
+
+    //then
+    Assertions.assertThat(thrown).isNotNull();
+    Assertions.assertThat(thrown.getBudget()).isSameAs(global);
+    Assertions.assertThat(second.getUsed()).isEqualTo(0);
+    Assertions.assertThat(global.getUsed()).isEqualTo(700);
+  }
+
+  @Test
+  public void shall_returnReleasedBytesToAllBudgets() throws BufferBudgetExceededException
+  {
+    // given
+    BufferBudget global = new BufferBudget(1000);
+    BufferBudget facade = new BufferBudget(1000, global);
+    facade.reserve(900);
+
+    // when
+    facade.release(900);
+
+    //then
+    Assertions.assertThat(facade.getUsed()).isEqualTo(0);
+    Assertions.assertThat(global.getAvailable()).isEqualTo(1000);
+  }
+}
@@ -0,0 +1,230 @@
+package prj.sslfacade;
+
+import java.io.FileInputStream;
+import java.net.Socket;
+import java.security.AlgorithmConstraints;
+import java.security.AlgorithmParameters;
+import java.security.CryptoPrimitive;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Validations of the certificate chain in rsa.jks, counted by a delegate
+ * that accepts every chain.
+ */
+public class CachingTrustManagerTest
+{
+  private SSLContext _context;
+  private X509Certificate[] _chain;
+  private CountingTrustManager _delegate;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _context = TestPair.context("TLS");
+    KeyStore ks = KeyStore.getInstance("JKS");
+    FileInputStream in = new FileInputStream(TestPair.JKS_FILE);
+    try {
+      ks.load(in, TestPair.JKS_FILE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    Certificate[] chain = ks.getCertificateChain(ks.aliases().nextElement());
+    _chain = new X509Certificate[chain.length];
+    for (int i = 0; i < chain.length; i++) {
+      _chain[i] = (X509Certificate) chain[i];
+    }
+    _delegate = new CountingTrustManager();
+  }
+
+  @Test
+  public void shall_not_ask_the_delegate_again_for_a_cached_chain() throws Exception
+  {
+    // given
+    CachingTrustManager cache = new CachingTrustManager(_delegate, 1, TimeUnit.MINUTES, 10);
+    SSLEngine engine = TestPair.engine(_context, true, null);
+
+    // when
+    cache.checkServerTrusted(_chain, "RSA", engine);
+    cache.checkServerTrusted(_chain, "RSA", engine);
+
+    //then
+    Assertions.assertThat(_delegate.checks).isEqualTo(1);
+    Assertions.assertThat(cache.getHits()).isEqualTo(1);
+    Assertions.assertThat(cache.getMisses()).isEqualTo(1);
+    Assertions.assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shall_ask_the_delegate_again_once_the_entry_expired() throws Exception
+  {
+    // given
+    CachingTrustManager cache = new CachingTrustManager(_delegate, 0, TimeUnit.MILLISECONDS, 10);
+    SSLEngine engine = TestPair.engine(_context, true, null);
+
+    // when
+    cache.checkServerTrusted(_chain, "RSA", engine);
+    cache.checkServerTrusted(_chain, "RSA", engine);
+
+    //then
+    Assertions.assertThat(_delegate.checks).isEqualTo(2);
+    Assertions.assertThat(cache.getHits()).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_not_share_entries_between_identification_settings() throws Exception
+  {
+    // given
+    CachingTrustManager cache = new CachingTrustManager(_delegate, 1, TimeUnit.MINUTES, 10);
+    SSLEngine identifying = TestPair.engine(_context, true, null);
+    SSLParameters parameters = identifying.getSSLParameters();
+    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    identifying.setSSLParameters(parameters);
+    SSLEngine other = TestPair.engine(_context, true, null);
+    cache.checkServerTrusted(_chain, "RSA", other);
+
+    // when
+    cache.checkServerTrusted(_chain, "RSA", identifying);
+
+    //then
+    Assertions.assertThat(_delegate.checks).isEqualTo(2);
+    Assertions.assertThat(cache.getHits()).isEqualTo(0);
+    Assertions.assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void shall_not_share_entries_between_algorithm_constraints() throws Exception
+  {
+    // given
+    CachingTrustManager cache = new CachingTrustManager(_delegate, 1, TimeUnit.MINUTES, 10);
+    SSLEngine constrained = TestPair.engine(_context, true, null);
+    SSLParameters parameters = constrained.getSSLParameters();
+    parameters.setAlgorithmConstraints(new PermitAll());
+    constrained.setSSLParameters(parameters);
+    SSLEngine other = TestPair.engine(_context, true, null);
+    cache.checkServerTrusted(_chain, "RSA", other);
+
+    // when
+    cache.checkServerTrusted(_chain, "RSA", constrained);
+
+    //then
+    Assertions.assertThat(_delegate.checks).isEqualTo(2);
+    Assertions.assertThat(cache.getHits()).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_reject_a_trust_manager_without_endpoint_identification() throws Exception
+  {
+    // given
+    X509TrustManager plain = new X509TrustManager()
+    {
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType)
+      {
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType)
+      {
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers()
+      {
+        return new X509Certificate[0];
+      }
+    };
+
+    // when
+    try {
+      CachingTrustManager.wrap(new TrustManager[]{plain}, 1, TimeUnit.MINUTES, 10);
+      Assertions.fail("A plain X509TrustManager shall be rejected");
+    } catch (IllegalArgumentException e) {
+      //then
+      Assertions.assertThat(e.getMessage()).contains("X509ExtendedTrustManager");
+    }
+  }
+
+  private static class CountingTrustManager extends X509ExtendedTrustManager
+  {
+    int checks;
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+    {
+      checks++;
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+    {
+      checks++;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+    {
+      checks++;
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+    {
+      checks++;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType)
+    {
+      checks++;
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType)
+    {
+      checks++;
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers()
+    {
+      return new X509Certificate[0];
+    }
+  }
+
+  private static class PermitAll implements AlgorithmConstraints
+  {
+    @Override
+    public boolean permits(Set<CryptoPrimitive> primitives, String algorithm,
+            AlgorithmParameters parameters)
+    {
+      return true;
+    }
+
+    @Override
+    public boolean permits(Set<CryptoPrimitive> primitives, Key key)
+    {
+      return true;
+    }
+
+    @Override
+    public boolean permits(Set<CryptoPrimitive> primitives, String algorithm, Key key,
+            AlgorithmParameters parameters)
+    {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package prj.sslfacade;
+
+import java.util.List;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Suites the keys allow are measured and ordered, the others are reported
+ * as unsupported and left out of the preferred order.
+ */
+public class CipherSuiteProfilerTest
+{
+  private static final String TLS13_SUITE = "TLS_AES_128_GCM_SHA256";
+  private static final String RSA_SUITE = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+  private static final String ECDSA_SUITE = "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256";
+
+  @Test
+  public void shall_measure_supported_suites_and_skip_the_others() throws Exception
+  {
+    // given
+    CipherSuiteProfiler profiler = new CipherSuiteProfiler(TestPair.context("TLS"));
+    profiler.setHandshakes(2);
+    profiler.setPayloadBytes(64 * 1024);
+    profiler.setWarmupRounds(0);
+
+    // when
+    List<CipherSuiteProfiler.Result> results = profiler.profile(
+            new String[]{ECDSA_SUITE, TLS13_SUITE, RSA_SUITE});
+    String[] order = CipherSuiteProfiler.preferredOrder(results);
+
+    //then
+    Assertions.assertThat(results).hasSize(3);
+    Assertions.assertThat(results.get(0).isSupported()).isTrue();
+    Assertions.assertThat(results.get(1).isSupported()).isTrue();
+    Assertions.assertThat(results.get(0).getMegabytesPerSecond())
+            .isGreaterThanOrEqualTo(results.get(1).getMegabytesPerSecond());
+    Assertions.assertThat(results.get(2).getSuite()).isEqualTo(ECDSA_SUITE);
+    Assertions.assertThat(results.get(2).isSupported()).isFalse();
+    Assertions.assertThat(results.get(2).getFailure()).isNotNull();
+    Assertions.assertThat(order).hasSize(2).contains(TLS13_SUITE, RSA_SUITE);
+    Assertions.assertThat(order[0]).isEqualTo(results.get(0).getSuite());
+  }
+
+  @Test
+  public void shall_move_the_whole_payload_through_an_in_memory_pair() throws Exception
+  {
+    // given
+    InMemoryPair pair = new InMemoryPair(TestPair.context("TLS"), TestPair.context("TLS"));
+
+    // when
+    pair.send(TestPair.data(100000));
+    pair.close();
+
+    //then
+    Assertions.assertThat(pair.clientSent).isEqualTo(100000);
+    Assertions.assertThat(pair.serverReceived).isEqualTo(100000);
+    pair.verify();
+    Assertions.assertThat(pair.client.isCloseCompleted()).isTrue();
+    Assertions.assertThat(pair.server.isCloseCompleted()).isTrue();
+  }
+}
@@ -0,0 +1,105 @@
+package prj.sslfacade;
+
+import java.util.concurrent.CompletableFuture;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * The session closed notification follows the last record of the session.
+ */
+public class CloseTest
+{
+  @Test
+  public void shall_emit_the_close_notify_reply_before_closing_on_TLSv12() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    pair.client.close();
+    pair.serverSide.events.clear();
+
+    // when
+    pair.server.decrypt(pair.clientSide.takeWrapped());
+
+    //then
+    Assertions.assertThat(pair.serverSide.events).containsExactly("wrapped", "closed");
+    Assertions.assertThat(pair.server.getPeerCloseFuture().isDone()).isTrue();
+    Assertions.assertThat(pair.server.isCloseCompleted()).isTrue();
+  }
+
+  @Test
+  public void shall_complete_the_close_on_both_sides_on_TLSv12() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+
+    // when
+    pair.client.close();
+    pair.pump();
+
+    //then
+    Assertions.assertThat(pair.clientSide.events).endsWith("closed");
+    Assertions.assertThat(pair.serverSide.events).endsWith("wrapped", "closed");
+    Assertions.assertThat(pair.client.getPeerCloseFuture().isDone()).isTrue();
+    Assertions.assertThat(pair.server.getPeerCloseFuture().isDone()).isTrue();
+  }
+
+  @Test
+  public void shall_close_on_the_peers_close_notify_on_TLSv13() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.3");
+    pair.handshake();
+    pair.client.close();
+    pair.serverSide.events.clear();
+
+    // when
+    pair.server.decrypt(pair.clientSide.takeWrapped());
+
+    //then
+    Assertions.assertThat(pair.serverSide.events).endsWith("closed");
+    Assertions.assertThat(pair.server.getPeerCloseFuture().isDone()).isTrue();
+  }
+
+  @Test
+  public void shall_complete_closeAsync_once_close_notify_was_wrapped() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    pair.clientSide.events.clear();
+
+    // when
+    CompletableFuture<Void> close = pair.client.closeAsync();
+
+    //then
+    Assertions.assertThat(close.isDone()).isTrue();
+    Assertions.assertThat(close.isCompletedExceptionally()).isFalse();
+    Assertions.assertThat(pair.clientSide.events).startsWith("wrapped");
+    Assertions.assertThat(pair.client.getPeerCloseFuture().isDone()).isFalse();
+
+    // when
+    pair.pump();
+
+    //then
+    Assertions.assertThat(pair.client.getPeerCloseFuture().isDone()).isTrue();
+    Assertions.assertThat(pair.client.getPeerCloseFuture().isCompletedExceptionally()).isFalse();
+  }
+
+  @Test
+  public void shall_fail_the_peer_close_future_on_terminate() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    pair.client.close();
+    CompletableFuture<Void> peerClose = pair.client.getPeerCloseFuture();
+
+    // when
+    pair.client.terminate();
+
+    //then
+    Assertions.assertThat(peerClose.isCompletedExceptionally()).isTrue();
+  }
+}
@@ -0,0 +1,173 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import prj.sslfacade.timer.HashedTimerWheel;
+
+/**
+ * A DTLS client and server exchanging datagrams in memory, with datagrams
+ * dropped on purpose.
+ */
+public class DTLSFacadeTest
+{
+  private static final int MTU = 1200;
+
+  private HashedTimerWheel _wheel;
+  private DTLSFacade _client;
+  private DTLSFacade _server;
+  private Endpoint _clientSide;
+  private Endpoint _serverSide;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    SSLContext context = TestPair.context("DTLS");
+    _wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 64);
+    _client = new DTLSFacade(context, true, MTU, new DefaultTaskHandler());
+    _server = new DTLSFacade(context, false, MTU, new DefaultTaskHandler());
+    _clientSide = new Endpoint(_client);
+    _serverSide = new Endpoint(_server);
+    _client.setRetransmission(_wheel, 100, 1000, TimeUnit.MILLISECONDS);
+    _server.setRetransmission(_wheel, 100, 1000, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void shall_retransmit_a_dropped_flight() throws Exception
+  {
+    // given
+    _clientSide.dropNext = true;
+    _client.beginHandshake();
+    _server.beginHandshake();
+    pump();
+    boolean stalled = !_client.isHandshakeCompleted() && _serverSide.datagrams.isEmpty();
+
+    // when
+    _wheel.tick(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(150));
+    pump();
+
+    //then
+    Assertions.assertThat(stalled).isTrue();
+    Assertions.assertThat(_client.getRetransmitCount()).isEqualTo(1);
+    Assertions.assertThat(_client.isHandshakeCompleted()).isTrue();
+    Assertions.assertThat(_server.isHandshakeCompleted()).isTrue();
+    Assertions.assertThat(_clientSide.largest).isLessThanOrEqualTo(MTU);
+    Assertions.assertThat(_serverSide.largest).isLessThanOrEqualTo(MTU);
+  }
+
+  @Test
+  public void shall_keep_every_datagram_within_the_mtu() throws Exception
+  {
+    // given
+    handshake();
+    int before = _serverSide.sent;
+
+    // when
+    _server.encrypt(ByteBuffer.wrap(new byte[10]), ByteBuffer.wrap(new byte[500]),
+            TestPair.data(3000), ByteBuffer.wrap(new byte[20]));
+    int datagrams = _serverSide.sent - before;
+    pump();
+
+    //then
+    Assertions.assertThat(datagrams).isGreaterThan(1);
+    Assertions.assertThat(_serverSide.largest).isLessThanOrEqualTo(MTU);
+    Assertions.assertThat(_clientSide.plainCalls).isGreaterThanOrEqualTo(4);
+    Assertions.assertThat(_clientSide.plainBytes).isEqualTo(3530);
+  }
+
+  @Test
+  public void shall_notify_on_close_but_not_on_terminate() throws Exception
+  {
+    // given
+    handshake();
+
+    // when
+    _client.close();
+    _server.terminate();
+
+    //then
+    Assertions.assertThat(_clientSide.closed).isTrue();
+    Assertions.assertThat(_serverSide.closed).isFalse();
+    Assertions.assertThat(_client.isCloseCompleted()).isTrue();
+  }
+
+  @Test(expected = SSLException.class)
+  public void shall_refuse_messages_after_terminate() throws Exception
+  {
+    // given
+    _client.terminate();
+
+    // when
+    _client.encrypt(ByteBuffer.wrap(new byte[10]));
+  }
+
+  /* Privates */
+  private void handshake() throws Exception
+  {
+    _client.beginHandshake();
+    _server.beginHandshake();
+    pump();
+    Assertions.assertThat(_client.isHandshakeCompleted()).isTrue();
+    Assertions.assertThat(_server.isHandshakeCompleted()).isTrue();
+  }
+
+  private void pump() throws SSLException
+  {
+    while (!_clientSide.datagrams.isEmpty() || !_serverSide.datagrams.isEmpty()) {
+      while (!_clientSide.datagrams.isEmpty()) {
+        _server.decrypt(_clientSide.datagrams.remove(0));
+      }
+      while (!_serverSide.datagrams.isEmpty()) {
+        _client.decrypt(_serverSide.datagrams.remove(0));
+      }
+    }
+  }
+
+  private static class Endpoint implements ISSLListener, ISessionClosedListener
+  {
+    final List<ByteBuffer> datagrams = new ArrayList<ByteBuffer>();
+    boolean dropNext;
+    int sent;
+    int largest;
+    int plainCalls;
+    int plainBytes;
+    boolean closed;
+
+    Endpoint(DTLSFacade facade)
+    {
+      facade.setSSLListener(this);
+      facade.setCloseListener(this);
+    }
+
+    @Override
+    public void onWrappedData(ByteBuffer wrappedBytes)
+    {
+      sent++;
+      largest = Math.max(largest, wrappedBytes.remaining());
+      if (dropNext) {
+        dropNext = false;
+      } else {
+        datagrams.add(wrappedBytes);
+      }
+    }
+
+    @Override
+    public void onPlainData(ByteBuffer plainBytes)
+    {
+      plainCalls++;
+      this.plainBytes += plainBytes.remaining();
+    }
+
+    @Override
+    public void onSessionClosed()
+    {
+      closed = true;
+    }
+  }
+}
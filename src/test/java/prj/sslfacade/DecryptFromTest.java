@@ -0,0 +1,78 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * decryptFrom() reads that end in the middle of a record.
+ */
+public class DecryptFromTest
+{
+  @Test
+  public void shall_decrypt_records_split_across_reads() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    ByteBuffer data = TestPair.data(60000);
+    pair.client.encrypt(data.duplicate());
+    TestChannels.ChunkedReadChannel channel
+            = new TestChannels.ChunkedReadChannel(pair.clientSide.takeWrapped(), 1000);
+
+    // when
+    while (pair.server.decryptFrom(channel) >= 0) {
+    }
+
+    //then
+    Assertions.assertThat(pair.serverSide.plain.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test
+  public void shall_decrypt_a_record_read_one_byte_at_a_time() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.3");
+    pair.handshake();
+    ByteBuffer data = TestPair.data(100);
+    pair.client.encrypt(data.duplicate());
+    TestChannels.ChunkedReadChannel channel
+            = new TestChannels.ChunkedReadChannel(pair.clientSide.takeWrapped(), 1);
+
+    // when
+    int reads = 0;
+    while (pair.server.decryptFrom(channel) >= 0) {
+      reads++;
+    }
+
+    //then
+    Assertions.assertThat(reads).isGreaterThan(100);
+    Assertions.assertThat(pair.serverSide.plainCalls).isEqualTo(1);
+    Assertions.assertThat(pair.serverSide.plain.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test
+  public void shall_handshake_over_reads_that_end_mid_record() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.server.beginHandshake();
+    pair.client.beginHandshake();
+
+    // when
+    while (!pair.clientSide.wrapped.isEmpty() || !pair.serverSide.wrapped.isEmpty()) {
+      TestChannels.ChunkedReadChannel toServer
+              = new TestChannels.ChunkedReadChannel(pair.clientSide.takeWrapped(), 7);
+      while (pair.server.decryptFrom(toServer) >= 0) {
+      }
+      TestChannels.ChunkedReadChannel toClient
+              = new TestChannels.ChunkedReadChannel(pair.serverSide.takeWrapped(), 7);
+      while (pair.client.decryptFrom(toClient) >= 0) {
+      }
+    }
+
+    //then
+    Assertions.assertThat(pair.client.isHandshakeCompleted()).isTrue();
+    Assertions.assertThat(pair.server.isHandshakeCompleted()).isTrue();
+  }
+}
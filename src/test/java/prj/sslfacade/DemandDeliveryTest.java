@@ -0,0 +1,111 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Demand based delivery: request(n) unwraps exactly as much of the unwrap
+ * cache as the demand allows.
+ */
+public class DemandDeliveryTest
+{
+  private TestPair _pair;
+  private final List<String> _readInterest = new ArrayList<String>();
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _pair = new TestPair("TLSv1.2");
+    _pair.handshake();
+    _pair.server.setReadInterestListener(new IReadInterestListener()
+    {
+      @Override
+      public void onPauseReads()
+      {
+        _readInterest.add("pause");
+      }
+
+      @Override
+      public void onResumeReads()
+      {
+        _readInterest.add("resume");
+      }
+    });
+    _pair.server.setDemandDelivery(DemandUnit.RECORDS);
+  }
+
+  @Test
+  public void shall_deliver_exactly_the_requested_records() throws Exception
+  {
+    // given
+    ByteBuffer expected = sendRecords(5, 100);
+
+    // when
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+    int beforeRequest = _pair.serverSide.plainCalls;
+    _pair.server.request(2);
+    int afterFirstRequest = _pair.serverSide.plainCalls;
+    _pair.server.request(3);
+
+    //then
+    Assertions.assertThat(beforeRequest).isEqualTo(0);
+    Assertions.assertThat(afterFirstRequest).isEqualTo(2);
+    Assertions.assertThat(_pair.serverSide.plainCalls).isEqualTo(5);
+    Assertions.assertThat(_pair.serverSide.plain.toByteArray()).isEqualTo(expected.array());
+  }
+
+  @Test
+  public void shall_continue_from_the_cache_on_resume() throws Exception
+  {
+    // given
+    ByteBuffer expected = sendRecords(3, 100);
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+
+    // when
+    _pair.server.request(1);
+    _pair.server.request(1);
+    _pair.server.request(1);
+
+    //then
+    Assertions.assertThat(_pair.serverSide.plainCalls).isEqualTo(3);
+    Assertions.assertThat(_pair.serverSide.plain.toByteArray()).isEqualTo(expected.array());
+    Assertions.assertThat(_readInterest).containsExactly(
+            "pause", "resume", "pause", "resume", "pause", "resume", "pause");
+  }
+
+  @Test
+  public void shall_report_the_peer_close_once_there_is_demand() throws Exception
+  {
+    // given
+    sendRecords(1, 100);
+    _pair.client.close();
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+
+    // when
+    _pair.server.request(1);
+    boolean closedBeforeDemand = _pair.server.getPeerCloseFuture().isDone();
+    _pair.server.request(1);
+
+    //then
+    Assertions.assertThat(closedBeforeDemand).isFalse();
+    Assertions.assertThat(_pair.server.getPeerCloseFuture().isDone()).isTrue();
+    Assertions.assertThat(_pair.serverSide.events).contains("closed");
+  }
+
+  /* Privates */
+  private ByteBuffer sendRecords(int count, int size) throws Exception
+  {
+    /* One encrypt call per record, returns all the plain data sent */
+    ByteBuffer all = TestPair.data(count * size);
+    for (int i = 0; i < count; i++) {
+      ByteBuffer record = all.duplicate();
+      record.position(i * size).limit((i + 1) * size);
+      _pair.client.encrypt(record);
+    }
+    return all;
+  }
+}
@@ -0,0 +1,67 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Allocation, reuse and the capacity limit of a DirectBufferArena.
+ */
+public class DirectBufferArenaTest
+{
+  @Test
+  public void shall_reuseReleasedBuffersOfTheSameSizeClass()
+  {
+    // given
+    DirectBufferArena arena = new DirectBufferArena(1 << 20);
+    ByteBuffer first = arena.allocate(17000);
+    arena.release(first);
+
+    // when
+    ByteBuffer second = arena.allocate(20000);
+
+    //then
+    Assertions.assertThat(second).isSameAs(first);
+    Assertions.assertThat(second.isDirect()).isTrue();
+    Assertions.assertThat(second.capacity()).isEqualTo(32768);
+    Assertions.assertThat(arena.getAllocated()).isEqualTo(32768);
+    Assertions.assertThat(arena.getInUse()).isEqualTo(32768);
+  }
+
+  @Test
+  public void shall_fallBackToHeapBeyondCapacity()
+  {
+    // given
+    DirectBufferArena arena = new DirectBufferArena(64 * 1024);
+    arena.allocate(40000);
+
+    // when
+    ByteBuffer buffer = arena.allocate(40000);
+    arena.release(buffer);
+
+    //then
+    Assertions.assertThat(buffer.isDirect()).isFalse();
+    Assertions.assertThat(arena.getFallbacks()).isEqualTo(1);
+    Assertions.assertThat(arena.getInUse()).isEqualTo(65536);
+  }
+
+  @Test
+  public void shall_refuseToReleaseABufferTwice()
+  {
+    // given
+    DirectBufferArena arena = new DirectBufferArena(1 << 20);
+    ByteBuffer buffer = arena.allocate(5000);
+    arena.release(buffer);
+
+    // when
+    try {
+      arena.release(buffer);
+      Assertions.fail("A buffer released twice shall be refused");
+    } catch (IllegalStateException e) {
+      //then
+      Assertions.assertThat(arena.getInUse()).isEqualTo(0);
+      Assertions.assertThat(arena.allocate(5000)).isSameAs(buffer);
+      Assertions.assertThat(arena.allocate(5000)).isNotSameAs(buffer);
+    }
+  }
+}
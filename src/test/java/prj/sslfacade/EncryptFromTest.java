@@ -0,0 +1,101 @@
+package prj.sslfacade;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.net.ssl.SSLException;
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * encryptFrom() sends file regions that do not line up with chunks or
+ * records.
+ */
+public class EncryptFromTest
+{
+  @Rule
+  public TemporaryFolder _folder = new TemporaryFolder();
+
+  @Test
+  public void shall_send_a_file_region_over_a_slow_channel() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    ByteBuffer data = TestPair.data(100003);
+    FileChannel file = file(data);
+    TestChannels.LimitedWriteChannel channel = new TestChannels.LimitedWriteChannel(0);
+    long position = 1001;
+    long end = 90001;
+
+    // when
+    int calls = 0;
+    while (position < end || pair.client.hasPendingOutput()) {
+      channel.allow(7000);
+      if (pair.client.flushPending(channel)) {
+        position += pair.client.encryptFrom(file, position, end - position, channel);
+      }
+      calls++;
+    }
+    pair.server.decrypt(channel.takeWritten());
+    file.close();
+
+    //then
+    Assertions.assertThat(calls).isGreaterThan(10);
+    Assertions.assertThat(pair.serverSide.plain.toByteArray())
+            .isEqualTo(Arrays.copyOfRange(data.array(), 1001, 90001));
+  }
+
+  @Test
+  public void shall_stop_at_the_end_of_the_file() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.3");
+    pair.handshake();
+    ByteBuffer data = TestPair.data(40000);
+    FileChannel file = file(data);
+    TestChannels.LimitedWriteChannel channel = new TestChannels.LimitedWriteChannel(Long.MAX_VALUE / 2);
+
+    // when
+    long sent = pair.client.encryptFrom(file, 0, 50000, channel);
+    pair.server.decrypt(channel.takeWritten());
+    file.close();
+
+    //then
+    Assertions.assertThat(sent).isEqualTo(40000);
+    Assertions.assertThat(pair.serverSide.plain.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test(expected = SSLException.class)
+  public void shall_refuse_files_before_the_handshake() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    FileChannel file = file(TestPair.data(10));
+
+    // when
+    try {
+      pair.client.encryptFrom(file, 0, 10, new TestChannels.LimitedWriteChannel(100));
+    } finally {
+      file.close();
+    }
+  }
+
+  /* Privates */
+  private FileChannel file(ByteBuffer data) throws Exception
+  {
+    File file = _folder.newFile();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data.array());
+    } finally {
+      out.close();
+    }
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+}
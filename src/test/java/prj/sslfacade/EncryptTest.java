@@ -0,0 +1,98 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Plain data passed to encrypt() either reaches the peer or the caller
+ * learns that it did not.
+ */
+public class EncryptTest
+{
+  @Test
+  public void shall_deliver_every_byte_of_a_multi_record_write() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    ByteBuffer data = TestPair.data(100000);
+
+    // when
+    pair.client.encrypt(data.duplicate());
+    pair.pump();
+
+    //then
+    Assertions.assertThat(pair.clientSide.events).doesNotContain("closed");
+    Assertions.assertThat(pair.serverSide.plain.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test
+  public void shall_deliver_every_byte_of_writes_queued_before_the_handshake() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.3");
+    ByteBuffer data = TestPair.data(50000);
+    ByteBuffer first = data.duplicate();
+    first.limit(20000);
+    ByteBuffer second = data.duplicate();
+    second.position(20000);
+
+    // when
+    pair.client.encrypt(first);
+    pair.client.encrypt(second);
+    pair.handshake();
+    pair.pump();
+
+    //then
+    Assertions.assertThat(pair.serverSide.plain.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test(expected = SSLException.class)
+  public void shall_refuse_writes_after_close() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    pair.client.close();
+
+    // when
+    pair.client.encrypt(TestPair.data(10));
+  }
+
+  @Test(expected = SSLException.class)
+  public void shall_refuse_writes_after_terminate() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.client.terminate();
+
+    // when
+    pair.client.encrypt(TestPair.data(10));
+  }
+
+  @Test
+  public void shall_fail_the_handshake_when_queued_writes_are_discarded() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.client.beginHandshake();
+    CompletableFuture<SSLSession> handshake = pair.client.getHandshakeFuture();
+    pair.client.encrypt(TestPair.data(10));
+
+    // when
+    pair.client.terminate();
+
+    //then
+    try {
+      handshake.get();
+      Assertions.fail("Handshake did not fail");
+    } catch (ExecutionException e) {
+      Assertions.assertThat(e.getCause().getMessage()).contains("10 bytes");
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * encryptTo() on a channel that takes only part of the records.
+ */
+public class EncryptToTest
+{
+  @Test
+  public void shall_keep_what_the_channel_did_not_take_as_pending_output() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    TestChannels.LimitedWriteChannel channel = new TestChannels.LimitedWriteChannel(5000);
+    ByteBuffer data = TestPair.data(200000);
+
+    // when
+    long consumed = pair.client.encryptTo(channel, data.duplicate());
+
+    //then
+    Assertions.assertThat(consumed).isLessThan(200000);
+    Assertions.assertThat(pair.client.hasPendingOutput()).isTrue();
+    Assertions.assertThat(pair.client.flushPending(channel)).isFalse();
+    Assertions.assertThat(channel.written.size()).isEqualTo(5000);
+  }
+
+  @Test
+  public void shall_deliver_every_byte_over_partial_writes() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    TestChannels.LimitedWriteChannel channel = new TestChannels.LimitedWriteChannel(0);
+    ByteBuffer data = TestPair.data(60000);
+    ByteBuffer src = data.duplicate();
+
+    // when
+    int writes = 0;
+    while (src.hasRemaining() || pair.client.hasPendingOutput()) {
+      channel.allow(3000);
+      if (pair.client.flushPending(channel)) {
+        pair.client.encryptTo(channel, src);
+      }
+      writes++;
+    }
+    pair.server.decrypt(channel.takeWritten());
+
+    //then
+    Assertions.assertThat(writes).isGreaterThan(20);
+    Assertions.assertThat(pair.serverSide.plain.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test
+  public void shall_send_the_close_notify_after_the_pending_records() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.handshake();
+    TestChannels.LimitedWriteChannel channel = new TestChannels.LimitedWriteChannel(1000);
+    ByteBuffer data = TestPair.data(20000);
+    long consumed = pair.client.encryptTo(channel, data.duplicate());
+
+    // when
+    pair.client.close();
+    channel.allow(Long.MAX_VALUE / 2);
+    boolean flushed = pair.client.flushPending(channel);
+    pair.server.decrypt(channel.takeWritten());
+
+    //then
+    Assertions.assertThat(flushed).isTrue();
+    Assertions.assertThat(pair.clientSide.wrapped).isEmpty();
+    Assertions.assertThat(pair.serverSide.plain.size()).isEqualTo((int) consumed);
+    Assertions.assertThat(pair.server.getPeerCloseFuture().isDone()).isTrue();
+  }
+}
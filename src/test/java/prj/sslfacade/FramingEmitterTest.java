@@ -0,0 +1,75 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLException;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Feeds plain data to a FramingEmitter the way Worker does, as IN_PLAIN
+ * buffers in write mode.
+ */
+public class FramingEmitterTest
+{
+  private final List<String> _frames = new ArrayList<String>();
+  private final ISSLListener _listener = new ISSLListener()
+  {
+    @Override
+    public void onWrappedData(ByteBuffer wrappedBytes)
+    {
+    }
+
+    @Override
+    public void onPlainData(ByteBuffer plainBytes)
+    {
+      byte[] frame = new byte[plainBytes.remaining()];
+      plainBytes.get(frame);
+      _frames.add(new String(frame));
+    }
+  };
+
+  @Test
+  public void shall_deliverEveryFrameOfOneRecord() throws SSLException
+  {
+    // given
+    FramingEmitter emitter = new FramingEmitter(new LengthFieldFraming(1, 2, 64), _listener);
+
+    // when
+    emitter.emit(plain("#\u0000\u0003abc#\u0000\u0000#\u0000\u0002de"));
+
+    //then
+    Assertions.assertThat(_frames).containsExactly("#\u0000\u0003abc", "#\u0000\u0000", "#\u0000\u0002de");
+  }
+
+  @Test
+  public void shall_assembleFramesThatSpanRecords() throws SSLException
+  {
+    // given
+    FramingEmitter emitter = new FramingEmitter(new LengthFieldFraming(0, 2, 64), _listener);
+
+    // when
+    emitter.emit(plain("\u0000"));
+    emitter.emit(plain("\u0005ab"));
+    emitter.emit(plain("cde\u0000\u0001"));
+    emitter.emit(plain("f"));
+
+    //then
+    Assertions.assertThat(_frames).containsExactly("\u0000\u0005abcde", "\u0000\u0001f");
+  }
+
+  @Test(expected = SSLException.class)
+  public void shall_rejectFramesAboveTheMaximum() throws SSLException
+  {
+    FramingEmitter emitter = new FramingEmitter(new LengthFieldFraming(0, 1, 8), _listener);
+    emitter.emit(plain("\u0010abc"));
+  }
+
+  private static ByteBuffer plain(String data)
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(128);
+    buffer.put(data.getBytes());
+    return buffer;
+  }
+}
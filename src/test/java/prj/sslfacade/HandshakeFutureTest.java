@@ -0,0 +1,95 @@
+package prj.sslfacade;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import prj.sslfacade.timer.HashedTimerWheel;
+import prj.sslfacade.timer.SSLDeadlines;
+
+/**
+ * The handshake future completes on the thread driving the facade, a
+ * handshake deadline expires on the thread ticking the wheel and
+ * terminates the facade.
+ */
+public class HandshakeFutureTest
+{
+  @Test
+  public void shall_complete_the_handshake_future_with_the_session() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    CompletableFuture<SSLSession> client = pair.client.getHandshakeFuture();
+    CompletableFuture<SSLSession> server = pair.server.getHandshakeFuture();
+
+    // when
+    pair.handshake();
+
+    //then
+    Assertions.assertThat(client.isDone()).isTrue();
+    Assertions.assertThat(server.isDone()).isTrue();
+    Assertions.assertThat(client.get().getProtocol()).isEqualTo("TLSv1.2");
+    Assertions.assertThat(server.get().getCipherSuite()).isEqualTo(client.get().getCipherSuite());
+  }
+
+  @Test
+  public void shall_fail_the_handshake_future_on_terminate() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    pair.client.beginHandshake();
+
+    // when
+    pair.client.terminate();
+
+    //then
+    Assertions.assertThat(pair.client.getHandshakeFuture().isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(pair.client.getPeerCloseFuture().isCompletedExceptionally()).isTrue();
+  }
+
+  @Test
+  public void shall_terminate_an_expired_handshake_on_the_ticking_thread() throws Exception
+  {
+    // given
+    TestPair pair = new TestPair("TLSv1.2");
+    HashedTimerWheel wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 64);
+    SSLDeadlines deadlines = new SSLDeadlines(wheel, 100, 100, TimeUnit.MILLISECONDS);
+    final Thread[] completedOn = new Thread[1];
+    final boolean[] expired = new boolean[1];
+    CompletableFuture<SSLSession> handshake = deadlines.beginHandshake(pair.client,
+            new ISessionClosedListener()
+            {
+              @Override
+              public void onSessionClosed()
+              {
+                expired[0] = true;
+              }
+            });
+    handshake.whenComplete(new BiConsumer<SSLSession, Throwable>()
+    {
+      @Override
+      public void accept(SSLSession session, Throwable failure)
+      {
+        completedOn[0] = Thread.currentThread();
+      }
+    });
+
+    // when
+    wheel.tick(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500));
+
+    //then
+    Assertions.assertThat(handshake.isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(completedOn[0]).isSameAs(Thread.currentThread());
+    Assertions.assertThat(expired[0]).isTrue();
+    Assertions.assertThat(deadlines.getExpiredCount()).isEqualTo(1);
+    try {
+      pair.client.encrypt(TestPair.data(10));
+      Assertions.fail("Terminated facade accepted data");
+    } catch (SSLException e) {
+      Assertions.assertThat(pair.client.isHandshakeCompleted()).isFalse();
+    }
+  }
+}
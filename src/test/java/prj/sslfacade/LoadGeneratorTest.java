@@ -0,0 +1,59 @@
+package prj.sslfacade;
+
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * A short load generator run completes both phases, and a failing thread
+ * ends the run with what it failed with.
+ */
+public class LoadGeneratorTest
+{
+  @Test
+  public void shall_run_handshakes_and_transfer_on_all_threads() throws Exception
+  {
+    // given
+    LoadGenerator generator = new LoadGenerator(TestPair.context("TLS"));
+    generator.setConnections(5);
+    generator.setThreads(2);
+    generator.setChunkSize(1024);
+    generator.setTransferTime(100, TimeUnit.MILLISECONDS);
+
+    // when
+    LoadGenerator.Result result = generator.run();
+
+    //then
+    Assertions.assertThat(result.getConnections()).isEqualTo(5);
+    Assertions.assertThat(result.getThreads()).isEqualTo(2);
+    Assertions.assertThat(result.getHandshakes().getOperationsPerSecond()).isGreaterThan(0);
+    Assertions.assertThat(result.getHandshakes().getP50Nanos()).isGreaterThan(0);
+    Assertions.assertThat(result.getTransfer().getBytesPerSecond()).isGreaterThan(0);
+    Assertions.assertThat(result.getTransfer().getP99Nanos())
+            .isGreaterThanOrEqualTo(result.getTransfer().getP50Nanos());
+  }
+
+  @Test
+  public void shall_report_the_cause_when_a_thread_fails() throws Exception
+  {
+    // given
+    SSLContext uninitialized = SSLContext.getInstance("TLS");
+    LoadGenerator generator = new LoadGenerator(TestPair.context("TLS"), uninitialized);
+    generator.setConnections(2);
+    generator.setThreads(2);
+
+    // when
+    SSLException thrown = null;
+    try {
+      generator.run();
+    } catch (SSLException e) {
+      thrown = e;
+    }
+
+    //then
+    Assertions.assertThat(thrown).isNotNull();
+    Assertions.assertThat(thrown.getCause()).isInstanceOf(IllegalStateException.class);
+  }
+}
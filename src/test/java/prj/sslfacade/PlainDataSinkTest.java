@@ -0,0 +1,102 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A plain data sink that does not take all of the plain data offered.
+ */
+public class PlainDataSinkTest
+{
+  private TestPair _pair;
+  private TestChannels.LimitedWriteChannel _sink;
+  private final List<String> _readInterest = new ArrayList<String>();
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _pair = new TestPair("TLSv1.2");
+    _pair.handshake();
+    _sink = new TestChannels.LimitedWriteChannel(0);
+    _pair.server.setPlainDataSink(_sink);
+    _pair.server.setReadInterestListener(new IReadInterestListener()
+    {
+      @Override
+      public void onPauseReads()
+      {
+        _readInterest.add("pause");
+      }
+
+      @Override
+      public void onResumeReads()
+      {
+        _readInterest.add("resume");
+      }
+    });
+  }
+
+  @Test
+  public void shall_hold_back_what_the_sink_refuses() throws Exception
+  {
+    // given
+    ByteBuffer data = TestPair.data(40000);
+    _pair.client.encrypt(data.duplicate());
+
+    // when
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+    boolean flushedWhileRefused = _pair.server.flushPlainDataSink();
+    int writtenWhileRefused = _sink.written.size();
+    _sink.allow(Long.MAX_VALUE / 2);
+    boolean flushed = _pair.server.flushPlainDataSink();
+
+    //then
+    Assertions.assertThat(flushedWhileRefused).isFalse();
+    Assertions.assertThat(writtenWhileRefused).isEqualTo(0);
+    Assertions.assertThat(flushed).isTrue();
+    Assertions.assertThat(_readInterest).containsExactly("pause", "resume");
+    Assertions.assertThat(_pair.serverSide.plainCalls).isEqualTo(0);
+    Assertions.assertThat(_sink.written.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test
+  public void shall_deliver_every_byte_to_a_slow_sink() throws Exception
+  {
+    // given
+    ByteBuffer data = TestPair.data(50000);
+    _pair.client.encrypt(data.duplicate());
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+
+    // when
+    int flushes = 0;
+    while (_sink.written.size() < data.capacity() && flushes < 1000) {
+      _sink.allow(700);
+      _pair.server.flushPlainDataSink();
+      flushes++;
+    }
+
+    //then
+    Assertions.assertThat(flushes).isGreaterThan(50);
+    Assertions.assertThat(_sink.written.toByteArray()).isEqualTo(data.array());
+    Assertions.assertThat(_pair.server.flushPlainDataSink()).isTrue();
+  }
+
+  @Test
+  public void shall_keep_reads_paused_until_the_sink_took_everything() throws Exception
+  {
+    // given
+    _pair.client.encrypt(TestPair.data(1000));
+    _pair.server.decrypt(_pair.clientSide.takeWrapped());
+
+    // when
+    _sink.allow(999);
+    boolean flushed = _pair.server.flushPlainDataSink();
+
+    //then
+    Assertions.assertThat(flushed).isFalse();
+    Assertions.assertThat(_readInterest).containsExactly("pause");
+  }
+}
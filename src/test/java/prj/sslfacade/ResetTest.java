@@ -0,0 +1,81 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A facade reset for a new connection handshakes again and carries nothing
+ * over from the previous one.
+ */
+public class ResetTest
+{
+  private SSLContext _context;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _context = TestPair.context("TLS");
+  }
+
+  @Test
+  public void shall_drop_held_back_data_demand_and_budget_on_reset() throws Exception
+  {
+    // given
+    TestPair first = new TestPair(_context, "TLSv1.2");
+    BufferBudget budget = new BufferBudget(1 << 20);
+    first.client.setBufferBudget(budget);
+    first.client.setDemandDelivery(DemandUnit.RECORDS);
+    first.client.request(1);
+    first.handshake();
+    first.server.encrypt(TestPair.data(50000));
+    first.client.decrypt(first.serverSide.takeWrapped());
+    long usedBeforeReset = budget.getUsed();
+
+    // when
+    first.client.reset(TestPair.engine(_context, true, "TLSv1.2"));
+    TestPair second = new TestPair(first.client, newServer());
+    second.handshake();
+    ByteBuffer request = TestPair.data(1000);
+    ByteBuffer response = TestPair.data(2000);
+    second.client.encrypt(request.duplicate());
+    second.server.encrypt(response.duplicate());
+    second.pump();
+
+    //then
+    Assertions.assertThat(first.clientSide.plainCalls).isEqualTo(1);
+    Assertions.assertThat(usedBeforeReset).isGreaterThan(0);
+    Assertions.assertThat(budget.getUsed()).isEqualTo(0);
+    Assertions.assertThat(second.clientSide.plain.toByteArray()).isEqualTo(response.array());
+    Assertions.assertThat(second.serverSide.plain.toByteArray()).isEqualTo(request.array());
+    Assertions.assertThat(first.client.hasPendingOutput()).isFalse();
+  }
+
+  @Test
+  public void shall_drop_writes_queued_during_an_unfinished_handshake_on_reset() throws Exception
+  {
+    // given
+    TestPair first = new TestPair(_context, "TLSv1.2");
+    first.client.beginHandshake();
+    first.client.encrypt(ByteBuffer.wrap("stale".getBytes()));
+
+    // when
+    first.client.reset(TestPair.engine(_context, true, "TLSv1.2"));
+    TestPair second = new TestPair(first.client, newServer());
+    second.client.encrypt(ByteBuffer.wrap("fresh".getBytes()));
+    second.handshake();
+
+    //then
+    Assertions.assertThat(first.clientSide.events).doesNotContain("closed");
+    Assertions.assertThat(new String(second.serverSide.plain.toByteArray())).isEqualTo("fresh");
+    Assertions.assertThat(second.client.getHandshakeFuture().isDone()).isTrue();
+    Assertions.assertThat(second.client.getHandshakeFuture().isCompletedExceptionally()).isFalse();
+  }
+
+  private SSLFacade newServer()
+  {
+    return new SSLFacade(TestPair.engine(_context, false, "TLSv1.2"), new DefaultTaskHandler());
+  }
+}
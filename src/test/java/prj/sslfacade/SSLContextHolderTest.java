@@ -0,0 +1,107 @@
+package prj.sslfacade;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import javax.net.ssl.SSLContext;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Generations count the facades a factory created from them and are
+ * forgotten once retired and drained.
+ */
+public class SSLContextHolderTest
+{
+  private SSLContext _context;
+  private SSLContextHolder _holder;
+  private SSLFacadeFactory _factory;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _context = TestPair.context("TLS");
+    _holder = new SSLContextHolder(_context);
+    _factory = new SSLFacadeFactory(_holder, false, false);
+  }
+
+  @Test
+  public void shall_count_live_connections_until_they_are_closed() throws Exception
+  {
+    // given
+    SSLContextHolder.Generation first = _holder.getCurrent();
+    SSLFacade closed = _factory.create(new DefaultTaskHandler());
+    SSLFacade terminated = _factory.create(new DefaultTaskHandler());
+    Assertions.assertThat(first.getLiveConnections()).isEqualTo(2);
+
+    // when
+    closed.close();
+    terminated.terminate();
+
+    //then
+    Assertions.assertThat(first.getLiveConnections()).isEqualTo(0);
+    Assertions.assertThat(_holder.getGenerations()).containsExactly(first);
+  }
+
+  @Test
+  public void shall_forget_a_retired_generation_once_drained() throws Exception
+  {
+    // given
+    SSLContextHolder.Generation first = _holder.getCurrent();
+    SSLFacade old = _factory.create(new DefaultTaskHandler());
+    SSLContextHolder.Generation second = _holder.swap(TestPair.context("TLS"));
+    _factory.create(new DefaultTaskHandler());
+    SSLContextHolder.Generation third = _holder.swap(TestPair.context("TLS"));
+    Assertions.assertThat(_holder.getGenerations()).containsExactly(first, second, third);
+    Assertions.assertThat(second.getLiveConnections()).isEqualTo(1);
+
+    // when
+    old.terminate();
+
+    //then
+    Assertions.assertThat(first.getLiveConnections()).isEqualTo(0);
+    Assertions.assertThat(_holder.getGenerations()).containsExactly(second, third);
+    Assertions.assertThat(_factory.getContext()).isSameAs(third.getContext());
+  }
+
+  @Test
+  public void shall_keep_generations_in_order_with_concurrent_swaps() throws Exception
+  {
+    // given
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < 1000; j++) {
+            _holder.swap(_context);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    SSLFacade held = _factory.create(new DefaultTaskHandler());
+    SSLContextHolder.Generation first = _holder.getCurrent();
+
+    // when
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    //then
+    List<SSLContextHolder.Generation> generations = _holder.getGenerations();
+    Assertions.assertThat(generations).containsExactly(first, _holder.getCurrent());
+    Assertions.assertThat(_holder.getCurrent().getNumber()).isEqualTo(4001);
+    held.terminate();
+    Assertions.assertThat(_holder.getGenerations()).containsExactly(_holder.getCurrent());
+  }
+}
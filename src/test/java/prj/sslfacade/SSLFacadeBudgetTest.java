@@ -0,0 +1,133 @@
+package prj.sslfacade;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Buffer budgets attached to facades: failures leave the facade usable,
+ * the charge follows the buffers and is given back at the end.
+ */
+public class SSLFacadeBudgetTest
+{
+  private Buffers _clientBuffers;
+  private Buffers _serverBuffers;
+  private TestPair _pair;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    SSLContext context = TestPair.context("TLS");
+    SSLEngine client = TestPair.engine(context, true, "TLSv1.2");
+    SSLEngine server = TestPair.engine(context, false, "TLSv1.2");
+    _clientBuffers = new Buffers(client.getSession());
+    _serverBuffers = new Buffers(server.getSession());
+    _pair = new TestPair(new SSLFacade(client, _clientBuffers, new DefaultTaskHandler()),
+            new SSLFacade(server, _serverBuffers, new DefaultTaskHandler()));
+    _pair.handshake();
+  }
+
+  @Test
+  public void shall_fail_encrypt_fast_and_keep_the_facade_usable() throws Exception
+  {
+    // given
+    BufferBudget tight = new BufferBudget(_clientBuffers.footprint());
+    _pair.client.setBufferBudget(tight);
+    ByteBuffer large = TestPair.data(200000);
+
+    // when
+    BufferBudgetExceededException thrown = null;
+    try {
+      _pair.client.encrypt(large);
+    } catch (BufferBudgetExceededException e) {
+      thrown = e;
+    }
+    ByteBuffer small = TestPair.data(100);
+    _pair.client.encrypt(small.duplicate());
+    _pair.pump();
+
+    //then
+    Assertions.assertThat(thrown).isNotNull();
+    Assertions.assertThat(large.remaining()).isEqualTo(200000);
+    Assertions.assertThat(tight.getUsed()).isEqualTo(_clientBuffers.footprint());
+    Assertions.assertThat(_pair.serverSide.plain.toByteArray()).isEqualTo(small.array());
+  }
+
+  @Test
+  public void shall_fail_decrypt_fast_and_accept_the_data_again() throws Exception
+  {
+    // given
+    ByteBuffer data = TestPair.data(60000);
+    _pair.client.encrypt(data.duplicate());
+    ByteBuffer records = _pair.clientSide.takeWrapped();
+    BufferBudget tight = new BufferBudget(_serverBuffers.footprint());
+    _pair.server.setBufferBudget(tight);
+
+    // when
+    BufferBudgetExceededException thrown = null;
+    try {
+      _pair.server.decrypt(records);
+    } catch (BufferBudgetExceededException e) {
+      thrown = e;
+    }
+    long usedAfterFailure = tight.getUsed();
+    _pair.server.setBufferBudget(new BufferBudget(1 << 20));
+    _pair.server.decrypt(records);
+
+    //then
+    Assertions.assertThat(thrown).isNotNull();
+    Assertions.assertThat(usedAfterFailure).isEqualTo(tight.getLimit());
+    Assertions.assertThat(_pair.serverSide.plain.toByteArray()).isEqualTo(data.array());
+  }
+
+  @Test
+  public void shall_charge_what_the_resized_buffers_hold() throws Exception
+  {
+    // given
+    BufferBudget global = new BufferBudget(1 << 22);
+    BufferBudget clientBudget = new BufferBudget(1 << 21, global);
+    BufferBudget serverBudget = new BufferBudget(1 << 21, global);
+    _pair.client.setBufferBudget(clientBudget);
+    _pair.server.setBufferBudget(serverBudget);
+
+    // when
+    _pair.client.encrypt(TestPair.data(100000));
+    ByteBuffer records = _pair.clientSide.takeWrapped();
+    ByteBuffer partial = records.duplicate();
+    partial.limit(records.limit() - 10);
+    _pair.server.decrypt(partial);
+    long serverWithCache = serverBudget.getUsed();
+    long footprintWithCache = _serverBuffers.footprint();
+    records.position(records.limit() - 10);
+    _pair.server.decrypt(records);
+
+    //then
+    Assertions.assertThat(clientBudget.getUsed()).isEqualTo(_clientBuffers.footprint());
+    Assertions.assertThat(serverWithCache).isEqualTo(footprintWithCache);
+    Assertions.assertThat(serverBudget.getUsed()).isEqualTo(_serverBuffers.footprint());
+    Assertions.assertThat(serverBudget.getUsed()).isLessThan(serverWithCache);
+    Assertions.assertThat(global.getUsed())
+            .isEqualTo(clientBudget.getUsed() + serverBudget.getUsed());
+  }
+
+  @Test
+  public void shall_release_the_budget_on_close_and_terminate() throws Exception
+  {
+    // given
+    BufferBudget global = new BufferBudget(1 << 22);
+    _pair.client.setBufferBudget(new BufferBudget(1 << 20, global));
+    _pair.server.setBufferBudget(new BufferBudget(1 << 20, global));
+
+    // when
+    _pair.client.close();
+    long afterClose = global.getUsed();
+    _pair.server.terminate();
+
+    //then
+    Assertions.assertThat(afterClose).isEqualTo(_serverBuffers.footprint());
+    Assertions.assertThat(global.getUsed()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,224 @@
+package prj.sslfacade;
+
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Engines handed out by the factory pool match the current settings.
+ */
+public class SSLFacadeFactoryTest
+{
+  @Test
+  public void shall_not_hand_out_engines_prepared_with_an_old_template() throws Exception
+  {
+    // given
+    final CountDownLatch creating = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    SSLContext context = blockingContext(TestPair.context("TLS"), creating, proceed);
+    SSLParameters parameters = context.getDefaultSSLParameters();
+    SSLFacadeFactory factory = new SSLFacadeFactory(context, false, parameters);
+    factory.enablePool(1, null);
+    Assertions.assertThat(creating.await(5, TimeUnit.SECONDS)).isTrue();
+
+    // when
+    parameters.setProtocols(new String[]{"TLSv1.2"});
+    factory.setParameters(parameters);
+    proceed.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (factory.getPooledCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    factory.create(new DefaultTaskHandler());
+
+    //then
+    Assertions.assertThat(factory.getPoolHits()).isEqualTo(0);
+    Assertions.assertThat(factory.getPoolMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void shall_only_take_back_its_own_facades() throws Exception
+  {
+    // given
+    SSLContext context = TestPair.context("TLS");
+    SSLFacadeFactory factory = new SSLFacadeFactory(context, false, false);
+    SSLFacadeFactory other = new SSLFacadeFactory(context, false, false);
+    factory.enableRecycling(4);
+    SSLFacade own = factory.create(new DefaultTaskHandler());
+    SSLFacade foreign = other.create(new DefaultTaskHandler());
+    SSLFacade unowned = new SSLFacade(context, false, false, new DefaultTaskHandler());
+
+    // when
+    boolean ownKept = factory.recycle(own);
+    boolean foreignKept = factory.recycle(foreign);
+    boolean unownedKept = factory.recycle(unowned);
+
+    //then
+    Assertions.assertThat(ownKept).isTrue();
+    Assertions.assertThat(foreignKept).isFalse();
+    Assertions.assertThat(unownedKept).isFalse();
+    Assertions.assertThat(factory.create(new DefaultTaskHandler())).isSameAs(own);
+  }
+
+  @Test
+  public void shall_reuse_its_refill_thread_and_release_it_when_disabled() throws Exception
+  {
+    // given
+    int before = refillThreads();
+    SSLFacadeFactory factory = new SSLFacadeFactory(TestPair.context("TLS"), false, false);
+
+    // when
+    factory.enablePool(1, null);
+    factory.enablePool(2, null);
+    factory.enablePool(2, null);
+    awaitPooled(factory, 2);
+    int enabled = refillThreads();
+    factory.disablePool();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (refillThreads() > before && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+
+    //then
+    Assertions.assertThat(enabled - before).isEqualTo(1);
+    Assertions.assertThat(refillThreads()).isEqualTo(before);
+    Assertions.assertThat(factory.getPooledCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_drop_pooled_and_recycled_facades_on_close() throws Exception
+  {
+    // given
+    SSLFacadeFactory factory = new SSLFacadeFactory(TestPair.context("TLS"), false, false);
+    factory.enablePool(2, new Executor()
+    {
+      @Override
+      public void execute(Runnable command)
+      {
+        command.run();
+      }
+    });
+    factory.enableRecycling(4);
+    SSLFacade facade = factory.create(new DefaultTaskHandler());
+    facade.terminate();
+    factory.recycle(facade);
+
+    // when
+    factory.close();
+    SSLFacade created = factory.create(new DefaultTaskHandler());
+
+    //then
+    Assertions.assertThat(factory.getPooledCount()).isEqualTo(0);
+    Assertions.assertThat(factory.getRecycledCount()).isEqualTo(0);
+    Assertions.assertThat(created).isNotSameAs(facade);
+    Assertions.assertThat(factory.getPoolHits()).isEqualTo(1);
+    Assertions.assertThat(factory.getPoolMisses()).isEqualTo(0);
+  }
+
+  /* Privates */
+  private static int refillThreads()
+  {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals("sslfacade-factory-refill")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void awaitPooled(SSLFacadeFactory factory, int count) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (factory.getPooledCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static SSLContext blockingContext(final SSLContext delegate,
+          final CountDownLatch creating, final CountDownLatch proceed)
+  {
+    /* Blocks the first engine creation until proceed is counted down, so
+     that the refill is caught in the middle of preparing an engine */
+    SSLContextSpi spi = new SSLContextSpi()
+    {
+      @Override
+      protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr)
+              throws KeyManagementException
+      {
+      }
+
+      @Override
+      protected SSLSocketFactory engineGetSocketFactory()
+      {
+        return delegate.getSocketFactory();
+      }
+
+      @Override
+      protected SSLServerSocketFactory engineGetServerSocketFactory()
+      {
+        return delegate.getServerSocketFactory();
+      }
+
+      @Override
+      protected SSLEngine engineCreateSSLEngine()
+      {
+        if (creating.getCount() > 0) {
+          creating.countDown();
+          try {
+            proceed.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return delegate.createSSLEngine();
+      }
+
+      @Override
+      protected SSLEngine engineCreateSSLEngine(String host, int port)
+      {
+        return delegate.createSSLEngine(host, port);
+      }
+
+      @Override
+      protected SSLSessionContext engineGetServerSessionContext()
+      {
+        return delegate.getServerSessionContext();
+      }
+
+      @Override
+      protected SSLSessionContext engineGetClientSessionContext()
+      {
+        return delegate.getClientSessionContext();
+      }
+
+      @Override
+      protected SSLParameters engineGetDefaultSSLParameters()
+      {
+        return delegate.getDefaultSSLParameters();
+      }
+
+      @Override
+      protected SSLParameters engineGetSupportedSSLParameters()
+      {
+        return delegate.getSupportedSSLParameters();
+      }
+    };
+    return new SSLContext(spi, delegate.getProvider(), delegate.getProtocol())
+    {
+    };
+  }
+}
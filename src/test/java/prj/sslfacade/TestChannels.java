@@ -0,0 +1,114 @@
+package prj.sslfacade;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channels for the channel based methods of the facade that hand out or
+ * take bytes in pieces chosen by the test.
+ */
+public class TestChannels
+{
+  public static class ChunkedReadChannel implements ReadableByteChannel
+  {
+    /* Returns the data at most chunk bytes per read, then end of stream */
+    private final ByteBuffer _data;
+    private final int _chunk;
+
+    public ChunkedReadChannel(ByteBuffer data, int chunk)
+    {
+      _data = data;
+      _chunk = chunk;
+    }
+
+    @Override
+    public int read(ByteBuffer dst)
+    {
+      if (!_data.hasRemaining()) {
+        return -1;
+      }
+      ByteBuffer piece = _data.duplicate();
+      piece.limit(piece.position() + Math.min(Math.min(_chunk, dst.remaining()), piece.remaining()));
+      int read = piece.remaining();
+      dst.put(piece);
+      _data.position(_data.position() + read);
+      return read;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+
+  public static class LimitedWriteChannel implements GatheringByteChannel
+  {
+    /* Takes no more than the bytes allowed so far, like a socket whose
+     send buffer fills up */
+    public final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private long _allowed;
+
+    public LimitedWriteChannel(long allowed)
+    {
+      _allowed = allowed;
+    }
+
+    public void allow(long bytes)
+    {
+      _allowed += bytes;
+    }
+
+    public ByteBuffer takeWritten()
+    {
+      ByteBuffer all = ByteBuffer.wrap(written.toByteArray());
+      written.reset();
+      return all;
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+      int count = (int) Math.min(_allowed, src.remaining());
+      for (int i = 0; i < count; i++) {
+        written.write(src.get());
+      }
+      _allowed -= count;
+      return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+    {
+      long total = 0;
+      for (int i = offset; i < offset + length; i++) {
+        total += write(srcs[i]);
+      }
+      return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs)
+    {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+}
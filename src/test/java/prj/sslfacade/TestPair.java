@@ -0,0 +1,167 @@
+package prj.sslfacade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A client and a server facade connected in memory. What either side wraps
+ * is queued and only passed to the other side by pump(), so tests can look
+ * at or split it first. Uses rsa.jks, the DSA certificate in test.jks is not
+ * negotiated by current JDKs.
+ */
+public class TestPair
+{
+  public static final String JKS_FILE = "src/test/resources/rsa.jks";
+  public static final String JKS_FILE_PASSWORD = "123456";
+
+  public final SSLFacade client;
+  public final SSLFacade server;
+  public final Side clientSide;
+  public final Side serverSide;
+
+  public TestPair(String protocol) throws GeneralSecurityException, IOException
+  {
+    this(context("TLS"), protocol);
+  }
+
+  public TestPair(SSLContext context, String protocol)
+  {
+    this(new SSLFacade(engine(context, true, protocol), new DefaultTaskHandler()),
+            new SSLFacade(engine(context, false, protocol), new DefaultTaskHandler()));
+  }
+
+  public TestPair(SSLFacade client, SSLFacade server)
+  {
+    this.client = client;
+    this.server = server;
+    clientSide = new Side(client);
+    serverSide = new Side(server);
+  }
+
+  public static SSLContext context(String protocol) throws GeneralSecurityException, IOException
+  {
+    KeyStore ks = KeyStore.getInstance("JKS");
+    FileInputStream in = new FileInputStream(JKS_FILE);
+    try {
+      ks.load(in, JKS_FILE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+    kmf.init(ks, JKS_FILE_PASSWORD.toCharArray());
+    TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+    tmf.init(ks);
+    SSLContext context = SSLContext.getInstance(protocol);
+    context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+    return context;
+  }
+
+  public static SSLEngine engine(SSLContext context, boolean client, String protocol)
+  {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(client);
+    if (protocol != null) {
+      engine.setEnabledProtocols(new String[]{protocol});
+    }
+    return engine;
+  }
+
+  public static ByteBuffer data(int size)
+  {
+    /* A recognizable pattern, so that lost or reordered bytes show */
+    ByteBuffer data = ByteBuffer.allocate(size);
+    for (int i = 0; i < size; i++) {
+      data.put((byte) (i % 251));
+    }
+    data.flip();
+    return data;
+  }
+
+  public void handshake() throws IOException
+  {
+    server.beginHandshake();
+    client.beginHandshake();
+    pump();
+    if (!client.isHandshakeCompleted() || !server.isHandshakeCompleted()) {
+      throw new SSLException("Handshake did not complete");
+    }
+  }
+
+  public void pump() throws SSLException
+  {
+    /* Delivers everything wrapped so far, buffer by buffer, until neither
+     side has anything left to send */
+    while (!clientSide.wrapped.isEmpty() || !serverSide.wrapped.isEmpty()) {
+      while (!clientSide.wrapped.isEmpty()) {
+        server.decrypt(clientSide.wrapped.remove(0));
+      }
+      while (!serverSide.wrapped.isEmpty()) {
+        client.decrypt(serverSide.wrapped.remove(0));
+      }
+    }
+  }
+
+  public static class Side implements ISSLListener, ISessionClosedListener
+  {
+    public final List<ByteBuffer> wrapped = new ArrayList<ByteBuffer>();
+    public final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    public final List<String> events = new ArrayList<String>();
+    public int plainCalls;
+
+    public Side(ISSLFacade facade)
+    {
+      facade.setSSLListener(this);
+      facade.setCloseListener(this);
+    }
+
+    public ByteBuffer takeWrapped()
+    {
+      /* Everything wrapped so far as one buffer */
+      int size = 0;
+      for (ByteBuffer buffer : wrapped) {
+        size += buffer.remaining();
+      }
+      ByteBuffer all = ByteBuffer.allocate(size);
+      for (ByteBuffer buffer : wrapped) {
+        all.put(buffer);
+      }
+      wrapped.clear();
+      all.flip();
+      return all;
+    }
+
+    @Override
+    public void onWrappedData(ByteBuffer wrappedBytes)
+    {
+      wrapped.add(wrappedBytes);
+      events.add("wrapped");
+    }
+
+    @Override
+    public void onPlainData(ByteBuffer plainBytes)
+    {
+      byte[] bytes = new byte[plainBytes.remaining()];
+      plainBytes.get(bytes);
+      plain.write(bytes, 0, bytes.length);
+      plainCalls++;
+      events.add("plain");
+    }
+
+    @Override
+    public void onSessionClosed()
+    {
+      events.add("closed");
+    }
+  }
+}
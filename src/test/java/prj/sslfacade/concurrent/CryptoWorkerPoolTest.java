@@ -0,0 +1,192 @@
+package prj.sslfacade.concurrent;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLException;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Test;
+import prj.sslfacade.ISSLFacade;
+import prj.sslfacade.TestPair;
+
+/**
+ * Work submitted through a CryptoConnection runs on the connection's crypto
+ * thread and its results come back in order on the thread calling poll().
+ */
+public class CryptoWorkerPoolTest
+{
+  private CryptoWorkerPool _pool;
+
+  @After
+  public void tearDown()
+  {
+    if (_pool != null) {
+      _pool.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void shall_hand_back_results_in_order_on_the_polling_thread() throws Exception
+  {
+    // given
+    _pool = new CryptoWorkerPool(2, 64);
+    TestPair pair = new TestPair("TLSv1.2");
+    Recorder client = new Recorder();
+    Recorder server = new Recorder();
+    CryptoConnection clientConnection = _pool.register(pair.client, client);
+    CryptoConnection serverConnection = _pool.register(pair.server, server);
+    serverConnection.beginHandshake();
+    clientConnection.beginHandshake();
+    while (!client.events.contains("completed") || !server.events.contains("completed")) {
+      pollAndForward(clientConnection, client, serverConnection, server);
+    }
+
+    // when
+    for (int i = 0; i < 20; i++) {
+      clientConnection.encrypt(ByteBuffer.wrap(("message " + i + ";").getBytes()));
+    }
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      expected.append("message ").append(i).append(';');
+    }
+    while (server.plain.size() < expected.length()) {
+      pollAndForward(clientConnection, client, serverConnection, server);
+    }
+
+    //then
+    Assertions.assertThat(new String(server.plain.toByteArray())).isEqualTo(expected.toString());
+    Assertions.assertThat(client.threads).containsOnly(Thread.currentThread());
+    Assertions.assertThat(server.threads).containsOnly(Thread.currentThread());
+    Assertions.assertThat(client.failure).isNull();
+    Assertions.assertThat(server.failure).isNull();
+  }
+
+  @Test(timeout = 10000)
+  public void shall_report_a_failing_work_item_and_keep_the_shard_running() throws Exception
+  {
+    // given
+    _pool = new CryptoWorkerPool(1, 64);
+    Recorder failing = new Recorder();
+    Recorder healthy = new Recorder();
+    RuntimeException broken = new IllegalStateException("broken facade");
+    FailingFacade facade = new FailingFacade(broken);
+    CryptoConnection failingConnection = _pool.register(facade.proxy(), failing);
+    TestPair pair = new TestPair("TLSv1.2");
+    CryptoConnection healthyConnection = _pool.register(pair.client, healthy);
+
+    // when
+    failingConnection.encrypt(ByteBuffer.allocate(10));
+    healthyConnection.beginHandshake();
+    while (failing.failure == null || healthy.wrapped.isEmpty()) {
+      poll();
+    }
+
+    //then
+    Assertions.assertThat(failing.failure).isInstanceOf(SSLException.class);
+    Assertions.assertThat(failing.failure.getCause()).isSameAs(broken);
+    Assertions.assertThat(failing.events).containsExactly("failure");
+    Assertions.assertThat(facade.terminated).isTrue();
+    Assertions.assertThat(healthy.failure).isNull();
+  }
+
+  private void pollAndForward(CryptoConnection clientConnection, Recorder client,
+          CryptoConnection serverConnection, Recorder server) throws InterruptedException
+  {
+    poll();
+    while (!client.wrapped.isEmpty()) {
+      serverConnection.decrypt(client.wrapped.remove(0));
+    }
+    while (!server.wrapped.isEmpty()) {
+      clientConnection.decrypt(server.wrapped.remove(0));
+    }
+  }
+
+  private void poll() throws InterruptedException
+  {
+    if (_pool.poll() == 0) {
+      Thread.sleep(1);
+    }
+  }
+
+  /* Throws from encrypt and remembers being terminated, ignores the rest */
+  private static class FailingFacade implements InvocationHandler
+  {
+    private final RuntimeException _failure;
+    volatile boolean terminated;
+
+    FailingFacade(RuntimeException failure)
+    {
+      _failure = failure;
+    }
+
+    ISSLFacade proxy()
+    {
+      return (ISSLFacade) Proxy.newProxyInstance(ISSLFacade.class.getClassLoader(),
+              new Class<?>[]{ISSLFacade.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+      if (method.getName().equals("encrypt")) {
+        throw _failure;
+      }
+      if (method.getName().equals("terminate")) {
+        terminated = true;
+      }
+      return null;
+    }
+  }
+
+  private static class Recorder implements ICryptoListener
+  {
+    final List<ByteBuffer> wrapped = new ArrayList<ByteBuffer>();
+    final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    final List<String> events = new ArrayList<String>();
+    final List<Thread> threads = new ArrayList<Thread>();
+    SSLException failure;
+
+    @Override
+    public void onWrappedData(ByteBuffer wrappedBytes)
+    {
+      threads.add(Thread.currentThread());
+      wrapped.add(wrappedBytes);
+    }
+
+    @Override
+    public void onPlainData(ByteBuffer plainBytes)
+    {
+      threads.add(Thread.currentThread());
+      byte[] bytes = new byte[plainBytes.remaining()];
+      plainBytes.get(bytes);
+      plain.write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void onComplete()
+    {
+      threads.add(Thread.currentThread());
+      events.add("completed");
+    }
+
+    @Override
+    public void onSessionClosed()
+    {
+      threads.add(Thread.currentThread());
+      events.add("closed");
+    }
+
+    @Override
+    public void onFailure(SSLException e)
+    {
+      threads.add(Thread.currentThread());
+      events.add("failure");
+      failure = e;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package prj.sslfacade.concurrent;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Checks capacity handling and ordering of the single-producer/single-consumer queue.
+ */
+public class SpscQueueTest
+{
+
+  @Test
+  public void shall_rejectOffersWhenFull()
+  {
+    // given
+    SpscQueue<Integer> queue = new SpscQueue<Integer>(3);
+
+    // when
+    for (int i = 0; i < queue.capacity(); i++) {
+      queue.offer(i);
+    }
+
+    //then
+    Assertions.assertThat(queue.capacity()).isEqualTo(4);
+    Assertions.assertThat(queue.offer(4)).isFalse();
+    Assertions.assertThat(queue.poll()).isEqualTo(0);
+    Assertions.assertThat(queue.offer(4)).isTrue();
+  }
+
+  @Test
+  public void shall_keepOrderAcrossThreads() throws InterruptedException
+  {
+    // given
+    final int count = 100000;
+    final SpscQueue<Integer> queue = new SpscQueue<Integer>(64);
+    final int[] received = new int[1];
+    final boolean[] ordered = {true};
+    Thread consumer = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        while (received[0] < count) {
+          Integer next = queue.poll();
+          if (next != null) {
+            ordered[0] &= next == received[0];
+            received[0]++;
+          } else {
+            Thread.yield();
+          }
+        }
+      }
+    });
+
+    // when
+    consumer.start();
+    for (int i = 0; i < count; i++) {
+      while (!queue.offer(i)) {
+        Thread.yield();
+      }
+    }
+    consumer.join(10000);
+
+    //then
+    Assertions.assertThat(received[0]).isEqualTo(count);
+    Assertions.assertThat(ordered[0]).isTrue();
+    Assertions.assertThat(queue.isEmpty()).isTrue();
+  }
+}
@@ -0,0 +1,365 @@
+package prj.sslfacade.flow;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Flow;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import prj.sslfacade.DefaultTaskHandler;
+import prj.sslfacade.SSLFacade;
+import prj.sslfacade.TestPair;
+
+/**
+ * Two adapters connected in memory, the encryptor of each side feeding the
+ * decryptor of the other one through a link that queues what the decryptor
+ * has not requested yet.
+ */
+public class SSLFlowAdapterTest
+{
+  private SSLFlowAdapter _client;
+  private SSLFlowAdapter _server;
+  private Source _clientSource;
+  private Source _serverSource;
+  private Sink _clientSink;
+  private Sink _serverSink;
+  private Link _toServer;
+  private Link _toClient;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    SSLContext context = TestPair.context("TLS");
+    _client = new SSLFlowAdapter(new SSLFacade(TestPair.engine(context, true, "TLSv1.2"),
+            new DefaultTaskHandler()));
+    _server = new SSLFlowAdapter(new SSLFacade(TestPair.engine(context, false, "TLSv1.2"),
+            new DefaultTaskHandler()));
+    _toServer = new Link();
+    _toClient = new Link();
+    _client.encryptor().subscribe(_toServer);
+    _server.encryptor().subscribe(_toClient);
+    _toServer.connect(_server.decryptor());
+    _toClient.connect(_client.decryptor());
+    _clientSource = new Source();
+    _serverSource = new Source();
+    _clientSource.subscribe(_client.encryptor());
+    _serverSource.subscribe(_server.encryptor());
+  }
+
+  @Test
+  public void shall_deliver_data_and_complete_both_sides_on_close() throws Exception
+  {
+    // given
+    subscribeSinks(Long.MAX_VALUE);
+    handshake();
+    ByteBuffer data = TestPair.data(40000);
+
+    // when
+    _clientSource.offer(data.duplicate());
+    _clientSource.complete();
+
+    //then
+    Assertions.assertThat(_serverSink.plain.toByteArray()).isEqualTo(data.array());
+    Assertions.assertThat(_serverSink.completed).isTrue();
+    Assertions.assertThat(_clientSink.completed).isTrue();
+    Assertions.assertThat(_serverSink.error).isNull();
+    Assertions.assertThat(_clientSink.error).isNull();
+    Assertions.assertThat(_serverSource.cancelled).isTrue();
+    Assertions.assertThat(_toServer.cancelled).isTrue();
+    Assertions.assertThat(_toClient.cancelled).isTrue();
+  }
+
+  @Test
+  public void shall_not_deliver_more_batches_than_requested() throws Exception
+  {
+    // given
+    subscribeSinks(1);
+    handshake();
+
+    // when
+    _clientSource.offer(ByteBuffer.wrap("one".getBytes()));
+    _clientSource.offer(ByteBuffer.wrap("two".getBytes()));
+    _clientSource.offer(ByteBuffer.wrap("three".getBytes()));
+
+    //then
+    Assertions.assertThat(_serverSink.batches).isEqualTo(1);
+    Assertions.assertThat(new String(_serverSink.plain.toByteArray())).isEqualTo("one");
+    Assertions.assertThat(_toServer.queued()).isEqualTo(2);
+
+    // when
+    _serverSink.subscription.request(2);
+
+    //then
+    Assertions.assertThat(_serverSink.batches).isEqualTo(3);
+    Assertions.assertThat(new String(_serverSink.plain.toByteArray())).isEqualTo("onetwothree");
+    Assertions.assertThat(_toServer.queued()).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_propagate_upstream_error_to_both_subscribers() throws Exception
+  {
+    // given
+    subscribeSinks(Long.MAX_VALUE);
+    handshake();
+    RuntimeException failure = new RuntimeException("source failed");
+
+    // when
+    _clientSource.fail(failure);
+
+    //then
+    Assertions.assertThat(_clientSink.error).isSameAs(failure);
+    Assertions.assertThat(_toServer.error).isSameAs(failure);
+    Assertions.assertThat(_toClient.cancelled).isTrue();
+    Assertions.assertThat(_clientSink.completed).isFalse();
+  }
+
+  @Test
+  public void shall_fail_when_transport_completes_before_close_notify() throws Exception
+  {
+    // given
+    subscribeSinks(Long.MAX_VALUE);
+    handshake();
+
+    // when
+    _toServer.complete();
+
+    //then
+    Assertions.assertThat(_serverSink.error).isInstanceOf(SSLException.class);
+    Assertions.assertThat(_toClient.error).isInstanceOf(SSLException.class);
+    Assertions.assertThat(_serverSource.cancelled).isTrue();
+  }
+
+  @Test
+  public void shall_cancel_upstream_when_subscriber_cancels() throws Exception
+  {
+    // given
+    subscribeSinks(Long.MAX_VALUE);
+    handshake();
+
+    // when
+    _clientSink.subscription.cancel();
+    _serverSource.offer(ByteBuffer.wrap("late".getBytes()));
+
+    //then
+    Assertions.assertThat(_toClient.cancelled).isTrue();
+    Assertions.assertThat(_clientSink.batches).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_not_hold_the_adapter_while_signalling_subscribers() throws Exception
+  {
+    // given
+    subscribeSinks(Long.MAX_VALUE);
+    handshake();
+    _serverSink.onBatch = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        /* Calls back in from another thread and waits for it, which
+         deadlocks if the adapter's monitor is still held */
+        Thread other = new Thread(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            _serverSink.subscription.request(1);
+          }
+        });
+        other.start();
+        try {
+          other.join(5000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        _serverSink.blocked |= other.isAlive() || Thread.holdsLock(_server);
+      }
+    };
+
+    // when
+    _clientSource.offer(ByteBuffer.wrap("ping".getBytes()));
+
+    //then
+    Assertions.assertThat(new String(_serverSink.plain.toByteArray())).isEqualTo("ping");
+    Assertions.assertThat(_serverSink.blocked).isFalse();
+  }
+
+  private void subscribeSinks(long demand)
+  {
+    _clientSink = new Sink(demand);
+    _serverSink = new Sink(demand);
+    _client.decryptor().subscribe(_clientSink);
+    _server.decryptor().subscribe(_serverSink);
+  }
+
+  private void handshake() throws SSLException
+  {
+    _server.beginHandshake();
+    _client.beginHandshake();
+    Assertions.assertThat(_clientSource.requested).isGreaterThan(0);
+    Assertions.assertThat(_serverSource.requested).isGreaterThan(0);
+  }
+
+  /* Plaintext or ciphertext handed to a processor as it is requested */
+  private static class Source implements Flow.Publisher<ByteBuffer>, Flow.Subscription
+  {
+    private final ArrayDeque<ByteBuffer> _queue = new ArrayDeque<>();
+    private Flow.Subscriber<? super ByteBuffer> _subscriber;
+    private boolean _completing;
+    private boolean _delivering;
+    long requested;
+    boolean cancelled;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+    {
+      _subscriber = subscriber;
+      subscriber.onSubscribe(this);
+    }
+
+    @Override
+    public void request(long n)
+    {
+      requested += n;
+      deliver();
+    }
+
+    @Override
+    public void cancel()
+    {
+      cancelled = true;
+    }
+
+    void offer(ByteBuffer data)
+    {
+      _queue.add(data);
+      deliver();
+    }
+
+    void complete()
+    {
+      _completing = true;
+      deliver();
+    }
+
+    void fail(Throwable t)
+    {
+      _subscriber.onError(t);
+    }
+
+    int queued()
+    {
+      return _queue.size();
+    }
+
+    private void deliver()
+    {
+      if (_delivering) {
+        return;
+      }
+      _delivering = true;
+      try {
+        while (!cancelled && requested > 0 && !_queue.isEmpty()) {
+          requested--;
+          _subscriber.onNext(_queue.poll());
+        }
+        if (!cancelled && _completing && _queue.isEmpty()) {
+          _completing = false;
+          _subscriber.onComplete();
+        }
+      } finally {
+        _delivering = false;
+      }
+    }
+  }
+
+  /* Forwards the batches of one side's encryptor to the other's decryptor */
+  private static class Link extends Source implements Flow.Subscriber<List<ByteBuffer>>
+  {
+    Throwable error;
+
+    void connect(Flow.Processor<ByteBuffer, List<ByteBuffer>> decryptor)
+    {
+      subscribe(decryptor);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> batch)
+    {
+      for (ByteBuffer buffer : batch) {
+        offer(buffer);
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete()
+    {
+    }
+  }
+
+  private static class Sink implements Flow.Subscriber<List<ByteBuffer>>
+  {
+    private final long _demand;
+    final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    Flow.Subscription subscription;
+    Runnable onBatch;
+    int batches;
+    boolean completed;
+    boolean blocked;
+    Throwable error;
+
+    Sink(long demand)
+    {
+      _demand = demand;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+      this.subscription = subscription;
+      subscription.request(_demand);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> batch)
+    {
+      batches++;
+      for (ByteBuffer buffer : batch) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        plain.write(bytes, 0, bytes.length);
+      }
+      if (onBatch != null) {
+        onBatch.run();
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete()
+    {
+      completed = true;
+    }
+  }
+}
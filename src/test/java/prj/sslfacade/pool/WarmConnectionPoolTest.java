@@ -0,0 +1,147 @@
+package prj.sslfacade.pool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import prj.sslfacade.DefaultTaskHandler;
+import prj.sslfacade.ISSLFacade;
+import prj.sslfacade.SSLFacade;
+import prj.sslfacade.SSLFacadeFactory;
+import prj.sslfacade.TestPair;
+
+/**
+ * The pool only hands out connections that are still usable.
+ */
+public class WarmConnectionPoolTest
+{
+  private SSLContext _context;
+  private final List<Link> _links = new ArrayList<Link>();
+  private WarmConnectionPool _pool;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _context = TestPair.context("TLS");
+    SSLFacadeFactory factory = new SSLFacadeFactory(_context, true, false);
+    _pool = new WarmConnectionPool(factory, new IUpstreamConnector()
+    {
+      @Override
+      public CompletableFuture<IUpstreamTransport> connect(String upstream, ISSLFacade ssl)
+      {
+        Link link = new Link(ssl);
+        _links.add(link);
+        return CompletableFuture.<IUpstreamTransport>completedFuture(link);
+      }
+    }, new DefaultTaskHandler(), 1, 1, TimeUnit.MINUTES);
+    _pool.addUpstream("upstream");
+    pump();
+  }
+
+  @Test
+  public void shall_warm_up_a_connection() throws Exception
+  {
+    // when
+    PooledConnection connection = _pool.acquire("upstream");
+
+    //then
+    Assertions.assertThat(connection).isNotNull();
+    Assertions.assertThat(connection.isOpen()).isTrue();
+    Assertions.assertThat(_pool.getHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void shall_open_a_new_connection_for_a_terminated_one() throws Exception
+  {
+    // given
+    ISSLFacade terminated = _links.get(0).client;
+    terminated.terminate();
+
+    // when
+    PooledConnection first = _pool.acquire("upstream");
+    int connected = _links.size();
+    pump();
+    PooledConnection second = _pool.acquire("upstream");
+
+    //then
+    Assertions.assertThat(first).isNull();
+    Assertions.assertThat(connected).isEqualTo(2);
+    Assertions.assertThat(second).isNotNull();
+    Assertions.assertThat(second.getFacade()).isNotSameAs(terminated);
+    Assertions.assertThat(second.isOpen()).isTrue();
+  }
+
+  @Test
+  public void shall_drop_terminated_connections_on_maintain() throws Exception
+  {
+    // given
+    _links.get(0).client.terminate();
+
+    // when
+    _pool.maintain();
+
+    //then
+    Assertions.assertThat(_pool.getWarmCount("upstream")).isEqualTo(0);
+    Assertions.assertThat(_links).hasSize(2);
+  }
+
+  /* Privates */
+  private void pump() throws SSLException
+  {
+    boolean moved = true;
+    while (moved) {
+      moved = false;
+      for (Link link : new ArrayList<Link>(_links)) {
+        moved |= link.pump();
+      }
+    }
+  }
+
+  private class Link implements IUpstreamTransport
+  {
+    /* A transport to an in memory upstream, bytes only move on pump() */
+    final ISSLFacade client;
+    final SSLFacade server;
+    final TestPair.Side serverSide;
+    final List<ByteBuffer> toServer = new ArrayList<ByteBuffer>();
+
+    Link(ISSLFacade client)
+    {
+      this.client = client;
+      server = new SSLFacade(TestPair.engine(_context, false, null), new DefaultTaskHandler());
+      serverSide = new TestPair.Side(server);
+    }
+
+    boolean pump() throws SSLException
+    {
+      boolean moved = !toServer.isEmpty() || !serverSide.wrapped.isEmpty();
+      while (!toServer.isEmpty()) {
+        server.decrypt(toServer.remove(0));
+      }
+      while (!serverSide.wrapped.isEmpty()) {
+        client.decrypt(serverSide.wrapped.remove(0));
+      }
+      return moved;
+    }
+
+    @Override
+    public void write(ByteBuffer cipherText)
+    {
+      ByteBuffer copy = ByteBuffer.allocate(cipherText.remaining());
+      copy.put(cipherText);
+      copy.flip();
+      toServer.add(copy);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+}
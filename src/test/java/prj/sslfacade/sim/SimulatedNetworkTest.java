@@ -0,0 +1,92 @@
+package prj.sslfacade.sim;
+
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import prj.sslfacade.DefaultTaskHandler;
+import prj.sslfacade.SSLFacade;
+import prj.sslfacade.TestPair;
+
+/**
+ * Data arrives complete over every standard profile, and simulated time
+ * follows the profile's round trip time.
+ */
+public class SimulatedNetworkTest
+{
+  private SSLContext _context;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _context = TestPair.context("TLS");
+  }
+
+  @Test
+  public void shall_deliver_all_data_over_every_standard_profile() throws Exception
+  {
+    for (NetworkProfile profile : NetworkProfile.standardProfiles()) {
+      // given
+      SimulatedNetwork network = new SimulatedNetwork(profile, 42);
+      SimulatedConnection first = connect(network);
+      SimulatedConnection second = connect(network);
+      first.beginHandshake();
+      second.beginHandshake();
+      network.run();
+
+      // when
+      first.getClient().encrypt(TestPair.data(20000));
+      second.getServer().encrypt(TestPair.data(30000));
+      network.run();
+
+      //then
+      Assertions.assertThat(first.getHandshakeNanos()).as(profile.getName()).isGreaterThanOrEqualTo(0);
+      Assertions.assertThat(first.getServerReceived()).as(profile.getName()).isEqualTo(20000);
+      Assertions.assertThat(second.getClientReceived()).as(profile.getName()).isEqualTo(30000);
+    }
+  }
+
+  @Test
+  public void shall_take_at_least_one_round_trip_to_handshake() throws Exception
+  {
+    // given
+    NetworkProfile profile = new NetworkProfile("slow");
+    profile.setRtt(100, TimeUnit.MILLISECONDS);
+    SimulatedNetwork network = new SimulatedNetwork(profile, 1);
+    SimulatedConnection connection = connect(network);
+
+    // when
+    connection.beginHandshake();
+    network.run();
+
+    //then
+    Assertions.assertThat(connection.getHandshakeNanos())
+            .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    Assertions.assertThat(network.now()).isGreaterThanOrEqualTo(connection.getHandshakeNanos());
+  }
+
+  @Test
+  public void shall_report_a_benchmark_result_per_profile() throws Exception
+  {
+    // given
+    NetworkBenchmark benchmark = new NetworkBenchmark(_context);
+    benchmark.setConnections(2);
+    benchmark.setPayloadBytes(32 * 1024);
+    benchmark.setWarmupRounds(0);
+
+    // when
+    NetworkBenchmark.Result result = benchmark.run(NetworkProfile.smallSegments());
+
+    //then
+    Assertions.assertThat(result.getProfile()).isEqualTo(NetworkProfile.smallSegments().getName());
+    Assertions.assertThat(result.getSegments()).isGreaterThan(0);
+    Assertions.assertThat(result.getMaxHandshakeNanos()).isGreaterThanOrEqualTo(result.getHandshakeNanos());
+  }
+
+  private SimulatedConnection connect(SimulatedNetwork network)
+  {
+    return network.connect(new SSLFacade(_context, true, false, new DefaultTaskHandler()),
+            new SSLFacade(_context, false, false, new DefaultTaskHandler()));
+  }
+}
@@ -0,0 +1,65 @@
+package prj.sslfacade.sni;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Parses ClientHellos produced by a client SSLEngine.
+ */
+public class ClientHelloTest
+{
+
+  @Test
+  public void shall_extractServerNameAndProtocols() throws Exception
+  {
+    // given
+    ByteBuffer hello = clientHello("example.com", "h2", "http/1.1");
+
+    // when
+    ClientHello parsed = ClientHello.parse(hello);
+
+    //then
+    Assertions.assertThat(parsed).isNotNull();
+    Assertions.assertThat(parsed.getServerName()).isEqualTo("example.com");
+    Assertions.assertThat(parsed.getApplicationProtocols()).containsExactly("h2", "http/1.1");
+    Assertions.assertThat(hello.position()).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_waitForTheCompleteClientHello() throws Exception
+  {
+    // given
+    ByteBuffer hello = clientHello("example.com");
+    ByteBuffer partial = hello.duplicate();
+    partial.limit(hello.limit() - 1);
+
+    // when
+    ClientHello parsed = ClientHello.parse(partial);
+
+    //then
+    Assertions.assertThat(parsed).isNull();
+    Assertions.assertThat(ClientHello.parse(hello).getServerName()).isEqualTo("example.com");
+    Assertions.assertThat(ClientHello.parse(hello).getApplicationProtocols()).isEmpty();
+  }
+
+  private static ByteBuffer clientHello(String serverName, String... protocols) throws Exception
+  {
+    SSLEngine engine = SSLContext.getDefault().createSSLEngine(serverName, 443);
+    engine.setUseClientMode(true);
+    SSLParameters parameters = engine.getSSLParameters();
+    parameters.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(serverName)));
+    parameters.setApplicationProtocols(protocols);
+    engine.setSSLParameters(parameters);
+    ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    engine.wrap(ByteBuffer.allocate(0), out);
+    out.flip();
+    return out;
+  }
+}
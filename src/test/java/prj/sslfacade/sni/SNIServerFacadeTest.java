@@ -0,0 +1,157 @@
+package prj.sslfacade.sni;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import prj.sslfacade.DefaultTaskHandler;
+import prj.sslfacade.SSLFacade;
+import prj.sslfacade.SSLFacadeFactory;
+import prj.sslfacade.TestChannels;
+import prj.sslfacade.TestPair;
+
+/**
+ * An SNIServerFacade handshakes through the facade created for the
+ * ClientHello and can be reset for the next connection.
+ */
+public class SNIServerFacadeTest
+{
+  private SSLContext _context;
+  private SNIContextSelector _selector;
+  private SNIServerFacade _server;
+  private TestPair.Side _serverSide;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _context = TestPair.context("TLS");
+    _selector = new SNIContextSelector(new ISSLContextResolver()
+    {
+      @Override
+      public SSLContext resolve(ClientHello hello) throws SSLException
+      {
+        return _context;
+      }
+    }, false, 16);
+    _server = new SNIServerFacade(_selector, new DefaultTaskHandler());
+    _serverSide = new TestPair.Side(_server);
+  }
+
+  @Test
+  public void shall_sniff_the_next_client_hello_after_reset() throws Exception
+  {
+    // given
+    CompletableFuture<SSLSession> first = _server.getHandshakeFuture();
+    handshake();
+    SSLFacade firstFacade = _server.getFacade();
+
+    // when
+    _server.reset();
+    _serverSide = new TestPair.Side(_server);
+    CompletableFuture<SSLSession> second = _server.getHandshakeFuture();
+    boolean sniffing = _server.getFacade() == null && _server.getClientHello() == null;
+    handshake();
+
+    //then
+    Assertions.assertThat(sniffing).isTrue();
+    Assertions.assertThat(first.isCompletedExceptionally()).isFalse();
+    Assertions.assertThat(second).isNotSameAs(first);
+    Assertions.assertThat(second.isDone()).isTrue();
+    Assertions.assertThat(_server.getFacade()).isNotSameAs(firstFacade);
+  }
+
+  @Test
+  public void shall_terminate_an_open_connection_on_reset() throws Exception
+  {
+    // given
+    handshake();
+    SSLFacade facade = _server.getFacade();
+    CompletableFuture<Void> peerClose = _server.getPeerCloseFuture();
+
+    // when
+    _server.reset();
+
+    //then
+    Assertions.assertThat(peerClose.isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(_server.getPeerCloseFuture().isDone()).isFalse();
+    Assertions.assertThat(_serverSide.events).doesNotContain("closed");
+    try {
+      facade.encrypt(ByteBuffer.allocate(1));
+      Assertions.fail("Facade of the previous connection still open");
+    } catch (SSLException expected) {
+    }
+  }
+
+  @Test
+  public void shall_collect_a_client_hello_read_in_pieces_from_a_channel() throws Exception
+  {
+    // given
+    SSLFacade client = new SSLFacade(TestPair.engine(_context, true, "TLSv1.2"),
+            new DefaultTaskHandler());
+    TestPair.Side clientSide = new TestPair.Side(client);
+    client.beginHandshake();
+    ReadableByteChannel channel = new TestChannels.ChunkedReadChannel(clientSide.takeWrapped(), 50);
+
+    // when
+    int reads = 0;
+    while (_server.getFacade() == null && _server.decryptFrom(channel) > 0) {
+      reads++;
+    }
+    pump(client, clientSide);
+
+    //then
+    Assertions.assertThat(reads).isGreaterThan(1);
+    Assertions.assertThat(_server.getClientHello()).isNotNull();
+    Assertions.assertThat(_server.isHandshakeCompleted()).isTrue();
+    Assertions.assertThat(client.isHandshakeCompleted()).isTrue();
+  }
+
+  @Test
+  public void shall_keep_the_factories_when_the_selector_is_cleared() throws Exception
+  {
+    // given
+    handshake();
+    SSLFacadeFactory factory = _selector.getFactory(_context);
+
+    // when
+    _selector.clear();
+    _server.reset();
+    _serverSide = new TestPair.Side(_server);
+    handshake();
+
+    //then
+    Assertions.assertThat(factory).isNotNull();
+    Assertions.assertThat(_selector.getFactory(_context)).isSameAs(factory);
+    Assertions.assertThat(_selector.getResolveCount()).isEqualTo(2);
+    Assertions.assertThat(_selector.getCachedCount()).isEqualTo(1);
+  }
+
+  /* Privates */
+  private void handshake() throws Exception
+  {
+    SSLFacade client = new SSLFacade(TestPair.engine(_context, true, "TLSv1.2"),
+            new DefaultTaskHandler());
+    TestPair.Side clientSide = new TestPair.Side(client);
+    client.beginHandshake();
+    pump(client, clientSide);
+  }
+
+  private void pump(SSLFacade client, TestPair.Side clientSide) throws Exception
+  {
+    while (!clientSide.wrapped.isEmpty() || !_serverSide.wrapped.isEmpty()) {
+      while (!clientSide.wrapped.isEmpty()) {
+        _server.decrypt(clientSide.wrapped.remove(0));
+      }
+      while (!_serverSide.wrapped.isEmpty()) {
+        client.decrypt(_serverSide.wrapped.remove(0));
+      }
+    }
+    Assertions.assertThat(client.isHandshakeCompleted()).isTrue();
+    Assertions.assertThat(_server.isHandshakeCompleted()).isTrue();
+  }
+}
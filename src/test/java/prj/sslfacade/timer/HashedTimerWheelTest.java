@@ -0,0 +1,95 @@
+package prj.sslfacade.timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Drives a timer wheel with a simulated clock.
+ */
+public class HashedTimerWheelTest
+{
+  private static final long MS = 1000000L;
+
+  @Test
+  public void shall_expireTimeoutsInDeadlineOrder()
+  {
+    // given
+    HashedTimerWheel wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 8, 0);
+    List<String> fired = new ArrayList<String>();
+    wheel.schedule(record(fired, "later"), 250, TimeUnit.MILLISECONDS, 0);
+    wheel.schedule(record(fired, "soon"), 25, TimeUnit.MILLISECONDS, 0);
+
+    // when
+    int early = wheel.tick(20 * MS);
+    int first = wheel.tick(30 * MS);
+    int second = wheel.tick(260 * MS);
+
+    //then
+    Assertions.assertThat(early).isEqualTo(0);
+    Assertions.assertThat(first).isEqualTo(1);
+    Assertions.assertThat(second).isEqualTo(1);
+    Assertions.assertThat(fired).containsExactly("soon", "later");
+    Assertions.assertThat(wheel.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_notRunCancelledTimeouts()
+  {
+    // given
+    HashedTimerWheel wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 8, 0);
+    List<String> fired = new ArrayList<String>();
+    Timeout cancelled = wheel.schedule(record(fired, "cancelled"), 50, TimeUnit.MILLISECONDS, 0);
+    wheel.schedule(record(fired, "kept"), 50, TimeUnit.MILLISECONDS, 0);
+
+    // when
+    boolean result = cancelled.cancel();
+    wheel.tick(5000 * MS);
+
+    //then
+    Assertions.assertThat(result).isTrue();
+    Assertions.assertThat(cancelled.isCancelled()).isTrue();
+    Assertions.assertThat(cancelled.cancel()).isFalse();
+    Assertions.assertThat(fired).containsExactly("kept");
+  }
+
+  @Test
+  public void shall_not_delay_timeouts_scheduled_while_catching_up()
+  {
+    // given
+    final HashedTimerWheel wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 8, 0);
+    final List<String> fired = new ArrayList<String>();
+    wheel.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        /* Scheduled with the time the loop saw before it was away */
+        wheel.schedule(record(fired, "rescheduled"), 0, TimeUnit.MILLISECONDS, 0);
+      }
+    }, 10, TimeUnit.MILLISECONDS, 0);
+
+    // when
+    int caughtUp = wheel.tick(1000 * MS);
+    int next = wheel.tick(1010 * MS);
+
+    //then
+    Assertions.assertThat(caughtUp).isEqualTo(1);
+    Assertions.assertThat(next).isEqualTo(1);
+    Assertions.assertThat(fired).containsExactly("rescheduled");
+  }
+
+  private static Runnable record(final List<String> fired, final String name)
+  {
+    return new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        fired.add(name);
+      }
+    };
+  }
+}
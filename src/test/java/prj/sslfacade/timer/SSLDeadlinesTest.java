@@ -0,0 +1,114 @@
+package prj.sslfacade.timer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import prj.sslfacade.ISessionClosedListener;
+import prj.sslfacade.TestPair;
+
+/**
+ * Handshake and close deadlines of a facade pair on a wheel that is ticked
+ * by the test.
+ */
+public class SSLDeadlinesTest
+{
+  private static final long LATER = TimeUnit.SECONDS.toNanos(1);
+
+  private TestPair _pair;
+  private HashedTimerWheel _wheel;
+  private SSLDeadlines _deadlines;
+  private int _expired;
+  private ISessionClosedListener _onExpired;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    _pair = new TestPair("TLSv1.2");
+    _wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 64);
+    _deadlines = new SSLDeadlines(_wheel, 100, 100, TimeUnit.MILLISECONDS);
+    _onExpired = new ISessionClosedListener()
+    {
+      @Override
+      public void onSessionClosed()
+      {
+        _expired++;
+      }
+    };
+  }
+
+  @Test
+  public void shall_terminate_a_facade_whose_handshake_does_not_complete() throws Exception
+  {
+    // given
+    CompletableFuture<SSLSession> handshake = _deadlines.beginHandshake(_pair.client, _onExpired);
+
+    // when
+    int early = _wheel.tick(System.nanoTime());
+    int late = _wheel.tick(System.nanoTime() + LATER);
+
+    //then
+    Assertions.assertThat(early).isEqualTo(0);
+    Assertions.assertThat(late).isEqualTo(1);
+    Assertions.assertThat(handshake.isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(_expired).isEqualTo(1);
+    Assertions.assertThat(_deadlines.getExpiredCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shall_cancel_the_handshake_deadline_once_completed() throws Exception
+  {
+    // given
+    CompletableFuture<SSLSession> server = _deadlines.beginHandshake(_pair.server, _onExpired);
+    CompletableFuture<SSLSession> client = _deadlines.beginHandshake(_pair.client, _onExpired);
+
+    // when
+    _pair.pump();
+    int late = _wheel.tick(System.nanoTime() + LATER);
+
+    //then
+    Assertions.assertThat(client.isDone() && !client.isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(server.isDone() && !server.isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(late).isEqualTo(0);
+    Assertions.assertThat(_wheel.size()).isEqualTo(0);
+    Assertions.assertThat(_deadlines.getExpiredCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void shall_terminate_a_facade_whose_peer_does_not_answer_close() throws Exception
+  {
+    // given
+    _pair.handshake();
+    CompletableFuture<Void> peerClose = _deadlines.close(_pair.client, _onExpired);
+
+    // when
+    int late = _wheel.tick(System.nanoTime() + LATER);
+
+    //then
+    Assertions.assertThat(late).isEqualTo(1);
+    Assertions.assertThat(peerClose.isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(_expired).isEqualTo(1);
+    Assertions.assertThat(_deadlines.getExpiredCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shall_cancel_the_close_deadline_once_the_peer_answered() throws Exception
+  {
+    // given
+    _pair.handshake();
+    CompletableFuture<Void> peerClose = _deadlines.close(_pair.client, _onExpired);
+
+    // when
+    _pair.pump();
+    int late = _wheel.tick(System.nanoTime() + LATER);
+
+    //then
+    Assertions.assertThat(peerClose.isDone() && !peerClose.isCompletedExceptionally()).isTrue();
+    Assertions.assertThat(late).isEqualTo(0);
+    Assertions.assertThat(_wheel.size()).isEqualTo(0);
+    Assertions.assertThat(_expired).isEqualTo(0);
+    Assertions.assertThat(_deadlines.getExpiredCount()).isEqualTo(0);
+  }
+}
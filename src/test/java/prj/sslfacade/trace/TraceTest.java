@@ -0,0 +1,162 @@
+package prj.sslfacade.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import prj.sslfacade.TestPair;
+
+/**
+ * What a TraceRecorder writes is read back by Trace unchanged, sizes and
+ * time deltas at the varint byte boundaries included.
+ */
+public class TraceTest
+{
+  private static final int[] SIZES = {0, 1, 31, 32, 4095, 4096, 524287, 524288, Integer.MAX_VALUE};
+
+  @Test
+  public void shall_read_back_every_event_type_and_size() throws Exception
+  {
+    // given
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TraceRecorder recorder = new TraceRecorder(out, true);
+    for (int size : SIZES) {
+      recorder.onWrite(size);
+    }
+    recorder.onHandshakeCompleted();
+    for (int size : SIZES) {
+      recorder.onRead(size);
+    }
+    recorder.onRead(-1);
+
+    // when
+    recorder.close();
+    Trace trace = Trace.read(new ByteArrayInputStream(out.toByteArray()));
+
+    //then
+    Assertions.assertThat(trace.isClient()).isTrue();
+    Assertions.assertThat(trace.size()).isEqualTo(2 * SIZES.length + 2);
+    for (int i = 0; i < SIZES.length; i++) {
+      Assertions.assertThat(trace.getType(i)).isEqualTo(Trace.WRITE);
+      Assertions.assertThat(trace.getSize(i)).isEqualTo(SIZES[i]);
+      Assertions.assertThat(trace.getType(SIZES.length + 1 + i)).isEqualTo(Trace.READ);
+      Assertions.assertThat(trace.getSize(SIZES.length + 1 + i)).isEqualTo(SIZES[i]);
+    }
+    Assertions.assertThat(trace.getHandshakeCompleted()).isEqualTo(SIZES.length);
+    Assertions.assertThat(trace.getType(trace.size() - 1)).isEqualTo(Trace.END_OF_STREAM);
+    for (int i = 1; i < trace.size(); i++) {
+      Assertions.assertThat(trace.getNanos(i)).isGreaterThanOrEqualTo(trace.getNanos(i - 1));
+    }
+  }
+
+  @Test
+  public void shall_read_time_deltas_at_varint_boundaries() throws Exception
+  {
+    // given
+    long[] deltas = {0, 127, 128, 16383, 16384, 1L << 35};
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(header(false));
+    for (long delta : deltas) {
+      writeVarint(out, delta);
+      writeVarint(out, 100L << 2 | Trace.READ);
+    }
+
+    // when
+    Trace trace = Trace.read(new ByteArrayInputStream(out.toByteArray()));
+
+    //then
+    Assertions.assertThat(trace.isClient()).isFalse();
+    Assertions.assertThat(trace.size()).isEqualTo(deltas.length);
+    long micros = 0;
+    for (int i = 0; i < deltas.length; i++) {
+      micros += deltas[i];
+      Assertions.assertThat(trace.getNanos(i)).isEqualTo(micros * 1000);
+      Assertions.assertThat(trace.getSize(i)).isEqualTo(100);
+    }
+  }
+
+  @Test
+  public void shall_reject_a_trace_truncated_within_a_varint() throws Exception
+  {
+    // given
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(header(true));
+    writeVarint(out, 5);
+    writeVarint(out, 1L << 20);
+    byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+
+    // when
+    IOException thrown = null;
+    try {
+      Trace.read(new ByteArrayInputStream(truncated));
+    } catch (IOException e) {
+      thrown = e;
+    }
+
+    //then
+    Assertions.assertThat(thrown).hasMessage("Truncated trace");
+  }
+
+  @Test
+  public void shall_reject_negative_sizes_other_than_end_of_stream() throws Exception
+  {
+    // given
+    TraceRecorder recorder = new TraceRecorder(new ByteArrayOutputStream(), false);
+
+    // when
+    IllegalArgumentException read = null;
+    IllegalArgumentException write = null;
+    try {
+      recorder.onRead(-2);
+    } catch (IllegalArgumentException e) {
+      read = e;
+    }
+    try {
+      recorder.onWrite(-1);
+    } catch (IllegalArgumentException e) {
+      write = e;
+    }
+
+    //then
+    Assertions.assertThat(read).isNotNull();
+    Assertions.assertThat(write).isNotNull();
+  }
+
+  @Test
+  public void shall_replay_a_trace_that_ends_with_the_end_of_stream() throws Exception
+  {
+    // given
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TraceRecorder recorder = new TraceRecorder(out, false);
+    recorder.onHandshakeCompleted();
+    recorder.onRead(2000);
+    recorder.onWrite(5000);
+    recorder.onRead(-1);
+    recorder.close();
+    Trace trace = Trace.read(new ByteArrayInputStream(out.toByteArray()));
+
+    // when
+    TraceReplayer.Result result = new TraceReplayer(TestPair.context("TLS")).replay(trace);
+
+    //then
+    Assertions.assertThat(result.getEvents()).isEqualTo(2);
+    Assertions.assertThat(result.getWireBytes()).isEqualTo(7000);
+  }
+
+  private static byte[] header(boolean client)
+  {
+    return new byte[]{0x53, 0x53, 0x4c, 0x54, (byte) Trace.VERSION,
+            (byte) (client ? Trace.CLIENT_FLAG : 0)};
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value)
+  {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+}